@@ -0,0 +1,299 @@
+package nl.apkbaadjou.grotiuscoin;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Set;
+
+
+/**
+ * Het AdresBoek bevat de adressen van nodes waarmee deze node kan verbinden (zie PeerAdres).
+ * Adressen komen van peers die met deze node verbonden zijn geweest, van adressenberichten
+ * van peers en van de gebruiker. Het AdresBoek wordt in een bestand bewaard, zodat de node na
+ * een herstart weer met dezelfde nodes kan verbinden.
+ *
+ * Het AdresBoek wordt door meerdere threads gebruikt; alle methoden zijn synchronized.
+ *
+ */
+public class AdresBoek {
+
+	/**
+	 * Het bestand waarin de adressen bewaard worden. Elke regel bevat één adres:
+	 * ip poort laatstGezien mislukt volgendePoging latentie
+	 */
+	public static final String ADRESSEN_PATH = Main.DIRECTORY + File.separator + "adressen";
+
+	/**
+	 * Het maximale aantal adressen in het AdresBoek.
+	 */
+	public static final int MAX_ADRESSEN = 5000;
+
+	/**
+	 * Een adres waarmee het verbinden zo vaak achter elkaar mislukt is, en waarmee al een week
+	 * geen werkende verbinding is geweest, wordt vergeten.
+	 */
+	public static final int MAX_MISLUKT = 10;
+
+	private static final long WEEK = 7L * 24 * 60 * 60 * 1000;
+
+	/**
+	 * De adressen, met de sleutel van het adres (zie PeerAdres.maakSleutel()) als sleutel.
+	 */
+	private HashMap<String, PeerAdres> adressen;
+
+	public AdresBoek() {
+		adressen = new HashMap<String, PeerAdres>();
+	}
+
+	/**
+	 * Lees een adres in de vorm "ip:poort". Alleen IP-adressen worden geaccepteerd (geen
+	 * hostnamen), zodat adressen van peers nooit een DNS-lookup veroorzaken.
+	 * @param tekst	Het adres.
+	 * @return Het adres (of null als de tekst geen geldig adres is).
+	 */
+	public static PeerAdres leesAdres(String tekst) {
+		int scheiding = tekst.lastIndexOf(':');
+		if (scheiding <= 0 || tekst.length() > 64) {
+			return null;
+		}
+		String ip = tekst.substring(0, scheiding);
+		if (!ip.matches("[0-9a-fA-F.:]+")) {
+			return null;
+		}
+		try {
+			int poort = Integer.parseInt(tekst.substring(scheiding + 1));
+			if (poort <= 0 || poort > 65535) {
+				return null;
+			}
+			return new PeerAdres(ip, poort);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Voeg een adres toe aan het AdresBoek (als het nog niet bekend is). Als het AdresBoek vol
+	 * is, wordt het slechtste adres vervangen, maar alleen als dat adres al eens onbereikbaar
+	 * is gebleken.
+	 * @param ip	Het IP-adres van de node.
+	 * @param poort	De poort waarop de node luistert.
+	 * @return Het adres in het AdresBoek (of null als er geen plaats is).
+	 */
+	public synchronized PeerAdres voegToe(String ip, int poort) {
+		String sleutel = PeerAdres.maakSleutel(ip, poort);
+		PeerAdres adres = adressen.get(sleutel);
+		if (adres != null) {
+			return adres;
+		}
+
+		if (adressen.size() >= MAX_ADRESSEN) {
+			long nu = System.currentTimeMillis();
+			PeerAdres slechtste = null;
+			for (PeerAdres a : adressen.values()) {
+				if (slechtste == null || a.getScore(nu) < slechtste.getScore(nu)) {
+					slechtste = a;
+				}
+			}
+			if (slechtste.getMislukt() == 0) {
+				return null;
+			}
+			adressen.remove(slechtste.getSleutel());
+		}
+
+		adres = new PeerAdres(ip, poort);
+		adressen.put(sleutel, adres);
+		return adres;
+	}
+
+	/**
+	 * @param sleutel	De sleutel van het adres.
+	 * @return Het adres (of null als het niet in het AdresBoek staat).
+	 */
+	public synchronized PeerAdres get(String sleutel) {
+		return adressen.get(sleutel);
+	}
+
+	/**
+	 * Leg vast dat het verbinden met een adres mislukt is. Als het adres al te vaak onbereikbaar
+	 * was, wordt het vergeten.
+	 * @param sleutel	De sleutel van het adres.
+	 * @param nu		Het huidige tijdstip.
+	 */
+	public synchronized void mislukt(String sleutel, long nu) {
+		PeerAdres adres = adressen.get(sleutel);
+		if (adres == null) {
+			return;
+		}
+		adres.mislukt(nu);
+		if (adres.getMislukt() >= MAX_MISLUKT && nu - adres.getLaatstGezien() > WEEK) {
+			adressen.remove(sleutel);
+		}
+	}
+
+	/**
+	 * Leg vast dat de verbinding met een adres verbroken is (zie PeerAdres.verbroken()).
+	 */
+	public synchronized void verbroken(String sleutel, long nu, boolean stabiel) {
+		PeerAdres adres = adressen.get(sleutel);
+		if (adres != null) {
+			adres.verbroken(nu, stabiel);
+		}
+	}
+
+	/**
+	 * Leg vast dat er een werkende verbinding met een adres is (zie PeerAdres.gezien()).
+	 */
+	public synchronized void gezien(String sleutel, long nu, long latentie) {
+		PeerAdres adres = adressen.get(sleutel);
+		if (adres != null) {
+			adres.gezien(nu, latentie);
+		}
+	}
+
+	/**
+	 * Vergeet een adres, bijvoorbeeld omdat het het adres van deze node zelf is.
+	 * @param sleutel	De sleutel van het adres.
+	 */
+	public synchronized void verwijder(String sleutel) {
+		adressen.remove(sleutel);
+	}
+
+	/**
+	 * Kies de adressen waarmee het beste verbonden kan worden. Adressen met dezelfde score
+	 * worden in willekeurige volgorde gekozen, zodat niet alle nodes met dezelfde nodes verbinden.
+	 * @param aantal		Het maximale aantal adressen.
+	 * @param uitgesloten	Sleutels van adressen waarmee al verbonden is of wordt.
+	 * @param nu			Het huidige tijdstip.
+	 * @return De adressen, de beste eerst.
+	 */
+	public synchronized ArrayList<PeerAdres> kiesKandidaten(int aantal, Set<String> uitgesloten, final long nu) {
+		ArrayList<PeerAdres> kandidaten = new ArrayList<PeerAdres>();
+		for (PeerAdres adres : adressen.values()) {
+			if (adres.magVerbinden(nu) && !uitgesloten.contains(adres.getSleutel())) {
+				kandidaten.add(adres);
+			}
+		}
+
+		Collections.shuffle(kandidaten);
+		Collections.sort(kandidaten, new Comparator<PeerAdres>() {
+			@Override
+			public int compare(PeerAdres a, PeerAdres b) {
+				return Double.compare(b.getScore(nu), a.getScore(nu));
+			}
+		});
+		if (kandidaten.size() > aantal) {
+			return new ArrayList<PeerAdres>(kandidaten.subList(0, aantal));
+		}
+		return kandidaten;
+	}
+
+	/**
+	 * Kies adressen om naar een peer te sturen: adressen waarmee het verbinden niet (vaak)
+	 * mislukt is, de meest recent geziene eerst.
+	 * @param aantal	Het maximale aantal adressen.
+	 * @return De sleutels van de adressen ("ip:poort").
+	 */
+	public synchronized ArrayList<String> kiesOmTeDelen(int aantal) {
+		ArrayList<PeerAdres> bruikbaar = new ArrayList<PeerAdres>();
+		for (PeerAdres adres : adressen.values()) {
+			if (adres.getMislukt() < 3) {
+				bruikbaar.add(adres);
+			}
+		}
+
+		Collections.shuffle(bruikbaar);
+		Collections.sort(bruikbaar, new Comparator<PeerAdres>() {
+			@Override
+			public int compare(PeerAdres a, PeerAdres b) {
+				return Long.compare(b.getLaatstGezien(), a.getLaatstGezien());
+			}
+		});
+
+		ArrayList<String> sleutels = new ArrayList<String>();
+		for (int i=0; i<bruikbaar.size() && i<aantal; i++) {
+			sleutels.add(bruikbaar.get(i).getSleutel());
+		}
+		return sleutels;
+	}
+
+	public synchronized int getAantal() {
+		return adressen.size();
+	}
+
+	/**
+	 * Laad de adressen uit het bestand (als het bestaat).
+	 */
+	public synchronized void laad() {
+		File bestand = new File(ADRESSEN_PATH);
+		if (!bestand.exists()) {
+			return;
+		}
+
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader(bestand));
+			String regel;
+			while ((regel = reader.readLine()) != null && adressen.size() < MAX_ADRESSEN) {
+				String[] delen = regel.trim().split(" ");
+				if (delen.length != 6) {
+					continue;
+				}
+				try {
+					PeerAdres adres = new PeerAdres(delen[0], Integer.parseInt(delen[1]), Long.parseLong(delen[2]),
+													Integer.parseInt(delen[3]), Long.parseLong(delen[4]),
+													Long.parseLong(delen[5]));
+					adressen.put(adres.getSleutel(), adres);
+				} catch (NumberFormatException e) {
+					//sla ongeldige regels over
+				}
+			}
+			System.out.println(adressen.size() + " adressen geladen");
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			try {
+				if (reader != null) {
+					reader.close();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Bewaar de adressen in het bestand.
+	 */
+	public synchronized void bewaar() {
+		File directory = new File(Main.DIRECTORY);
+		if (!directory.exists()) {
+			directory.mkdir();
+		}
+
+		FileWriter writer = null;
+		try {
+			writer = new FileWriter(ADRESSEN_PATH);
+			for (PeerAdres adres : adressen.values()) {
+				writer.write(adres.getIP() + " " + adres.getPoort() + " " + adres.getLaatstGezien() + " " +
+							 adres.getMislukt() + " " + adres.getVolgendePoging() + " " + adres.getLatentie() +
+							 BlockchainManager.NEWLINE);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			try {
+				if (writer != null) {
+					writer.close();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+}
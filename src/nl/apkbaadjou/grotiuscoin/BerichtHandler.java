@@ -0,0 +1,18 @@
+package nl.apkbaadjou.grotiuscoin;
+import org.json.JSONObject;
+
+
+/**
+ * Een BerichtHandler verwerkt berichten van één soort (zie BerichtVerdeler).
+ *
+ */
+public interface BerichtHandler {
+	
+	/**
+	 * Verwerk een bericht.
+	 * @param bericht	Het bericht.
+	 * @param afzender	De Peer die het bericht gestuurd heeft (of null als het bericht door deze
+	 * 					node zelf is gemaakt).
+	 */
+	public void verwerkBericht(JSONObject bericht, Peer afzender);
+}
@@ -1,4 +1,12 @@
 package nl.apkbaadjou.grotiuscoin;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.json.JSONArray;
 import org.json.JSONObject;
 
 
@@ -13,22 +21,175 @@ import org.json.JSONObject;
  */
 public class BerichtUtil {
 	
-	//wordt gebruikt om transacties te sturen
+	//Wordt gebruikt om transacties te sturen. De transactie wordt met de BinaireCodec
+	//gecodeerd en als base64 in het bericht gezet.
 	public static JSONObject maakTransactieBericht(Transactie transactie) {
 		JSONObject bericht = new JSONObject();
 		bericht.put("soort", "transactie");
-		bericht.put("transactiejson", transactie.toJSON().toString());
+		bericht.put("transactie", DatatypeConverter.printBase64Binary(BinaireCodec.codeerTransactie(transactie)));
 		return bericht;
 	}
 	
-	//dit type bericht wordt gebruikt om blokken te sturen
+	//Dit type bericht wordt gebruikt om blokken te sturen. Het blok wordt met de BinaireCodec
+	//gecodeerd en als base64 in het bericht gezet.
 	public static JSONObject maakBlokBericht(Blok blok) {
 		JSONObject bericht = new JSONObject();
 		bericht.put("soort", "blok");
-		bericht.put("blokjson", blok.toJSON().toString());
+		bericht.put("blok", DatatypeConverter.printBase64Binary(BinaireCodec.codeerBlok(blok)));
+		return bericht;
+	}
+	
+	//Lees de transactie uit een transactiebericht.
+	//Gooit een IllegalArgumentException als het bericht geen geldige transactie bevat.
+	public static Transactie leesTransactie(JSONObject bericht) {
+		return BinaireCodec.decodeerTransactie(DatatypeConverter.parseBase64Binary(bericht.getString("transactie")));
+	}
+	
+	//Lees het blok uit een blokbericht.
+	//Gooit een IllegalArgumentException als het bericht geen geldig blok bevat.
+	public static Blok leesBlok(JSONObject bericht) {
+		return BinaireCodec.decodeerBlok(DatatypeConverter.parseBase64Binary(bericht.getString("blok")));
+	}
+	
+	//Een compactblokbericht bevat een nieuw blok waarin de transacties (behalve de coinbase-
+	//transactie) alleen met een korte ID staan (zie CompactBlok).
+	public static JSONObject maakCompactBlokBericht(CompactBlok compactBlok) {
+		JSONObject bericht = new JSONObject();
+		bericht.put("soort", "compactblok");
+		bericht.put("blok", DatatypeConverter.printBase64Binary(BinaireCodec.codeerCompactBlok(compactBlok)));
+		return bericht;
+	}
+	
+	//Lees het CompactBlok uit een compactblokbericht.
+	//Gooit een IllegalArgumentException als het bericht geen geldig CompactBlok bevat.
+	public static CompactBlok leesCompactBlok(JSONObject bericht) {
+		return BinaireCodec.decodeerCompactBlok(DatatypeConverter.parseBase64Binary(bericht.getString("blok")));
+	}
+	
+	//Een getbloktxbericht vraagt de transacties van een blok op die ontbraken bij het opbouwen
+	//van een CompactBlok. De indexen zijn de plaatsen van de transacties in het blok.
+	public static JSONObject maakGetBlokTxBericht(String blokHash, List<Integer> indexen) {
+		JSONObject bericht = new JSONObject();
+		bericht.put("soort", "getbloktx");
+		bericht.put("blok", blokHash);
+		bericht.put("indexen", new JSONArray(indexen));
+		return bericht;
+	}
+	
+	//Een bloktxbericht is het antwoord op een getbloktxbericht en bevat de gevraagde transacties,
+	//in dezelfde volgorde als de indexen.
+	public static JSONObject maakBlokTxBericht(String blokHash, List<Integer> indexen, List<Transactie> transacties) {
+		JSONArray txArray = new JSONArray();
+		for (Transactie transactie : transacties) {
+			txArray.put(DatatypeConverter.printBase64Binary(BinaireCodec.codeerTransactie(transactie)));
+		}
+		
+		JSONObject bericht = new JSONObject();
+		bericht.put("soort", "bloktx");
+		bericht.put("blok", blokHash);
+		bericht.put("indexen", new JSONArray(indexen));
+		bericht.put("transacties", txArray);
+		return bericht;
+	}
+	
+	//Lees de indexen uit een getbloktx- of bloktxbericht.
+	public static ArrayList<Integer> leesIndexen(JSONObject bericht) {
+		JSONArray indexArray = bericht.getJSONArray("indexen");
+		ArrayList<Integer> indexen = new ArrayList<Integer>();
+		for (int i=0; i<indexArray.length(); i++) {
+			indexen.add(indexArray.getInt(i));
+		}
+		return indexen;
+	}
+	
+	//Lees de transacties uit een bloktxbericht.
+	//Gooit een IllegalArgumentException als het bericht een ongeldige transactie bevat.
+	public static ArrayList<Transactie> leesBlokTransacties(JSONObject bericht) {
+		JSONArray txArray = bericht.getJSONArray("transacties");
+		ArrayList<Transactie> transacties = new ArrayList<Transactie>();
+		for (int i=0; i<txArray.length(); i++) {
+			transacties.add(BinaireCodec.decodeerTransactie(DatatypeConverter.parseBase64Binary(txArray.getString(i))));
+		}
+		return transacties;
+	}
+	
+	//Een versiebericht is het eerste bericht dat over een verbinding gestuurd wordt. Het bevat 
+	//de compressiemethoden die deze node kan lezen, de poort waarop de node luistert (0 als de
+	//node geen verbindingen accepteert) en een willekeurige ID van de node, waarmee een 
+	//verbinding met de node zelf herkend wordt. Wordt door Network verwerkt.
+	public static JSONObject maakVersieBericht(int luisterPoort, long knoopId) {
+		JSONObject bericht = new JSONObject();
+		bericht.put("soort", "versie");
+		bericht.put("versie", 1);
+		bericht.put("compressie", new JSONArray(Collections.singletonList("deflate")));
+		bericht.put("poort", luisterPoort);
+		bericht.put("knoop", knoopId);
+		return bericht;
+	}
+	
+	//Lees de poort waarop een peer luistert uit een versiebericht (0 als de peer geen 
+	//verbindingen accepteert).
+	public static int leesLuisterPoort(JSONObject bericht) {
+		int poort = bericht.optInt("poort", 0);
+		return (poort > 0 && poort <= 65535) ? poort : 0;
+	}
+	
+	//Lees de ID van de node uit een versiebericht.
+	public static long leesKnoopId(JSONObject bericht) {
+		return bericht.optLong("knoop", 0);
+	}
+	
+	//Een pingbericht wordt regelmatig naar elke peer gestuurd om de latentie te meten. De peer
+	//antwoordt direct met een pongbericht met dezelfde nonce. Wordt door Network verwerkt.
+	public static JSONObject maakPingBericht(long nonce) {
+		JSONObject bericht = new JSONObject();
+		bericht.put("soort", "ping");
+		bericht.put("nonce", nonce);
+		return bericht;
+	}
+	
+	public static JSONObject maakPongBericht(long nonce) {
+		JSONObject bericht = new JSONObject();
+		bericht.put("soort", "pong");
+		bericht.put("nonce", nonce);
+		return bericht;
+	}
+	
+	//Lees de nonce uit een ping- of pongbericht.
+	public static long leesNonce(JSONObject bericht) {
+		return bericht.getLong("nonce");
+	}
+	
+	//Met een getadressenbericht vraagt een node een peer om adressen van andere nodes.
+	public static JSONObject maakGetAdressenBericht() {
+		JSONObject bericht = new JSONObject();
+		bericht.put("soort", "getadressen");
+		return bericht;
+	}
+	
+	//Een adressenbericht bevat adressen van nodes (in de vorm "ip:poort") waarmee een node 
+	//kan verbinden. Het is het antwoord op een getadressenbericht.
+	public static JSONObject maakAdressenBericht(Collection<String> adressen) {
+		JSONObject bericht = new JSONObject();
+		bericht.put("soort", "adressen");
+		bericht.put("adressen", new JSONArray(adressen));
 		return bericht;
 	}
 	
+	//Lees de adressen uit een adressenbericht.
+	public static ArrayList<String> leesAdressen(JSONObject bericht) {
+		return leesStrings(bericht.getJSONArray("adressen"));
+	}
+	
+	//Lees de compressiemethoden uit een versiebericht.
+	public static ArrayList<String> leesCompressie(JSONObject bericht) {
+		JSONArray array = bericht.optJSONArray("compressie");
+		if (array == null) {
+			return new ArrayList<String>();
+		}
+		return leesStrings(array);
+	}
+	
 	//Een blokhoogtebericht bevat de blokhoogte van de blockchain van een peer.
 	//Blokhoogteberichten worden aan het begin van de verbinding verstuurd zodat
 	//peers van elkaar weten wie van de twee de meeste blokken heeft. 
@@ -39,14 +200,129 @@ public class BerichtUtil {
 		return bericht;
 	}
 	
-	//Een blockchainbericht bevat de hele blockchain, en wordt gestuurd naar
-	//nodes die achter liggen op de rest van het netwerk.
-	public static JSONObject maakBlockchainBericht(String blockchain) {
+	//Een stopbericht wordt niet verstuurd, maar alleen in de eigen berichtenqueue gezet om
+	//de main thread te laten stoppen.
+	public static JSONObject maakStopBericht() {
+		JSONObject bericht = new JSONObject();
+		bericht.put("soort", "stop");
+		return bericht;
+	}
+	
+	//Een peerverbondenbericht wordt niet verstuurd, maar door Main in de eigen berichtenqueue
+	//gezet (met de nieuwe peer als afzender), zodat een nieuwe peer op de main thread wordt verwerkt.
+	public static JSONObject maakPeerVerbondenBericht() {
+		JSONObject bericht = new JSONObject();
+		bericht.put("soort", "peerverbonden");
+		return bericht;
+	}
+	
+	//Een peerverbrokenbericht wordt niet verstuurd, maar door Main in de eigen berichtenqueue
+	//gezet (met de peer als afzender), zodat een verbroken verbinding op de main thread wordt verwerkt.
+	public static JSONObject maakPeerVerbrokenBericht() {
+		JSONObject bericht = new JSONObject();
+		bericht.put("soort", "peerverbroken");
+		return bericht;
+	}
+	
+	/**
+	 * @param soort	De soort van een bericht.
+	 * @return True als berichten van deze soort alleen door deze node zelf in de berichtenqueue
+	 * 		   gezet mogen worden (en dus niet van een peer mogen komen).
+	 */
+	public static boolean isIntern(String soort) {
+		return soort.equals("stop") || soort.equals("peerverbonden") || soort.equals("peerverbroken");
+	}
+	
+	//Een getheadersbericht vraagt een peer om de headers van de blokken die volgen op het laatste
+	//blok uit de locator dat in de hoofdketen van de peer zit (zie BlockchainManager.maakBlokLocator()).
+	public static JSONObject maakGetHeadersBericht(List<String> locator) {
+		JSONObject bericht = new JSONObject();
+		bericht.put("soort", "getheaders");
+		bericht.put("locator", new JSONArray(locator));
+		return bericht;
+	}
+	
+	//Een headersbericht is het antwoord op een getheadersbericht. De headers worden met de 
+	//BinaireCodec gecodeerd en als base64 in het bericht gezet.
+	public static JSONObject maakHeadersBericht(List<BlokHeader> headers) {
+		JSONArray headerArray = new JSONArray();
+		for (BlokHeader header : headers) {
+			headerArray.put(DatatypeConverter.printBase64Binary(BinaireCodec.codeerHeader(header)));
+		}
+		
 		JSONObject bericht = new JSONObject();
-		bericht.put("soort", "blockchain");
-		bericht.put("blockchain", blockchain);
+		bericht.put("soort", "headers");
+		bericht.put("headers", headerArray);
 		return bericht;
 	}
 	
+	//Een getblokkenbericht vraagt een peer om de blokken met de gegeven hashes. De peer stuurt
+	//elk blok dat hij heeft terug in een eigen blokbericht, in dezelfde volgorde.
+	public static JSONObject maakGetBlokkenBericht(Collection<String> hashes) {
+		JSONObject bericht = new JSONObject();
+		bericht.put("soort", "getblokken");
+		bericht.put("hashes", new JSONArray(hashes));
+		return bericht;
+	}
+	
+	//Een invbericht kondigt transacties en blokken aan met alleen hun hash. Een peer die een
+	//transactie of blok nog niet heeft, vraagt het op met een getdatabericht.
+	public static JSONObject maakInvBericht(Collection<String> transactieHashes, Collection<String> blokHashes) {
+		JSONObject bericht = new JSONObject();
+		bericht.put("soort", "inv");
+		bericht.put("transacties", new JSONArray(transactieHashes));
+		bericht.put("blokken", new JSONArray(blokHashes));
+		return bericht;
+	}
+	
+	//Een getdatabericht vraagt aangekondigde transacties en blokken op. De peer stuurt elke
+	//transactie en elk blok terug in een eigen transactie- of blokbericht.
+	public static JSONObject maakGetDataBericht(Collection<String> transactieHashes, Collection<String> blokHashes) {
+		JSONObject bericht = new JSONObject();
+		bericht.put("soort", "getdata");
+		bericht.put("transacties", new JSONArray(transactieHashes));
+		bericht.put("blokken", new JSONArray(blokHashes));
+		return bericht;
+	}
+	
+	//Lees de transactiehashes uit een inv- of getdatabericht.
+	public static ArrayList<String> leesTransactieHashes(JSONObject bericht) {
+		return leesStrings(bericht.getJSONArray("transacties"));
+	}
+	
+	//Lees de blokhashes uit een inv- of getdatabericht.
+	public static ArrayList<String> leesBlokHashes(JSONObject bericht) {
+		return leesStrings(bericht.getJSONArray("blokken"));
+	}
+	
+	//Lees de locator uit een getheadersbericht.
+	public static ArrayList<String> leesLocator(JSONObject bericht) {
+		return leesStrings(bericht.getJSONArray("locator"));
+	}
+	
+	//Lees de headers uit een headersbericht.
+	//Gooit een IllegalArgumentException als het bericht een ongeldige header bevat.
+	public static ArrayList<BlokHeader> leesHeaders(JSONObject bericht) {
+		JSONArray headerArray = bericht.getJSONArray("headers");
+		ArrayList<BlokHeader> headers = new ArrayList<BlokHeader>();
+		for (int i=0; i<headerArray.length(); i++) {
+			headers.add(BinaireCodec.decodeerHeader(DatatypeConverter.parseBase64Binary(headerArray.getString(i))));
+		}
+		return headers;
+	}
+	
+	//Lees de hashes uit een getblokkenbericht.
+	public static ArrayList<String> leesHashes(JSONObject bericht) {
+		return leesStrings(bericht.getJSONArray("hashes"));
+	}
+	
+	private static ArrayList<String> leesStrings(JSONArray array) {
+		ArrayList<String> strings = new ArrayList<String>();
+		for (int i=0; i<array.length(); i++) {
+			strings.add(array.getString(i));
+		}
+		return strings;
+	}
+	
 
 }
@@ -0,0 +1,60 @@
+package nl.apkbaadjou.grotiuscoin;
+import java.util.HashMap;
+
+import org.json.JSONException;
+
+
+/**
+ * De BerichtVerdeler stuurt elk bericht door naar de BerichtHandler die voor de soort van het 
+ * bericht is geregistreerd.
+ *
+ */
+public class BerichtVerdeler {
+	
+	/**
+	 * De geregistreerde handlers, met de soort van het bericht als sleutel.
+	 */
+	private HashMap<String, BerichtHandler> handlers;
+	
+	public BerichtVerdeler() {
+		handlers = new HashMap<String, BerichtHandler>();
+	}
+	
+	/**
+	 * Registreer de handler voor een soort bericht. Een eerder geregistreerde handler voor 
+	 * dezelfde soort wordt vervangen.
+	 * @param soort		De soort bericht (zie BerichtUtil).
+	 * @param handler	De handler die berichten van deze soort verwerkt.
+	 */
+	public void registreer(String soort, BerichtHandler handler) {
+		handlers.put(soort, handler);
+	}
+	
+	/**
+	 * Stuur een bericht door naar de handler die bij de soort van het bericht hoort.
+	 * Een RuntimeException in de handler stopt de verwerking van dit bericht, maar niet van de
+	 * volgende berichten; de verbinding met de afzender wordt verbroken.
+	 * @param bap	Het bericht en de afzender.
+	 */
+	public void verdeel(BerichtAfzenderPaar bap) {
+		try {
+			String soort = bap.bericht.getString("soort");
+			BerichtHandler handler = handlers.get(soort);
+			if (handler == null) {
+				System.out.println("Onbekende soort bericht: " + soort);
+				return;
+			}
+			handler.verwerkBericht(bap.bericht, bap.afzender);
+		} catch (JSONException e) {
+			//een peer heeft een bericht gestuurd waarin een veld ontbreekt
+			System.out.println("Ongeldig bericht ontvangen: " + e.getMessage());
+		} catch (RuntimeException e) {
+			System.out.println("Fout bij het verwerken van een bericht; bericht wordt overgeslagen");
+			e.printStackTrace();
+			if (bap.afzender != null) {
+				bap.afzender.verbreek();
+			}
+		}
+	}
+
+}
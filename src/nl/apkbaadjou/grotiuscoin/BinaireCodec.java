@@ -0,0 +1,454 @@
+package nl.apkbaadjou.grotiuscoin;
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import javax.xml.bind.DatatypeConverter;
+
+
+/**
+ * De BinaireCodec zet blokken, blokheaders, compacte blokken en transacties om naar een compact binair formaat en terug.
+ * Het formaat wordt gebruikt door de BlokOpslag en in berichten tussen peers.
+ *
+ * Een gecodeerd blok of gecodeerde transactie begint met een versiebyte (VERSIE). Daarna volgen
+ * de velden:
+ * 		-Gehele getallen worden als varint opgeslagen (7 bits per byte, het hoogste bit geeft aan
+ * 		 of er nog een byte volgt). Getallen die negatief kunnen zijn worden eerst met zigzag
+ * 		 omgezet, zodat kleine negatieve getallen ook weinig bytes kosten. De nonce is willekeurig
+ * 		 en wordt daarom als vaste 4 bytes opgeslagen.
+ * 		-Strings beginnen met een byte die aangeeft hoe de string is opgeslagen:
+ * 			STRING_HASH:		een hash of target (64 hexadecimale hoofdletters) als 32 bytes
+ * 			STRING_GETAL:		een sleutel of handtekening (hexadecimale notatie van een BigInteger,
+ * 								zoals de Wallet die maakt) als de bytes van de BigInteger
+ * 			STRING_TEKST:		elke andere string als UTF-8
+ * 		 Een string wordt alleen in binaire vorm opgeslagen als het decoderen exact dezelfde
+ * 		 string oplevert. De hashes van blokken en transacties veranderen dus niet door het
+ * 		 coderen.
+ *
+ * Ongeldige data (bijvoorbeeld van een peer) leidt tot een IllegalArgumentException.
+ *
+ */
+public class BinaireCodec {
+
+	/**
+	 * Versie van het binaire formaat.
+	 */
+	public static final byte VERSIE = 1;
+
+	private static final byte STRING_NULL = 0;
+	private static final byte STRING_HASH = 1;
+	private static final byte STRING_GETAL = 2;
+	private static final byte STRING_TEKST = 3;
+
+	/**
+	 * Zet een blok om naar het binaire formaat.
+	 * @param blok	Het blok dat gecodeerd moet worden.
+	 * @return Het gecodeerde blok.
+	 */
+	public static byte[] codeerBlok(Blok blok) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(VERSIE);
+		schrijfString(out, blok.getVorigeBlokHash());
+		schrijfVarint(out, zigzag(blok.getTimestamp()));
+		schrijfInt(out, blok.getNonce());
+		schrijfString(out, blok.getTarget());
+
+		schrijfVarint(out, blok.getTransacties().size());
+		for (Transactie transactie : blok.getTransacties()) {
+			schrijfTransactie(out, transactie);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Zet een blok in het binaire formaat om naar een Blok.
+	 * @param data	Het gecodeerde blok.
+	 * @return Het blok.
+	 */
+	public static Blok decodeerBlok(byte[] data) {
+		try {
+			ByteBuffer in = ByteBuffer.wrap(data);
+			controleerVersie(in);
+
+			Blok blok = new Blok(leesVerplichteString(in, "vorigeBlokHash"), unzigzag(leesVarint(in)));
+			blok.setNonce(in.getInt());
+			blok.setTarget(leesVerplichteString(in, "target"));
+
+			long aantalTransacties = leesVarint(in);
+			for (long i=0; i<aantalTransacties; i++) {
+				blok.voegTransactieToe(leesTransactie(in));
+			}
+
+			controleerEinde(in);
+			return blok;
+		} catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException("Blok is onvolledig", e);
+		}
+	}
+
+	/**
+	 * Zet een transactie om naar het binaire formaat.
+	 * @param transactie	De transactie die gecodeerd moet worden.
+	 * @return De gecodeerde transactie.
+	 */
+	public static byte[] codeerTransactie(Transactie transactie) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(VERSIE);
+		schrijfTransactie(out, transactie);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Zet een transactie in het binaire formaat om naar een Transactie.
+	 * @param data	De gecodeerde transactie.
+	 * @return De transactie.
+	 */
+	public static Transactie decodeerTransactie(byte[] data) {
+		try {
+			ByteBuffer in = ByteBuffer.wrap(data);
+			controleerVersie(in);
+			Transactie transactie = leesTransactie(in);
+			controleerEinde(in);
+			return transactie;
+		} catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException("Transactie is onvolledig", e);
+		}
+	}
+
+	/**
+	 * Zet een BlokHeader om naar het binaire formaat.
+	 * @param header	De header die gecodeerd moet worden.
+	 * @return De gecodeerde header.
+	 */
+	public static byte[] codeerHeader(BlokHeader header) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(VERSIE);
+		schrijfString(out, header.getVorigeBlokHash());
+		schrijfVarint(out, zigzag(header.getTimestamp()));
+		schrijfInt(out, header.getNonce());
+		schrijfString(out, header.getTarget());
+
+		schrijfVarint(out, header.getAantalTransacties());
+		for (int i=0; i<header.getAantalTransacties(); i++) {
+			schrijfString(out, header.getTransactieHash(i));
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Zet een BlokHeader in het binaire formaat om naar een BlokHeader.
+	 * @param data	De gecodeerde header.
+	 * @return De header.
+	 */
+	public static BlokHeader decodeerHeader(byte[] data) {
+		try {
+			ByteBuffer in = ByteBuffer.wrap(data);
+			controleerVersie(in);
+
+			String vorigeBlokHash = leesString(in);
+			long timestamp = unzigzag(leesVarint(in));
+			int nonce = in.getInt();
+			String target = leesString(in);
+
+			long aantalTransacties = leesVarint(in);
+			if (aantalTransacties > in.remaining()) {
+				throw new IllegalArgumentException("Aantal transacties valt buiten de data: " + aantalTransacties);
+			}
+			String[] transactieHashes = new String[(int) aantalTransacties];
+			for (int i=0; i<transactieHashes.length; i++) {
+				transactieHashes[i] = leesVerplichteString(in, "transactieHash");
+			}
+
+			controleerEinde(in);
+			if (vorigeBlokHash == null || target == null) {
+				throw new IllegalArgumentException("Header is onvolledig");
+			}
+			return new BlokHeader(vorigeBlokHash, timestamp, nonce, target, transactieHashes);
+		} catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException("Header is onvolledig", e);
+		}
+	}
+
+	/**
+	 * Zet een CompactBlok om naar het binaire formaat. De korte ID's worden als 6 bytes opgeslagen.
+	 * @param compactBlok	Het CompactBlok dat gecodeerd moet worden.
+	 * @return Het gecodeerde CompactBlok.
+	 */
+	public static byte[] codeerCompactBlok(CompactBlok compactBlok) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(VERSIE);
+		schrijfString(out, compactBlok.getHash());
+		schrijfString(out, compactBlok.getVorigeBlokHash());
+		schrijfVarint(out, zigzag(compactBlok.getTimestamp()));
+		schrijfInt(out, compactBlok.getNonce());
+		schrijfString(out, compactBlok.getTarget());
+		schrijfInt(out, (int) (compactBlok.getSalt() >>> 32));
+		schrijfInt(out, (int) compactBlok.getSalt());
+		schrijfTransactie(out, compactBlok.getCoinbase());
+
+		long[] kortIds = compactBlok.getKortIds();
+		schrijfVarint(out, kortIds.length);
+		for (long kortId : kortIds) {
+			for (int verschuiving = 40; verschuiving >= 0; verschuiving -= 8) {
+				out.write((int) (kortId >>> verschuiving));
+			}
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Zet een CompactBlok in het binaire formaat om naar een CompactBlok.
+	 * @param data	Het gecodeerde CompactBlok.
+	 * @return Het CompactBlok.
+	 */
+	public static CompactBlok decodeerCompactBlok(byte[] data) {
+		try {
+			ByteBuffer in = ByteBuffer.wrap(data);
+			controleerVersie(in);
+
+			String hash = leesString(in);
+			String vorigeBlokHash = leesString(in);
+			long timestamp = unzigzag(leesVarint(in));
+			int nonce = in.getInt();
+			String target = leesString(in);
+			long salt = in.getLong();
+			Transactie coinbase = leesTransactie(in);
+
+			long aantalKortIds = leesVarint(in);
+			if (aantalKortIds > in.remaining() / 6) {
+				throw new IllegalArgumentException("Aantal korte ID's valt buiten de data: " + aantalKortIds);
+			}
+			long[] kortIds = new long[(int) aantalKortIds];
+			for (int i=0; i<kortIds.length; i++) {
+				for (int j=0; j<6; j++) {
+					kortIds[i] = (kortIds[i] << 8) | (in.get() & 0xFF);
+				}
+			}
+
+			controleerEinde(in);
+			if (hash == null || vorigeBlokHash == null || target == null) {
+				throw new IllegalArgumentException("CompactBlok is onvolledig");
+			}
+			return new CompactBlok(hash, vorigeBlokHash, timestamp, nonce, target, salt, coinbase, kortIds);
+		} catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException("CompactBlok is onvolledig", e);
+		}
+	}
+
+	private static void schrijfTransactie(ByteArrayOutputStream out, Transactie transactie) {
+		schrijfVarint(out, transactie.getAantalInvoeren());
+		for (int i=0; i<transactie.getAantalInvoeren(); i++) {
+			Invoer invoer = transactie.getInvoer(i);
+			schrijfString(out, invoer.hashVorigeTransactie);
+			schrijfVarint(out, zigzag(invoer.uitvoerIndex));
+			schrijfString(out, invoer.handtekening);
+		}
+
+		schrijfVarint(out, transactie.getAantalUitvoeren());
+		for (int i=0; i<transactie.getAantalUitvoeren(); i++) {
+			Uitvoer uitvoer = transactie.getUitvoer(i);
+			schrijfVarint(out, zigzag(uitvoer.bedrag));
+			schrijfString(out, uitvoer.publiekeSleutel);
+		}
+	}
+
+	private static Transactie leesTransactie(ByteBuffer in) {
+		Transactie transactie = new Transactie();
+
+		long aantalInvoeren = leesVarint(in);
+		for (long i=0; i<aantalInvoeren; i++) {
+			Invoer invoer = new Invoer(leesVerplichteString(in, "hashVorigeTransactie"), leesInt(in));
+			//een invoer zonder handtekening is te coderen, maar wordt bij de controle afgekeurd
+			invoer.handtekening = leesString(in);
+			transactie.voegInvoerToe(invoer);
+		}
+
+		long aantalUitvoeren = leesVarint(in);
+		for (long i=0; i<aantalUitvoeren; i++) {
+			int bedrag = leesInt(in);
+			transactie.voegUitvoerToe(new Uitvoer(bedrag, leesVerplichteString(in, "publiekeSleutel")));
+		}
+
+		return transactie;
+	}
+
+	/**
+	 * Schrijf een string in de kleinste vorm waaruit exact dezelfde string terug te halen is.
+	 */
+	private static void schrijfString(ByteArrayOutputStream out, String string) {
+		if (string == null) {
+			out.write(STRING_NULL);
+			return;
+		}
+
+		if (isHash(string)) {
+			out.write(STRING_HASH);
+			byte[] bytes = DatatypeConverter.parseHexBinary(string);
+			out.write(bytes, 0, bytes.length);
+			return;
+		}
+
+		if (isGetal(string)) {
+			out.write(STRING_GETAL);
+			schrijfBytes(out, new BigInteger(string, 16).toByteArray());
+			return;
+		}
+
+		out.write(STRING_TEKST);
+		schrijfBytes(out, string.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String leesString(ByteBuffer in) {
+		byte soort = in.get();
+		switch (soort) {
+			case STRING_NULL:
+				return null;
+			case STRING_HASH:
+				byte[] hash = new byte[32];
+				in.get(hash);
+				return DatatypeConverter.printHexBinary(hash);
+			case STRING_GETAL:
+				byte[] getal = leesBytes(in);
+				if (getal.length == 0) {
+					throw new IllegalArgumentException("Leeg getal");
+				}
+				return new BigInteger(getal).toString(16);
+			case STRING_TEKST:
+				return new String(leesBytes(in), StandardCharsets.UTF_8);
+			default:
+				throw new IllegalArgumentException("Onbekende stringsoort: " + soort);
+		}
+	}
+
+	/**
+	 * Lees een string die niet null mag zijn.
+	 * @param veld	Naam van het veld (voor de foutmelding).
+	 */
+	private static String leesVerplichteString(ByteBuffer in, String veld) {
+		String string = leesString(in);
+		if (string == null) {
+			throw new IllegalArgumentException("Verplicht veld ontbreekt: " + veld);
+		}
+		return string;
+	}
+
+	/**
+	 * @return True als de string een hash is in de notatie van Util.getSha256Hash() (64
+	 * 		   hexadecimale hoofdletters).
+	 */
+	private static boolean isHash(String string) {
+		if (string.length() != 64) {
+			return false;
+		}
+		for (int i=0; i<string.length(); i++) {
+			char c = string.charAt(i);
+			if (!((c >= '0' && c <= '9') || (c >= 'A' && c <= 'F'))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return True als de string precies de notatie is die BigInteger.toString(16) maakt
+	 * 		   (kleine letters, geen voorloopnullen, eventueel een minteken).
+	 */
+	private static boolean isGetal(String string) {
+		int begin = string.startsWith("-") ? 1 : 0;
+		if (string.length() == begin) {
+			return false;
+		}
+		for (int i=begin; i<string.length(); i++) {
+			char c = string.charAt(i);
+			if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+				return false;
+			}
+		}
+
+		//geen voorloopnullen, en "-0" bestaat niet
+		if (string.charAt(begin) == '0') {
+			return string.equals("0");
+		}
+		return true;
+	}
+
+	private static void schrijfBytes(ByteArrayOutputStream out, byte[] bytes) {
+		schrijfVarint(out, bytes.length);
+		out.write(bytes, 0, bytes.length);
+	}
+
+	private static byte[] leesBytes(ByteBuffer in) {
+		long lengte = leesVarint(in);
+		if (lengte > in.remaining()) {
+			throw new IllegalArgumentException("Lengte valt buiten de data: " + lengte);
+		}
+		byte[] bytes = new byte[(int) lengte];
+		in.get(bytes);
+		return bytes;
+	}
+
+	private static void schrijfInt(ByteArrayOutputStream out, int waarde) {
+		out.write(waarde >>> 24);
+		out.write(waarde >>> 16);
+		out.write(waarde >>> 8);
+		out.write(waarde);
+	}
+
+	/**
+	 * Lees een int die met zigzag als varint is opgeslagen.
+	 */
+	private static int leesInt(ByteBuffer in) {
+		long waarde = unzigzag(leesVarint(in));
+		if (waarde < Integer.MIN_VALUE || waarde > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Getal is te groot: " + waarde);
+		}
+		return (int) waarde;
+	}
+
+	/**
+	 * Schrijf een niet-negatief getal (of een met zigzag omgezet getal) als varint.
+	 */
+	private static void schrijfVarint(ByteArrayOutputStream out, long waarde) {
+		while ((waarde & ~0x7FL) != 0) {
+			out.write((int) ((waarde & 0x7F) | 0x80));
+			waarde >>>= 7;
+		}
+		out.write((int) waarde);
+	}
+
+	private static long leesVarint(ByteBuffer in) {
+		long waarde = 0;
+		for (int verschuiving = 0; verschuiving < 64; verschuiving += 7) {
+			byte b = in.get();
+			waarde |= (long) (b & 0x7F) << verschuiving;
+			if ((b & 0x80) == 0) {
+				return waarde;
+			}
+		}
+		throw new IllegalArgumentException("Varint is te lang");
+	}
+
+	private static long zigzag(long waarde) {
+		return (waarde << 1) ^ (waarde >> 63);
+	}
+
+	private static long unzigzag(long waarde) {
+		return (waarde >>> 1) ^ -(waarde & 1);
+	}
+
+	private static void controleerVersie(ByteBuffer in) {
+		byte versie = in.get();
+		if (versie != VERSIE) {
+			throw new IllegalArgumentException("Onbekende versie: " + versie);
+		}
+	}
+
+	private static void controleerEinde(ByteBuffer in) {
+		if (in.hasRemaining()) {
+			throw new IllegalArgumentException("Onverwachte data na het einde");
+		}
+	}
+
+}
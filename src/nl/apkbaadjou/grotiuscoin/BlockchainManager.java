@@ -1,12 +1,21 @@
 package nl.apkbaadjou.grotiuscoin;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 
 import org.json.JSONObject;
 
@@ -14,25 +23,38 @@ import org.json.JSONObject;
 /**
  * Deze klasse is verantwoordelijk voor het beheren van de blockchain.
  * 
- * De blockchain wordt opgeslagen in een bestand op de harde schijf. Het bestand heeft de volgende
- * opbouw:
- * 		-Aan het begin staat op elke regel een blok in JSON-formaat. Deze blokken zitten in de
- * 		 hoofdketen, en zijn gerangschikt op blokhoogte.
- * 		-Vervolgens komt een regel met de tekst "zijketen"
- * 		-Hierna staat op elke regel een blok in de zijketen (ook in JSON-formaat). Deze blokken
- * 		 kunnen in willekeurige volgorde staan.
+ * De blokken worden opgeslagen in een BlokOpslag. Elk blok dat aan de blockchain wordt toegevoegd
+ * (in de hoofdketen of in een zijketen) wordt direct achteraan de BlokOpslag toegevoegd; er wordt 
+ * nooit een heel bestand herschreven. Bij het opstarten worden de blokken in de volgorde van 
+ * toevoegen opnieuw gekoppeld, waardoor dezelfde keten weer de hoofdketen wordt.
  * 
  * Het eerste blok heet het 'genesisblok'. Dit blok staat in het programma vastgelegd en kan niet worden
- * gewijzigd. De eerste regel van het blockchainbestand bevat altijd het genesisblok.
+ * gewijzigd. Het genesisblok is altijd het eerste blok in de BlokOpslag.
+ * 
+ * De publieke methoden van deze klasse kunnen door meerdere threads worden aangeroepen, en zijn
+ * daarom synchronized. Het minen gebeurt op de threads van de MinerPool, die alleen met een kopie
+ * van het eigenBlok werken.
  *
  */
 public class BlockchainManager {
 	
 	/**
-	 * Pad naar het blockchainbestand.
+	 * Pad naar het blockchainbestand van eerdere versies. Als er nog geen BlokOpslag is, worden 
+	 * de blokken uit dit bestand overgenomen.
 	 */
 	public static final String BLOCKCHAIN_PATH = Main.DIRECTORY + File.separator + "blockchain";
 	
+	/**
+	 * Pad naar het bestand waarin de UTXOSet bij het afsluiten wordt opgeslagen.
+	 */
+	public static final String UTXO_PATH = Main.DIRECTORY + File.separator + "utxo";
+	
+	/**
+	 * Het aantal blokken aan het einde van de hoofdketen waarvan de BlokUndo bewaard wordt. Bij
+	 * een diepere reorganisatie wordt de UTXOSet opnieuw opgebouwd.
+	 */
+	public static final int AANTAL_BLOKKEN_MET_UNDO = 100;
+	
 	/**
 	 * Maximale waarde die de target mag hebben.
 	 */
@@ -59,14 +81,16 @@ public class BlockchainManager {
 	private BlokIndex genesisBlok;
 	
 	/**
-	 * Verwijst naar het laatste blok in de langste keten van de blockchain.
+	 * Verwijst naar het laatste blok in de keten met het meeste werk van de blockchain.
 	 */
 	private BlokIndex besteBlok;
 	
 	/**
-	 * Blokhoogte van het laatste blok in de langste keten van de blockchain.
+	 * De blokken in de hoofdketen, gerangschikt op blokhoogte: hoofdketen.get(h) is het blok
+	 * met blokhoogte h. Hierdoor kan een blok in de hoofdketen op blokhoogte worden opgezocht
+	 * zonder de verwijzingen tussen de BlokIndexen te volgen.
 	 */
-	private int besteBlokhoogte;
+	private ArrayList<BlokIndex> hoofdketen;
 	
 	/**
 	 * Het blok dat deze node probeert te genereren.
@@ -86,29 +110,56 @@ public class BlockchainManager {
 	private ArrayList<BlokIndex> blokkenZijketen;
 	
 	/**
-	 * Deze lijst bevat geldige transacties die nog niet in een blok zijn opgenomen.
+	 * Bevat de BlokIndex van elk blok in de blockchain (hoofdketen en zijketens), 
+	 * met de hash van het blok als sleutel. Hierdoor kan een blok opgezocht worden
+	 * zonder door de hele blockchain te lopen.
+	 */
+	private HashMap<String, BlokIndex> blokIndexen;
+	
+	/**
+	 * Deze pool bevat geldige transacties die nog niet in een blok zijn opgenomen.
+	 */
+	private TransactiePool transactiePool;
+	
+	/**
+	 * Bevat alle niet-uitgegeven transactie-uitvoeren in de hoofdketen.
+	 */
+	private UTXOSet utxoSet;
+	
+	/**
+	 * Slaat de blokken op de harde schijf op.
 	 */
-	private ArrayList<Transactie> transactiePool;
+	private BlokOpslag blokOpslag;
 	
 	/**
 	 * Publieke sleutel van degene die de coinbasebeloning moet ontvangen als een blok gegenereerd wordt.
 	 */
 	private String coinbaseSleutel;
 	
+	/**
+	 * Mijnt het eigenBlok op meerdere threads.
+	 */
+	private MinerPool minerPool;
+	
 	/**
 	 * @param coinbaseSleutel 	Publieke sleutel van degene die de coinbasebeloning moet ontvangen als een blok gegenereerd wordt.
 	 */
 	public BlockchainManager(String coinbaseSleutel) {
 		weesblokken = new ArrayList<Blok>();
 		blokkenZijketen = new ArrayList<BlokIndex>();
-		transactiePool = new ArrayList<Transactie>();
+		blokIndexen = new HashMap<String, BlokIndex>();
+		hoofdketen = new ArrayList<BlokIndex>();
+		transactiePool = new TransactiePool();
+		utxoSet = new UTXOSet();
+		blokOpslag = new BlokOpslag();
 		this.coinbaseSleutel = coinbaseSleutel;
+		minerPool = new MinerPool(MinerPool.AANTAL_MINER_THREADS);
 	}
 	
 	/**
 	 * Initialiseer de blockchain.
 	 */
-	public void initBlockchain() {
+	public synchronized void initBlockchain() {
 		
 		//maak een directory aan voor de blockchain (als dat niet al eerder is gedaan)
 		File file = new File(Main.DIRECTORY);
@@ -116,151 +167,213 @@ public class BlockchainManager {
 			file.mkdir();
 		}
 		
-		//maak een blockchainbestand (als dat niet al eerder is gedaan)
-		file = new File(BLOCKCHAIN_PATH);
-		FileWriter writer = null;
-		if (!file.exists()) {
-			try {
-	
-				writer = new FileWriter(file);
-				
-				//voeg het genesisblok toe 
-				Blok genesisBlok = new Blok("0000000000000000000000000000000000000000000000000000000000000000", 0);
-				genesisBlok.setNonce(22106);
-				Transactie coinbaseTx = new Transactie();
-				coinbaseTx.voegUitvoerToe(new Uitvoer(5000, "00000000000000000000000000000000"));
-				Invoer in = new Invoer("0000000000000000000000000000000000000000000000000000000000000000", 0);
-				in.handtekening = "";
-				coinbaseTx.voegInvoerToe(in);
-				genesisBlok.voegTransactieToe(coinbaseTx);			
-				
-				writer.write(genesisBlok.toJSON().toString() + NEWLINE +
-							 "zijketen" + NEWLINE);
-			} catch (IOException e) {
-				e.printStackTrace();
-			} finally {
-				try {
-					if (writer != null) {
-						writer.close();
-					}
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
-		}
-		
-
-
-		//laad de blockchain in het geheugen
-		BufferedReader reader = null;
 		try {
-			reader = new BufferedReader(new FileReader(BLOCKCHAIN_PATH));
-			genesisBlok = null;
-			blokkenZijketen.clear();
+			blokOpslag.open();
 			
-			String line;
-			while (!(line = reader.readLine()).equals("zijketen")) {
-				
-				//hoofdketen
-				if (genesisBlok == null) {
-					//eerste blok
-					genesisBlok = new BlokIndex(new Blok(new JSONObject(line)), null, null);
-					besteBlok = genesisBlok;
-					besteBlokhoogte = 0;
-					continue;
+			if (blokOpslag.isLeeg()) {
+				File blockchainBestand = new File(BLOCKCHAIN_PATH);
+				if (blockchainBestand.exists()) {
+					//neem de blokken over uit het blockchainbestand van een eerdere versie
+					System.out.println("Zet blockchainbestand om naar blokbestand...");
+					BufferedReader reader = null;
+					try {
+						reader = new BufferedReader(new FileReader(blockchainBestand));
+						importeerBlokken(reader);
+					} finally {
+						if (reader != null) {
+							reader.close();
+						}
+					}
+				} else {
+					//voeg het genesisblok toe
+					blokOpslag.voegBlokToe(maakGenesisBlok());
 				}
-				
-				BlokIndex nieuweBlokIndex = new BlokIndex(new Blok(new JSONObject(line)), 
-														  besteBlok, null);
-				besteBlok.setVolgendeBlokIndex(nieuweBlokIndex);
-				besteBlok = nieuweBlokIndex;
-				besteBlokhoogte++;
-			}
-			
-			while ((line = reader.readLine()) != null) {
-				//zijketen
-				blokkenZijketen.add(new BlokIndex(new Blok(new JSONObject(line)),
-												  null, null));
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
-		} finally {
-			try {
-				if (reader != null) {
-					reader.close();
-				}
-			} catch (IOException e) {
-				e.printStackTrace();
+		}
+		
+		laadBlockchain();
+	}
+	
+	/**
+	 * Maak het genesisblok.
+	 * @return Het genesisblok.
+	 */
+	private Blok maakGenesisBlok() {
+		Blok genesisBlok = new Blok("0000000000000000000000000000000000000000000000000000000000000000", 0);
+		genesisBlok.setNonce(22106);
+		Transactie coinbaseTx = new Transactie();
+		coinbaseTx.voegUitvoerToe(new Uitvoer(5000, "00000000000000000000000000000000"));
+		Invoer in = new Invoer("0000000000000000000000000000000000000000000000000000000000000000", 0);
+		in.handtekening = "";
+		coinbaseTx.voegInvoerToe(in);
+		genesisBlok.voegTransactieToe(coinbaseTx);
+		return genesisBlok;
+	}
+	
+	/**
+	 * Sla de blokken uit een blockchain in het oude tekstformaat (elk blok als JSON op een eigen
+	 * regel, met een regel "zijketen" voor de blokken uit zijketens) op in de BlokOpslag. 
+	 * De hoofdketen wordt als eerste opgeslagen.
+	 * @param reader	Reader waarmee de blockchain gelezen wordt.
+	 * @throws IOException
+	 */
+	private void importeerBlokken(BufferedReader reader) throws IOException {
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if (line.isEmpty() || line.equals("zijketen")) {
+				continue;
 			}
+			blokOpslag.voegBlokToe(new Blok(new JSONObject(line)));
 		}
+	}
+	
+	/**
+	 * Laad de blokken uit de BlokOpslag in het geheugen, bouw de UTXOSet op en begin met minen.
+	 */
+	private void laadBlockchain() {
+		genesisBlok = null;
+		besteBlok = null;
+		blokkenZijketen.clear();
+		blokIndexen.clear();
+		hoofdketen.clear();
+		
+		//Blokken waarvan het ouderblok (nog) niet geladen is, met de hash van het ouderblok 
+		//als sleutel. Dit komt alleen voor bij blokken uit een geïmporteerde blockchain, waarin
+		//de zijketens in willekeurige volgorde staan.
+		HashMap<String, ArrayList<BlokLocatie>> wachtendeBlokken = new HashMap<String, ArrayList<BlokLocatie>>();
 		
-		//rangschik de BlokIndexen van de zijketens
-		for (BlokIndex blokIndex : blokkenZijketen) {
-			String vorigeHash = blokIndex.getBlok().getVorigeBlokHash();
+		//alleen de index wordt gelezen; de blokken zelf worden pas gelezen als ze nodig zijn
+		for (BlokLocatie locatie : blokOpslag.getLocaties()) {
 			
-			//zoek voor vorige BlokIndex in de zijketens
-			for (BlokIndex b : blokkenZijketen) {
-				if (b.getBlok().getHash().equals(vorigeHash)) {
-					blokIndex.setVorigeBlokIndex(b);
-					break;
+			if (genesisBlok == null) {
+				//het eerste blok is het genesisblok
+				genesisBlok = new BlokIndex(locatie, null, null);
+				besteBlok = genesisBlok;
+				hoofdketen.add(genesisBlok);
+				blokIndexen.put(locatie.getHash(), genesisBlok);
+				continue;
+			}
+			
+			if (blokIndexen.containsKey(locatie.getHash())) {
+				continue;
+			}
+			if (!blokIndexen.containsKey(locatie.getVorigeBlokHash())) {
+				ArrayList<BlokLocatie> kinderen = wachtendeBlokken.get(locatie.getVorigeBlokHash());
+				if (kinderen == null) {
+					kinderen = new ArrayList<BlokLocatie>();
+					wachtendeBlokken.put(locatie.getVorigeBlokHash(), kinderen);
 				}
+				kinderen.add(locatie);
+				continue;
 			}
 			
-			//Geen BlokIndex gevonden in de zijketens? Zoek dan in de hoofdketen.
-			if (blokIndex.getVorigeBlokIndex() == null) {
-				//begin te zoeken bij het beste blok en werk dan terug
-				BlokIndex b = besteBlok;
-				while (!b.getBlok().getVorigeBlokHash().equals(vorigeHash)) {
-					b = b.getVorigeBlokIndex();
+			//koppel het blok, en daarna de blokken die op dit blok wachtten
+			ArrayList<BlokLocatie> teKoppelen = new ArrayList<BlokLocatie>();
+			teKoppelen.add(locatie);
+			while (!teKoppelen.isEmpty()) {
+				BlokLocatie volgendeLocatie = teKoppelen.remove(teKoppelen.size()-1);
+				koppelOpgeslagenBlok(volgendeLocatie);
+				ArrayList<BlokLocatie> kinderen = wachtendeBlokken.remove(volgendeLocatie.getHash());
+				if (kinderen != null) {
+					teKoppelen.addAll(kinderen);
 				}
-				
-				blokIndex.setVorigeBlokIndex(b.getVorigeBlokIndex());
 			}
 		}
 		
-		//initialiseer eigenBlok
+		//Bepaal welke uitvoeren in de hoofdketen nog niet zijn uitgegeven. Als de UTXOSet bij
+		//het afsluiten is opgeslagen en de hoofdketen sindsdien niet is veranderd, hoeven de
+		//blokken niet opnieuw verwerkt te worden.
+		if (!laadUTXOSet()) {
+			herbouwUTXOSet();
+		}
+		
+		//initialiseer eigenBlok en begin met minen
 		initEigenBlok();
+		herstartMiner();
 	}
 	
 	/**
-	 * Probeer een blok te genereren.
-	 * @return Het gegenereerde blok of null (als er geen geldig blok gevonden is).
+	 * Koppel een blok uit de BlokOpslag aan de blockchain in het geheugen. Het blok wordt niet
+	 * opnieuw gecontroleerd. Het beste blok wordt op dezelfde manier bepaald als in voegBlokToe(),
+	 * zodat na het laden dezelfde keten de hoofdketen is als voor het afsluiten.
+	 * @param locatie	Locatie van het blok dat gekoppeld moet worden. Het ouderblok moet al gekoppeld zijn.
 	 */
-	public Blok mine() {
-
-		//voeg transacties uit transactiePool toe
-		for (Transactie tx : transactiePool) {
-			if (!eigenBlok.getTransacties().contains(tx)) {
-				eigenBlok.voegTransactieToe(tx);
-			}
+	private void koppelOpgeslagenBlok(BlokLocatie locatie) {
+		BlokIndex ouderBlokIndex = getBlokIndex(locatie.getVorigeBlokHash());
+		BlokIndex nieuweBlokIndex = new BlokIndex(locatie, ouderBlokIndex, null);
+		blokIndexen.put(locatie.getHash(), nieuweBlokIndex);
+		
+		if (ouderBlokIndex == besteBlok) {
+			//het blok verlengt de hoofdketen
+			ouderBlokIndex.setVolgendeBlokIndex(nieuweBlokIndex);
+			hoofdketen.add(nieuweBlokIndex);
+			besteBlok = nieuweBlokIndex;
+			return;
 		}
-		eigenBlok.setTimestamp(System.currentTimeMillis());
-		int nonce = 0;
 		
-		//probeer 50 ms lang een blok te genereren alvorens verder te gaan
-		while (System.currentTimeMillis() - eigenBlok.getTimestamp() < 50) {
-			eigenBlok.setNonce(nonce);
-			
-			if (eigenBlok.getHash().compareTo(eigenBlok.getTarget()) <= 0) {
-				//geldig blok gevonden
-				System.out.println("blok gevonden: " + eigenBlok.getHash() + "  JSON: " + eigenBlok.toJSON());
-				
-				//maak een nieuw eigenBlok en voeg het oude toe aan de blockchain
-				Blok oudeEigenBlok = eigenBlok;
-				boolean toegevoegd = voegBlokToe(oudeEigenBlok);
-				initEigenBlok();
-				if (toegevoegd) {
-					return oudeEigenBlok;
-				} else {
-					return null;
-				}
-			}
-			
-			nonce++;
+		blokkenZijketen.add(nieuweBlokIndex);
+		if (nieuweBlokIndex.getTotaalWerk().compareTo(besteBlok.getTotaalWerk()) > 0) {
+			//de zijketen bevat meer werk dan de hoofdketen
+			BlokIndex oudeBesteBlok = besteBlok;
+			besteBlok = nieuweBlokIndex;
+			wisselHoofdketen(nieuweBlokIndex, oudeBesteBlok);
 		}
+	}
+	
+	/**
+	 * Wacht tot de MinerPool een blok heeft gegenereerd. Het blok is dan nog niet aan de 
+	 * blockchain toegevoegd; dat gebeurt met verwerkGevondenBlok().
+	 * Deze methode is niet synchronized, zodat andere threads niet hoeven te wachten.
+	 * @return Het gegenereerde blok (of null als de thread onderbroken is).
+	 */
+	public Blok wachtOpGevondenBlok() {
+		return minerPool.wachtOpGevondenBlok();
+	}
+	
+	/**
+	 * Voeg een blok dat door de MinerPool is gegenereerd toe aan de blockchain.
+	 * @param gevondenBlok	Het gegenereerde blok (zie wachtOpGevondenBlok()).
+	 * @return True als het blok is toegevoegd, anders false.
+	 */
+	public synchronized boolean verwerkGevondenBlok(Blok gevondenBlok) {
+		System.out.println("blok gevonden: " + gevondenBlok.getHash());
+		boolean toegevoegd = voegBlokToe(gevondenBlok);
 		
-		//geen geldig blok gevonden
-		return null;
+		//De MinerPool stopt zodra er een blok gevonden is. Als het blok niet is toegevoegd, 
+		//is de miner nog niet herstart.
+		herstartMiner();
+		
+		return toegevoegd;
+	}
+	
+	/**
+	 * Voeg de transacties uit de transactiePool toe aan het eigenBlok en laat de MinerPool 
+	 * opnieuw beginnen met het minen van het eigenBlok. Transacties met een onbevestigde ouder
+	 * worden overgeslagen: een blok mag alleen uitvoeren uitgeven die al in de blockchain zitten.
+	 * Zodra de ouder in een blok zit, kan het kind in het volgende blok.
+	 * Moet aangeroepen worden als het beste blok of de transactiePool verandert.
+	 */
+	private void herstartMiner() {
+		HashSet<String> inEigenBlok = new HashSet<String>();
+		for (Transactie tx : eigenBlok.getTransacties()) {
+			inEigenBlok.add(tx.getHash());
+		}
+		for (Transactie tx : transactiePool.getTransacties()) {
+			if (!inEigenBlok.contains(tx.getHash()) && transactiePool.getOuders(tx.getHash()).isEmpty()) {
+				eigenBlok.voegTransactieToe(tx);
+			}
+		}
+		eigenBlok.setTimestamp(System.currentTimeMillis());
+		minerPool.start(eigenBlok);
+	}
+	
+	/**
+	 * Stop met minen. 
+	 */
+	public void stopMiner() {
+		minerPool.stop();
 	}
 
 	/**
@@ -278,27 +391,7 @@ public class BlockchainManager {
 	 * @return BlokIndex van het gezochte blok (of null als het blok niet gevonden is).
 	 */
 	private BlokIndex getBlokIndex(String blokHash) {
-		//zoek in de hoofdketen
-		if (genesisBlok.getBlok().getHash().equals(blokHash)) {
-			return genesisBlok;
-		}
-		BlokIndex b = genesisBlok;
-		while (b.getVolgendeBlokIndex() != null) {
-			b = b.getVolgendeBlokIndex();
-			if (b.getBlok().getHash().equals(blokHash)) {
-				return b;
-			}
-		}	
-		
-		//Niets gevonden in de hoofdketen? Zoek in de zijketens
-		for (BlokIndex blokIndex : blokkenZijketen) {
-			if (blokIndex.getBlok().getHash().equals(blokHash)) {
-				return blokIndex;
-			}
-		}
-		
-		//niets gevonden
-		return null;
+		return blokIndexen.get(blokHash);
 	}
 	
 	/**
@@ -306,7 +399,7 @@ public class BlockchainManager {
 	 * @param blok	Het blok dat moet worden toegevoegd.
 	 * @return True als het blok wordt toegevoegd, anders false.
 	 */
-	public boolean voegBlokToe(Blok blok) {
+	public synchronized boolean voegBlokToe(Blok blok) {
 		
 		//controleer of de hash klopt
 		if (blok.getHash().compareTo(blok.getTarget()) > 0 ||
@@ -329,15 +422,7 @@ public class BlockchainManager {
 			weesblokken.add(blok);
 			
 			System.out.println("blok heeft geen ouder");
-			System.out.println("	beste blok: " + besteBlok.getBlok().toJSON());
-			System.out.println("	genesisblok: " + genesisBlok.getBlok().toJSON());
-			System.out.println("	hoofdketen:");
-			BlokIndex index = genesisBlok;
-			System.out.println("	" + genesisBlok.getBlok().toJSON());
-			while (!(index.getVolgendeBlokIndex() == null)) {
-				index = index.getVolgendeBlokIndex();
-				System.out.println("	" + index.getBlok().toJSON());
-			}
+			System.out.println("	beste blok: " + besteBlok.getHash() + " (blokhoogte " + besteBlok.getBlokhoogte() + ")");
 			return false;
 		}
 		
@@ -367,10 +452,11 @@ public class BlockchainManager {
 			System.out.println("Blok bevat coinbasetransactie met onjuiste aantal invoeren of uitvoeren");
 			return false;
 		}
-		if (coinbaseTx.getUitvoer(0).bedrag != getCoinbaseUitbetaling(bepaalBlokhoogte(getBlokIndex(blok.getVorigeBlokHash()))+1)) {
+		int blokhoogte = getBlokIndex(blok.getVorigeBlokHash()).getBlokhoogte() + 1;
+		if (coinbaseTx.getUitvoer(0).bedrag != getCoinbaseUitbetaling(blokhoogte)) {
 			System.out.println("Blok bevat onjuiste coinbasebeloning");
 			System.out.println("bedrag: " + coinbaseTx.getUitvoer(0).bedrag);
-			System.out.println("coinbaseUitbetaling: " + getCoinbaseUitbetaling(bepaalBlokhoogte(getBlokIndex(blok.getVorigeBlokHash()))+1));
+			System.out.println("coinbaseUitbetaling: " + getCoinbaseUitbetaling(blokhoogte));
 			return false;
 		}
 		
@@ -380,10 +466,22 @@ public class BlockchainManager {
 			return false;
 		}
 	
+		//sla het blok direct op, zodat het ook na een crash bewaard blijft
+		BlokLocatie locatie;
+		try {
+			locatie = blokOpslag.voegBlokToe(blok);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.out.println("Blok kan niet worden opgeslagen");
+			return false;
+		}
+		
 		//voeg het blok toe aan de blockchain
 		BlokIndex ouderBlokIndex = getBlokIndex(blok.getVorigeBlokHash());
-		BlokIndex nieuweBlokIndex = new BlokIndex(blok, ouderBlokIndex, null);
-		if (!ouderBlokIndex.getBlok().equals(besteBlok.getBlok())) {
+		BlokIndex nieuweBlokIndex = new BlokIndex(locatie, ouderBlokIndex, null);
+		blokIndexen.put(blok.getHash(), nieuweBlokIndex);
+		
+		if (ouderBlokIndex != besteBlok) {
 			//blok verlengt niet de hoofdketen, dus zit het in een zijketen
 			blokkenZijketen.add(nieuweBlokIndex);
 			
@@ -394,24 +492,30 @@ public class BlockchainManager {
 			ouderBlokIndex.setVolgendeBlokIndex(nieuweBlokIndex);
 		}
 		
-		//controleer of het blok het nieuwe beste blok is
-		if (bepaalBlokhoogte(nieuweBlokIndex) > besteBlokhoogte) {
+		//Controleer of het blok het nieuwe beste blok is. Net als bij de synchronisatie (zie
+		//Synchronisator.isHeaderWerkGenoeg()) telt het totale werk van de keten, niet de lengte.
+		if (nieuweBlokIndex.getTotaalWerk().compareTo(besteBlok.getTotaalWerk()) > 0) {
 			
 			System.out.println("Blok is nieuwe beste blok");
 			
 			BlokIndex oudeBesteBlok = besteBlok;
 			besteBlok = nieuweBlokIndex;
-			besteBlokhoogte++;
+			if (ouderBlokIndex == oudeBesteBlok) {
+				//het blok verlengt de hoofdketen
+				hoofdketen.add(nieuweBlokIndex);
+				nieuweBlokIndex.setUndo(utxoSet.verbindBlok(blok));
+				verwijderOudeUndo();
+			}
 			
 			//zorg ervoor dat het eigenBlok weer naar het beste blok verwijst en pas de target aan indien nodig
-			if (!besteBlok.getBlok().equals(eigenBlok)) {
-				eigenBlok.setVorigeBlokHash(besteBlok.getBlok().getHash());
-				eigenBlok.setTarget(bepaalTarget(blok));
+			if (!besteBlok.getHash().equals(eigenBlok.getHash())) {
+				eigenBlok.setVorigeBlokHash(besteBlok.getHash());
+				eigenBlok.setTarget(bepaalTarget(eigenBlok));
 			}
 			
 			//controleer of het nieuwe beste blok in een zijketen zit (en er dus een
-			//nieuwe langste keten is)
-			if (blokkenZijketen.contains(besteBlok)) {
+			//nieuwe beste keten is)
+			if (!isInHoofdketen(besteBlok)) {
 				System.out.println("REORGANISEER");
 				reorganiseer(besteBlok, oudeBesteBlok);
 			}
@@ -431,67 +535,69 @@ public class BlockchainManager {
 			voegBlokToe(weesblok);
 		}
 		
-		//Door het toevoegen van dit blok is het mogelijk dat sommige transacties in
-		//de transactiePool ongeldig zijn geworden, doordat ze verwijzen naar een uitvoer
-		//die al uitgegeven is door een transactie in dit blok. Haal deze transacties uit
-		//de transactiePool.
-		ArrayList<Transactie> verwijderTx = new ArrayList<Transactie>();
+		//De transacties uit dit blok zitten niet meer in de transactiePool. Door het toevoegen
+		//van dit blok is het ook mogelijk dat sommige transacties in de transactiePool ongeldig
+		//zijn geworden, doordat ze verwijzen naar een uitvoer die al uitgegeven is door een 
+		//transactie in dit blok. Haal deze transacties (en hun nakomelingen) uit de transactiePool.
+		for (Transactie blokTx : blok.getTransacties()) {
+			transactiePool.verwijderBevestigd(blokTx.getHash());
+		}
 		for (Transactie blokTx : blok.getTransacties()) {
 			for (int i=0; i<blokTx.getAantalInvoeren(); i++) {
-				Invoer blokTxInvoer = blokTx.getInvoer(i);
-				
-				for (Transactie poolTx : transactiePool) {
-					for (int j=0; j<poolTx.getAantalInvoeren(); j++) {
-						Invoer poolTxInvoer = poolTx.getInvoer(j);
-						
-						if (blokTxInvoer.hashVorigeTransactie.equals(poolTxInvoer.hashVorigeTransactie) &&
-							blokTxInvoer.uitvoerIndex == poolTxInvoer.uitvoerIndex) {
-							
-							if (!verwijderTx.contains(poolTx)) {
-								System.out.println("Verwijder transactie uit pool: " + poolTx.toJSON().toString());
-								verwijderTx.add(poolTx);
-							}
-							break;
-						}
+				Transactie poolTx = transactiePool.getUitgegevenDoor(new Uitvoerpunt(blokTx.getInvoer(i)));
+				if (poolTx != null) {
+					for (Transactie verwijderd : transactiePool.verwijderMetNakomelingen(poolTx.getHash())) {
+						System.out.println("Verwijder transactie uit pool: " + verwijderd.getHash());
 					}
 				}
 			}
 		}
-		for (Transactie tx : verwijderTx) {
-			transactiePool.remove(tx);
-		}
 		
 		//haal alle transacties uit het eigenBlok zodat we zeker weten dat er geen ongeldige transacties meer in zitten
-		if (!besteBlok.getBlok().equals(eigenBlok)) {
+		if (!besteBlok.getHash().equals(eigenBlok.getHash())) {
 				
 			eigenBlok.getTransacties().clear();
 			
 			//voeg coinbasetransactie toe en zorg ervoor dat deze de hash van het nieuwe blok bevat (zodat de
 			//transactiehash uniek is) en de juiste coinbasebeloning.
 			Transactie coinbaseTransactie = new Transactie();
-			coinbaseTransactie.voegUitvoerToe(new Uitvoer(getCoinbaseUitbetaling(besteBlokhoogte+1), coinbaseSleutel));
-			Invoer in = new Invoer(besteBlok.getBlok().getHash(), 0);
+			coinbaseTransactie.voegUitvoerToe(new Uitvoer(getCoinbaseUitbetaling(besteBlok.getBlokhoogte()+1), coinbaseSleutel));
+			Invoer in = new Invoer(besteBlok.getHash(), 0);
 			in.handtekening = "";
 			coinbaseTransactie.voegInvoerToe(in);
 			eigenBlok.voegTransactieToe(coinbaseTransactie);
 		}
 		
+		//het eigenBlok en/of de transactiePool is veranderd; laat de miner aan het nieuwe eigenBlok werken
+		herstartMiner();
+		
 		return true;
 	}	
 	
 	/**
 	 * Controleer of de transacties in een blok geldig zijn. 
+	 * Dit gebeurt in twee fasen. Eerst worden de transacties één voor één gecontroleerd op alles
+	 * behalve de handtekeningen (formaat, bedragen, dubbele uitgaven binnen het blok); daarbij 
+	 * worden de handtekeningen die gecontroleerd moeten worden verzameld. Daarna worden de 
+	 * handtekeningen, die de meeste tijd kosten, tegelijk op meerdere threads gecontroleerd 
+	 * (zie HandtekeningTaak).
 	 * @param transacties	Lijst met alle transacties van een blok.
 	 * @return True (alle transacties zijn geldig) of false (niet alle transacties zijn geldig).
 	 */
 	private boolean controleerBlokTransacties(ArrayList<Transactie> transacties) {
 			
-		//Deze lijst houdt bij welke invoeren al zijn gebruikt door transacties in dit blok.
-		ArrayList<Invoer> gebruikteInvoeren = new ArrayList<Invoer>();	
+		//Deze set houdt bij welke uitvoeren al zijn gebruikt door transacties in dit blok.
+		HashSet<Uitvoerpunt> gebruikteUitvoerpunten = new HashSet<Uitvoerpunt>();	
+		
+		//de handtekeningen die in de tweede fase gecontroleerd worden
+		ArrayList<HandtekeningControle> handtekeningen = new ArrayList<HandtekeningControle>();
 		
 		//begin met index 1 (0 is de coinbasetransactie, die hebben we al gecontroleerd)
 		for (int i=1; i<transacties.size(); i++) {
 			Transactie transactie = transacties.get(i);
+			
+			//bereken de hash alvast, zodat de handtekeningen op meerdere threads gecontroleerd kunnen worden
+			transactie.getHash();
 
 			int somInvoeren = 0;
 			int somUitvoeren = 0;
@@ -514,41 +620,27 @@ public class BlockchainManager {
 			//controleer de transactie-invoeren
 			for (int j=0; j<transactie.getAantalInvoeren(); j++) {
 				Invoer invoer = transactie.getInvoer(j);
+				Uitvoerpunt uitvoerpunt = new Uitvoerpunt(invoer);
 				
-				//controleer eerst of de oudertransactie in de blockchain zit
-				Transactie vorigeTransactie = zoekTransactieInBlockchain(invoer.hashVorigeTransactie);
-				if (vorigeTransactie == null) {
-					//oudertransactie zit niet in blockchain
-					System.out.println("Transactie heeft geen ouder in de blockchain");
-					return false;
-				}
-				
-				//controleer of de uitvoer van de oudertransactie niet al is uitgegeven door een transactie in de blockchain
-				if (isUitvoerUitgegeven(invoer.hashVorigeTransactie, invoer.uitvoerIndex)) {
-					System.out.println("Transactie verwijst naar een uitvoer die al uitgegeven is in de blockchain");
+				//controleer of de invoer verwijst naar een uitvoer in de blockchain die nog niet is uitgegeven
+				Uitvoer vorigeUitvoer = utxoSet.getUitvoer(uitvoerpunt);
+				if (vorigeUitvoer == null) {
+					System.out.println("Transactie verwijst naar een uitvoer die niet in de blockchain zit of al uitgegeven is");
 					return false;
 				}
 				
 				//controleer of de uitvoer van de oudertransactie niet al is uitgegeven door een transactie in dit blok
-				for (Invoer gebruikteInvoer : gebruikteInvoeren) {
-					if (invoer.hashVorigeTransactie.equals(gebruikteInvoer.hashVorigeTransactie) &&
-						invoer.uitvoerIndex == gebruikteInvoer.uitvoerIndex) {
-						
-						//uitvoer is al uitgegeven door een andere transactie in dit blok
-						System.out.println("Transactie verwijst naar een uitvoer die al uitgegeven is in dit blok");
-						return false;
-					}
-				}
-				
-				//controleer of de handtekening van de invoer klopt
-				if (!Wallet.controleerHandtekening(invoer, transactie, vorigeTransactie)) {
-					//handtekening klopt niet
-					System.out.println("Transactie bevat een invoer met een onjuiste handtekening");
+				if (gebruikteUitvoerpunten.contains(uitvoerpunt)) {
+					//uitvoer is al uitgegeven door een andere transactie in dit blok
+					System.out.println("Transactie verwijst naar een uitvoer die al uitgegeven is in dit blok");
 					return false;
 				}
 				
-				somInvoeren += vorigeTransactie.getUitvoer(invoer.uitvoerIndex).bedrag;
-				gebruikteInvoeren.add(invoer);
+				//de handtekening van de invoer wordt later gecontroleerd
+				handtekeningen.add(new HandtekeningControle(invoer, transactie, vorigeUitvoer));
+				
+				somInvoeren += vorigeUitvoer.bedrag;
+				gebruikteUitvoerpunten.add(uitvoerpunt);
 			}
 			
 			//controleer of de transactie-uitvoeren niet te veel uitgeven
@@ -558,80 +650,185 @@ public class BlockchainManager {
 			}
 		}
 		
+		//controleer de handtekeningen van alle invoeren (stopt bij de eerste onjuiste handtekening)
+		if (!HandtekeningTaak.controleer(handtekeningen)) {
+			return false;
+		}
+		
 		//alle transacties zijn geldig 
 		return true;
 	}
 
 	/**
-	 * Bepaal de blokhoogte van een blok met de gegeven blokIndex
-	 * @param blokIndex	BlokIndex van het gegeven blok.
-	 * @return Blokhoogte van het gegeven blok.
+	 * Controleer of een blok in de hoofdketen zit.
+	 * @param blokIndex	BlokIndex van het blok.
+	 * @return True (het blok zit in de hoofdketen) of false (het blok zit in een zijketen).
 	 */
-	private int bepaalBlokhoogte(BlokIndex blokIndex) {
-		
-		//ga terug in de blockchain tot aan het genesisblok, en tel het aantal blokken
-		int aantalBlokken = 0;
-		while (!blokIndex.getBlok().equals(genesisBlok.getBlok())) {
+	private boolean isInHoofdketen(BlokIndex blokIndex) {
+		int blokhoogte = blokIndex.getBlokhoogte();
+		return (blokhoogte < hoofdketen.size() && hoofdketen.get(blokhoogte) == blokIndex);
+	}
+	
+	/**
+	 * Zoek het blok met de gegeven blokhoogte in de keten die eindigt bij het gegeven blok.
+	 * Voor blokken in de hoofdketen kost dit geen tijd; voor blokken in een zijketen wordt 
+	 * teruggewerkt tot aan de hoofdketen.
+	 * @param blokIndex		Het laatste blok van de keten.
+	 * @param blokhoogte	Blokhoogte van het gezochte blok (niet groter dan de blokhoogte van blokIndex).
+	 * @return BlokIndex van de voorouder van blokIndex met de gegeven blokhoogte.
+	 */
+	private BlokIndex getVoorouder(BlokIndex blokIndex, int blokhoogte) {
+		while (!isInHoofdketen(blokIndex)) {
+			if (blokIndex.getBlokhoogte() == blokhoogte) {
+				return blokIndex;
+			}
 			blokIndex = blokIndex.getVorigeBlokIndex();
-			aantalBlokken++;
 		}
-		
-		return aantalBlokken;
+		return hoofdketen.get(blokhoogte);
 	}
-
 	
 	/**
-	 * De blockchain wordt gereorganiseerd als een zijketen langer is geworden dan de hoofdketen.
-	 * De verwijzingen in de blockchain worden aangepast zodat ze naar de nieuwe langste keten
-	 * wijzen.
-	 * @param blokIndex	Het laatste blok in de nieuwe langste keten.
+	 * De blockchain wordt gereorganiseerd als een zijketen meer werk bevat dan de hoofdketen.
+	 * De verwijzingen in de blockchain worden aangepast zodat ze naar de nieuwe beste keten
+	 * wijzen (zie wisselHoofdketen()). Daarna worden de blokken van de oude keten (tot aan het 
+	 * laatste gemeenschappelijke blok) met hun BlokUndo ontkoppeld van de UTXOSet, en worden de
+	 * blokken van de nieuwe keten verbonden. De kosten van een reorganisatie hangen dus af van het
+	 * aantal blokken na het gemeenschappelijke blok, niet van de lengte van de blockchain.
+	 * Transacties uit de ontkoppelde blokken worden (als ze nog geldig zijn) teruggezet in de
+	 * transactiePool.
+	 * @param nieuweBesteBlok	Het laatste blok in de nieuwe beste keten.
+	 * @param oudeBesteBlok		Het laatste blok in de oude hoofdketen.
 	 */
 	private void reorganiseer(BlokIndex nieuweBesteBlok, BlokIndex oudeBesteBlok) {
 		
-		//Werk terug tot het laatste gemeenschappelijke blok van de twee ketens,
-		//en zorg ervoor dat de BlokIndexen naar de langste keten wijzen.
+		ArrayList<BlokIndex> oudeBlokken = wisselHoofdketen(nieuweBesteBlok, oudeBesteBlok);
 		
-		BlokIndex blokIndexLangeKeten = nieuweBesteBlok.getVorigeBlokIndex();	
-		BlokIndex blokIndexKorteKeten = oudeBesteBlok;
+		//de nieuwe blokken staan in de hoofdketen na het laatste gemeenschappelijke blok
+		int blokhoogteGemeenschappelijkBlok = oudeBlokken.get(oudeBlokken.size()-1).getBlokhoogte() - 1;
 		
-		BlokIndex vorig = nieuweBesteBlok;
-		while (!blokIndexLangeKeten.getBlok().equals(blokIndexKorteKeten.getBlok())) {
-			
-			//Zorg ervoor dat de blokken in blokkenZijketen worden uitgewisseld.
-			blokkenZijketen.remove(blokIndexLangeKeten);
-			blokkenZijketen.add(blokIndexKorteKeten);
-			
-			blokIndexLangeKeten.setVolgendeBlokIndex(vorig);
-			vorig = blokIndexLangeKeten;
-			
-			blokIndexLangeKeten = blokIndexLangeKeten.getVorigeBlokIndex();
-			blokIndexKorteKeten = blokIndexKorteKeten.getVorigeBlokIndex();
+		//ontkoppel de blokken van de oude keten, het laatste blok eerst
+		boolean undoOntbreekt = false;
+		for (BlokIndex index : oudeBlokken) {
+			if (index.getUndo() != null) {
+				utxoSet.ontkoppelBlok(index.getUndo());
+				index.setUndo(null);
+			} else {
+				undoOntbreekt = true;
+			}
+		}
+		
+		//Bewaar de transacties van de ontkoppelde blokken (behalve de coinbasetransacties), het
+		//eerste blok eerst. Een oudertransactie staat dan altijd voor de transacties die haar 
+		//uitvoeren uitgeven, zodat voegTransactiesToe() die transacties niet afwijst.
+		ArrayList<Transactie> ontkoppeldeTransacties = new ArrayList<Transactie>();
+		for (int b=oudeBlokken.size()-1; b>=0; b--) {
+			ArrayList<Transactie> transacties = getBlok(oudeBlokken.get(b)).getTransacties();
+			for (int i=1; i<transacties.size(); i++) {
+				ontkoppeldeTransacties.add(transacties.get(i));
+			}
+		}
+		
+		if (undoOntbreekt) {
+			//zonder BlokUndo kan de UTXOSet niet worden teruggezet; bouw hem opnieuw op
+			herbouwUTXOSet();
+		} else {
+			//verbind de blokken van de nieuwe keten, het eerste blok eerst
+			for (int i=blokhoogteGemeenschappelijkBlok+1; i<hoofdketen.size(); i++) {
+				BlokIndex index = hoofdketen.get(i);
+				index.setUndo(utxoSet.verbindBlok(getBlok(index)));
+			}
+			verwijderOudeUndo();
+		}
+		
+		//Haal transacties uit de transactiePool (met hun nakomelingen) die verwijzen naar een 
+		//uitvoer die in de nieuwe hoofdketen niet bestaat of al is uitgegeven. Uitvoeren van 
+		//onbevestigde ouders in de pool blijven geldig.
+		for (Transactie poolTx : transactiePool.getTransacties()) {
+			if (!transactiePool.bevat(poolTx.getHash())) {
+				//al verwijderd als nakomeling
+				continue;
+			}
+			for (int i=0; i<poolTx.getAantalInvoeren(); i++) {
+				Uitvoerpunt uitvoerpunt = new Uitvoerpunt(poolTx.getInvoer(i));
+				if (utxoSet.getUitvoer(uitvoerpunt) == null && transactiePool.getUitvoer(uitvoerpunt) == null) {
+					transactiePool.verwijderMetNakomelingen(poolTx.getHash());
+					break;
+				}
+			}
 		}
 		
-		blokIndexLangeKeten.setVolgendeBlokIndex(vorig);
+		//zet de transacties uit de ontkoppelde blokken terug in de transactiePool
+		ArrayList<Transactie> terugTeZetten = new ArrayList<Transactie>();
+		for (Transactie tx : ontkoppeldeTransacties) {
+			if (!transactiePool.bevat(tx.getHash())) {
+				terugTeZetten.add(tx);
+			}
+		}
+		voegTransactiesToe(terugTeZetten, null);
 	}
 
 	/**
-	 * Sla de blockchain op in een bestand. 
+	 * Zorg ervoor dat de verwijzingen in de blockchain, de hoofdketen en blokkenZijketen naar de
+	 * nieuwe beste keten wijzen. De UTXOSet en de transactiePool worden niet aangepast.
+	 * De nieuwe keten bevat meer werk, maar kan korter of (veel) langer zijn dan de oude keten.
+	 * @param nieuweBesteBlok	Het laatste blok in de nieuwe beste keten.
+	 * @param oudeBesteBlok		Het laatste blok in de oude hoofdketen.
+	 * @return De blokken die uit de hoofdketen zijn gehaald, het laatste blok eerst.
 	 */
-	public void slaBlockchainOp() {
-
-		FileWriter writer = null;
+	private ArrayList<BlokIndex> wisselHoofdketen(BlokIndex nieuweBesteBlok, BlokIndex oudeBesteBlok) {
 		
-		try {
-			writer = new FileWriter(BLOCKCHAIN_PATH);
-			writer.write(blockchainNaarString());			
-		} catch (IOException e) {
-			e.printStackTrace();
-		} finally {
-			try {
-				if (writer != null) {
-					writer.close();
-				}
-			} catch (IOException e) {
-				e.printStackTrace();
+		//Werk terug tot het laatste gemeenschappelijke blok van de twee ketens,
+		//en zorg ervoor dat de BlokIndexen naar de beste keten wijzen.
+		
+		//beide lijsten beginnen bij het laatste blok van de keten
+		ArrayList<BlokIndex> nieuweBlokken = new ArrayList<BlokIndex>();
+		ArrayList<BlokIndex> oudeBlokken = new ArrayList<BlokIndex>();
+		
+		BlokIndex blokIndexNieuweKeten = nieuweBesteBlok;
+		BlokIndex blokIndexOudeKeten = oudeBesteBlok;
+		
+		BlokIndex vorig = null;
+		while (blokIndexNieuweKeten != blokIndexOudeKeten) {
+			
+			//Ga terug in de keten met het hoogste blok (of in beide ketens bij gelijke hoogte),
+			//en zorg ervoor dat de blokken in blokkenZijketen worden uitgewisseld.
+			int hoogteNieuweKeten = blokIndexNieuweKeten.getBlokhoogte();
+			int hoogteOudeKeten = blokIndexOudeKeten.getBlokhoogte();
+			if (hoogteNieuweKeten >= hoogteOudeKeten) {
+				blokkenZijketen.remove(blokIndexNieuweKeten);
+				nieuweBlokken.add(blokIndexNieuweKeten);
+				blokIndexNieuweKeten.setVolgendeBlokIndex(vorig);
+				vorig = blokIndexNieuweKeten;
+				blokIndexNieuweKeten = blokIndexNieuweKeten.getVorigeBlokIndex();
 			}
+			if (hoogteOudeKeten >= hoogteNieuweKeten) {
+				blokkenZijketen.add(blokIndexOudeKeten);
+				oudeBlokken.add(blokIndexOudeKeten);
+				blokIndexOudeKeten = blokIndexOudeKeten.getVorigeBlokIndex();
+			}
+		}
+		
+		blokIndexNieuweKeten.setVolgendeBlokIndex(vorig);
+		
+		//werk de hoofdketen bij: haal de oude blokken weg en voeg de nieuwe toe, het eerste blok eerst
+		int blokhoogteGemeenschappelijkBlok = blokIndexNieuweKeten.getBlokhoogte();
+		while (hoofdketen.size() > blokhoogteGemeenschappelijkBlok + 1) {
+			hoofdketen.remove(hoofdketen.size()-1);
+		}
+		for (int i=nieuweBlokken.size()-1; i>=0; i--) {
+			hoofdketen.add(nieuweBlokken.get(i));
 		}
+		
+		return oudeBlokken;
+	}
+	
+	/**
+	 * Sla de UTXOSet op en sluit de BlokOpslag. De blokken zelf zijn al opgeslagen op het moment dat ze aan de 
+	 * blockchain zijn toegevoegd.
+	 */
+	public synchronized void sluitBlockchain() {
+		slaUTXOSetOp();
+		blokOpslag.sluit();
 	}
 	
 	/**
@@ -648,16 +845,15 @@ public class BlockchainManager {
 		//van de timestamps van de 12 voorgaande zal ongeveer één uur eerder aangeven
 		//dan de timestamp van het blok zelf.
 		
+		BlokIndex ouder = getBlokIndex(blok.getVorigeBlokHash());
+		if (ouder.getBlokhoogte() < 12) {
+			//Het begin van de keten is een uitzondering
+			return 0;
+		}
+		
 		long som = 0;
-		BlokIndex index = getBlokIndex(blok.getVorigeBlokHash());
 		for (int i=0; i<12; i++) {
-			som += index.getBlok().getTimestamp();
-			if (index.getVorigeBlokIndex() != null) {
-				index = index.getVorigeBlokIndex();
-			} else {
-				//Het begin van de keten is een uitzondering
-				return 0;
-			}
+			som += getVoorouder(ouder, ouder.getBlokhoogte()-i).getTimestamp();
 		}
 		
 		return som/12;
@@ -672,35 +868,29 @@ public class BlockchainManager {
 	private String bepaalTarget(Blok blok) {
 		
 		//begin met ouderindex
-		BlokIndex index = getBlokIndex(blok.getVorigeBlokHash());
+		BlokIndex ouder = getBlokIndex(blok.getVorigeBlokHash());
 		
-		int blokhoogteOuder = bepaalBlokhoogte(index);
+		int blokhoogteOuder = ouder.getBlokhoogte();
 		if (blokhoogteOuder <= AANTAL_BLOKKEN_TOT_RETARGET) {
 			return MAX_TARGET;
 		}
 		
-		int aantalPlaatsenTerug = (blokhoogteOuder-1) % AANTAL_BLOKKEN_TOT_RETARGET;
-		while (aantalPlaatsenTerug > 0) {
-			index = index.getVorigeBlokIndex();
-			aantalPlaatsenTerug--;
-		}
+		//blokhoogte van het blok waarbij de target voor het laatst is bijgesteld
+		int blokhoogteRetarget = blokhoogteOuder - (blokhoogteOuder-1) % AANTAL_BLOKKEN_TOT_RETARGET;
 
 		//eerste index
-		BlokIndex eersteIndex = index;
-		for (int i=0; i<AANTAL_BLOKKEN_TOT_RETARGET; i++) {
-			eersteIndex = eersteIndex.getVorigeBlokIndex();
-		}
+		BlokIndex eersteIndex = getVoorouder(ouder, blokhoogteRetarget - AANTAL_BLOKKEN_TOT_RETARGET);
 		
 		//laatste index
-		index = index.getVorigeBlokIndex();			
+		BlokIndex index = getVoorouder(ouder, blokhoogteRetarget - 1);			
 		
 		//vermenigvuldig de target met een bepaalde factor, zodat het aantal minuten per blok constant blijft 
-		long verstrekenTijd = index.getBlok().getTimestamp() - eersteIndex.getBlok().getTimestamp();
+		long verstrekenTijd = index.getTimestamp() - eersteIndex.getTimestamp();
 	
 		double aantalMinutenPerBlok = ((double) verstrekenTijd) / ((double) AANTAL_BLOKKEN_TOT_RETARGET*60*1000);
 		double factor = aantalMinutenPerBlok/AANTAL_MINUTEN_PER_BLOK;	
 		
-		BigInteger oudeTarget = new BigInteger(index.getBlok().getTarget(), 16);
+		BigInteger oudeTarget = new BigInteger(index.getTarget(), 16);
 		BigDecimal temp = new BigDecimal(oudeTarget).multiply(new BigDecimal(factor));
 		String nieuweTarget = temp.toBigInteger().toString(16);
 		nieuweTarget = String.format("%64s", nieuweTarget.toUpperCase()).replace(' ', '0');
@@ -717,15 +907,15 @@ public class BlockchainManager {
 	 * Initaliseer het eigenBlok.
 	 */
 	private void initEigenBlok() {
-		eigenBlok = new Blok(besteBlok.getBlok().getHash(), System.currentTimeMillis());
+		eigenBlok = new Blok(besteBlok.getHash(), System.currentTimeMillis());
 		eigenBlok.setTarget(bepaalTarget(eigenBlok));
 		
 		//voeg coinbasetransactie toe
 		Transactie coinbaseTransactie = new Transactie();
-		coinbaseTransactie.voegUitvoerToe(new Uitvoer(getCoinbaseUitbetaling(besteBlokhoogte+1), coinbaseSleutel));
+		coinbaseTransactie.voegUitvoerToe(new Uitvoer(getCoinbaseUitbetaling(besteBlok.getBlokhoogte()+1), coinbaseSleutel));
 		//Voeg een invoer toe die de hash van het voorgaande blok bevat. Deze invoer heeft geen betekenis, maar
 		//zorgt er alleen maar voor dat de hash van de coinbasetransactie uniek is.
-		Invoer in = new Invoer(besteBlok.getBlok().getHash(), 0);
+		Invoer in = new Invoer(besteBlok.getHash(), 0);
 		in.handtekening = "";
 		coinbaseTransactie.voegInvoerToe(in);
 		eigenBlok.voegTransactieToe(coinbaseTransactie);
@@ -748,59 +938,106 @@ public class BlockchainManager {
 	}
 	
 	/**
-	 * Zoek de transactie met de gegeven hash op in de blockchain.
-	 * @param txHash	Hash van de gezochte transactie.
-	 * @return De gezochte transactie (of null als er geen transactie gevonden is).
+	 * Vul de UTXOSet opnieuw door alle blokken in de hoofdketen te verwerken.
 	 */
-	private Transactie zoekTransactieInBlockchain(String txHash) {
-		
-		BlokIndex index = genesisBlok;
+	private void herbouwUTXOSet() {
+		utxoSet.leeg();
 		
-		while (index.getVolgendeBlokIndex() != null) {
-			index = index.getVolgendeBlokIndex();
+		//het genesisblok telt niet mee
+		for (int i=1; i<hoofdketen.size(); i++) {
+			BlokIndex index = hoofdketen.get(i);
+			BlokUndo undo = utxoSet.verbindBlok(getBlok(index));
 			
-			Transactie tx = index.getBlok().getTransactie(txHash);
-			if (tx != null) {
-				return tx;
+			//bewaar alleen de BlokUndo van de laatste blokken
+			if (i >= hoofdketen.size() - AANTAL_BLOKKEN_MET_UNDO) {
+				index.setUndo(undo);
+			} else {
+				index.setUndo(null);
 			}
 		}
+	}
+	
+	/**
+	 * Verwijder de BlokUndo van het blok dat net buiten de laatste AANTAL_BLOKKEN_MET_UNDO blokken
+	 * van de hoofdketen is gevallen, zodat het geheugengebruik niet groeit met de lengte van de
+	 * blockchain.
+	 */
+	private void verwijderOudeUndo() {
+		int blokhoogte = hoofdketen.size() - 1 - AANTAL_BLOKKEN_MET_UNDO;
+		if (blokhoogte >= 0) {
+			hoofdketen.get(blokhoogte).setUndo(null);
+		}
+	}
+	
+	/**
+	 * Lees de UTXOSet die bij het afsluiten is opgeslagen (zie slaUTXOSetOp()).
+	 * @return True (de UTXOSet is gelezen) of false (er is geen bruikbare UTXOSet opgeslagen, 
+	 * 		   bijvoorbeeld omdat de hoofdketen sindsdien is veranderd).
+	 */
+	private boolean laadUTXOSet() {
+		File file = new File(UTXO_PATH);
+		if (!file.exists()) {
+			return false;
+		}
 		
-		//niets gevonden
-		return null;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (!in.readUTF().equals(besteBlok.getHash())) {
+				return false;
+			}
+			utxoSet.lees(in);
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			utxoSet.leeg();
+			return false;
+		} finally {
+			try {
+				if (in != null) {
+					in.close();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
 	}
 	
 	/**
-	 * Bepaal of de uitvoer met de gegeven transactiehash en uitvoerIndex al is uitgegeven 
-	 * door een transactie in de blockchain.
-	 * @param txHash		Hash van de transactie waarin de uitvoer zit.
-	 * @param uitvoerIndex	Index van de uitvoer.
-	 * @return True (de uitvoer is al uitgegeven) of false (uitvoer is nog niet uitgegeven).
+	 * Sla de UTXOSet op, samen met de hash van het beste blok, zodat de UTXOSet bij het volgende 
+	 * opstarten niet opnieuw opgebouwd hoeft te worden.
 	 */
-	private boolean isUitvoerUitgegeven(String txHash, int uitvoerIndex) {
-				
-		//controleer alle blokken in de blockchain
-		BlokIndex index = genesisBlok;
-		while (index.getVolgendeBlokIndex() != null) {
-			index = index.getVolgendeBlokIndex();
-			
-			//controleer alle transacties in het blok
-			for (Transactie tx : index.getBlok().getTransacties()) {
-				
-				//controleer alle invoeren van de transactie
-				for (int i=0; i<tx.getAantalInvoeren(); i++) {
-					Invoer invoer = tx.getInvoer(i);
-					if (invoer.hashVorigeTransactie.equals(txHash) &&
-						invoer.uitvoerIndex == uitvoerIndex) {
-						//verwijzing naar uitvoer gevonden
-						//de uitvoer is dus al uitgegeven
-						return true;
-					}
+	private void slaUTXOSetOp() {
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(UTXO_PATH)));
+			out.writeUTF(besteBlok.getHash());
+			utxoSet.schrijf(out);
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			try {
+				if (out != null) {
+					out.close();
 				}
+			} catch (IOException e) {
+				e.printStackTrace();
 			}
 		}
-		
-		//geen verwijzing naar deze uitvoer gevonden in de blockchain
-		return false;
+	}
+	
+	/**
+	 * Lees een blok uit de BlokOpslag.
+	 * @param blokIndex	BlokIndex van het blok.
+	 * @return Het blok. Dit blok mag niet aangepast worden.
+	 */
+	private Blok getBlok(BlokIndex blokIndex) {
+		try {
+			return blokOpslag.getBlok(blokIndex.getLocatie());
+		} catch (IOException e) {
+			//zonder het blok kan de blockchain niet verder worden bijgewerkt
+			throw new IllegalStateException("Blok " + blokIndex.getHash() + " kan niet worden gelezen", e);
+		}
 	}
 	
 	/**
@@ -808,9 +1045,125 @@ public class BlockchainManager {
 	 * @param transactie	De transactie die moet worden toegevoegd aan de transactiePool.
 	 * @return True (de transactie is toegevoegd) of false (transactie is ongeldig en niet toegevoegd).
 	 */
-	public boolean voegTransactieToe(Transactie transactie) {
+	public synchronized boolean voegTransactieToe(Transactie transactie) {
+		return voegTransactiesToe(Collections.singletonList(transactie), null)[0];
+	}
+	
+	/**
+	 * Controleer een groep transacties en voeg de geldige transacties toe aan de transactiePool.
+	 * Het resultaat is hetzelfde als wanneer de transacties in de volgorde van de lijst één voor
+	 * één worden toegevoegd, maar:
+	 * 		-de handtekeningen van alle transacties worden tegelijk op meerdere threads 
+	 * 		 gecontroleerd (zie HandtekeningTaak)
+	 * 		-de miner wordt maar één keer herstart
+	 * @param transacties			De transacties die moeten worden toegevoegd aan de transactiePool.
+	 * @param blijvendOngeldig		Array met dezelfde lengte als transacties (of null). Per transactie
+	 * 								wordt hierin gezet of de transactie ongeldig is ongeacht de 
+	 * 								handtekeningen en de toestand van de blockchain en de transactiePool
+	 * 								(bijvoorbeeld een uitvoer met een negatief bedrag). Alleen zo'n 
+	 * 								transactie mag op basis van haar hash worden afgewezen: de hash
+	 * 								bevat de handtekeningen niet, en een ontbrekende of al uitgegeven
+	 * 								invoer kan later wel geldig zijn.
+	 * @return Per transactie (in dezelfde volgorde): true (de transactie is toegevoegd) of 
+	 * 		   false (de transactie is ongeldig of geeft een uitvoer uit die al is uitgegeven).
+	 */
+	public synchronized boolean[] voegTransactiesToe(List<Transactie> transacties, boolean[] blijvendOngeldig) {
+		boolean[] geldig = new boolean[transacties.size()];
+		
+		//Transacties uit de groep die de eerste controle hebben doorstaan. Een transactie mag
+		//uitvoeren uitgeven van een eerdere transactie uit de groep (of uit de transactiePool).
+		HashMap<String, Transactie> groep = new HashMap<String, Transactie>();
+		
+		//Controleer eerst alles behalve de handtekeningen en verzamel de handtekeningen. De 
+		//handtekeningen van transactie i staan in handtekeningen op de indexen 
+		//eersteHandtekening[i] t/m eersteHandtekening[i+1]-1.
+		ArrayList<HandtekeningControle> handtekeningen = new ArrayList<HandtekeningControle>();
+		int[] eersteHandtekening = new int[transacties.size() + 1];
+		for (int i=0; i<transacties.size(); i++) {
+			eersteHandtekening[i] = handtekeningen.size();
+			int resultaat = controleerPoolTransactie(transacties.get(i), groep, handtekeningen);
+			geldig[i] = (resultaat == GELDIG);
+			if (blijvendOngeldig != null) {
+				blijvendOngeldig[i] = (resultaat == BLIJVEND_ONGELDIG);
+			}
+			if (geldig[i]) {
+				groep.put(transacties.get(i).getHash(), transacties.get(i));
+			} else {
+				//de handtekeningen van een ongeldige transactie hoeven niet gecontroleerd te worden
+				handtekeningen.subList(eersteHandtekening[i], handtekeningen.size()).clear();
+			}
+		}
+		eersteHandtekening[transacties.size()] = handtekeningen.size();
+		
+		//controleer alle handtekeningen tegelijk
+		boolean[] handtekeningGeldig = HandtekeningTaak.controleerAfzonderlijk(handtekeningen);
+		
+		//Voeg de geldige transacties op volgorde toe. Een transactie die een uitvoer uitgeeft die
+		//al is uitgegeven door een eerdere transactie uit de groep, of een uitvoer van een 
+		//transactie uit de groep die niet is toegevoegd, wordt niet toegevoegd.
+		boolean toegevoegd = false;
+		for (int i=0; i<transacties.size(); i++) {
+			if (!geldig[i]) {
+				continue;
+			}
+			for (int j=eersteHandtekening[i]; j<eersteHandtekening[i+1]; j++) {
+				if (!handtekeningGeldig[j]) {
+					geldig[i] = false;
+					break;
+				}
+			}
+			
+			Transactie transactie = transacties.get(i);
+			for (int j=0; geldig[i] && j<transactie.getAantalInvoeren(); j++) {
+				Uitvoerpunt uitvoerpunt = new Uitvoerpunt(transactie.getInvoer(j));
+				if (transactiePool.getUitgegevenDoor(uitvoerpunt) != null) {
+					System.out.println("Transactie verwijst naar een uitvoer die al uitgegeven is");
+					geldig[i] = false;
+				} else if (utxoSet.getUitvoer(uitvoerpunt) == null && transactiePool.getUitvoer(uitvoerpunt) == null) {
+					System.out.println("Transactie verwijst naar een transactie die niet is toegevoegd");
+					geldig[i] = false;
+				}
+			}
+			if (!geldig[i]) {
+				continue;
+			}
+			
+			//transactie is geldig; voeg toe aan transactiePool
+			System.out.println("Transactie is geldig; wordt toegevoegd aan transactiePool: " + transactie.getHash());
+			transactiePool.voegToe(transactie);
+			toegevoegd = true;
+		}
+		
+		if (toegevoegd) {
+			herstartMiner();
+		}
+		return geldig;
+	}
+	
+	/**
+	 * Resultaten van controleerPoolTransactie().
+	 */
+	private static final int GELDIG = 0;
+	private static final int ONGELDIG = 1;
+	private static final int BLIJVEND_ONGELDIG = 2;
+	
+	/**
+	 * Controleer een transactie die aan de transactiePool moet worden toegevoegd, behalve de
+	 * handtekeningen. De handtekeningen die nog gecontroleerd moeten worden, worden aan 
+	 * handtekeningen toegevoegd. Een invoer mag verwijzen naar een uitvoer in de blockchain,
+	 * naar een uitvoer van een transactie in de transactiePool of naar een uitvoer van een 
+	 * eerdere transactie uit de groep die wordt toegevoegd.
+	 * @param transactie		De transactie.
+	 * @param groep				Eerdere transacties uit de groep, met de hash als sleutel.
+	 * @param handtekeningen	Lijst waaraan de handtekeningen van de transactie worden toegevoegd.
+	 * @return GELDIG (de transactie is geldig als de handtekeningen kloppen), ONGELDIG (de transactie
+	 * 		   is ongeldig in de huidige toestand) of BLIJVEND_ONGELDIG (de transactie is altijd ongeldig).
+	 */
+	private int controleerPoolTransactie(Transactie transactie, HashMap<String, Transactie> groep,
+											 ArrayList<HandtekeningControle> handtekeningen) {
 		
-		System.out.println("controleer transactie: " + transactie.toJSON());
+		//bereken de hash alvast, zodat de handtekeningen op meerdere threads gecontroleerd kunnen worden
+		transactie.getHash();
 		
 		int somInvoeren = 0;
 		int somUitvoeren = 0;
@@ -818,7 +1171,7 @@ public class BlockchainManager {
 		//controleer het formaat van de transactie
 		if (transactie.getAantalInvoeren() == 0 || transactie.getAantalUitvoeren() == 0) {
 			System.out.println("Transactie heeft geen invoeren of geen uitvoeren");
-			return false;
+			return BLIJVEND_ONGELDIG;
 		}
 		
 		for (int i=0; i<transactie.getAantalUitvoeren(); i++) {
@@ -826,222 +1179,223 @@ public class BlockchainManager {
 			somUitvoeren += uitvoer.bedrag;
 			if (uitvoer.bedrag <= 0) {
 				System.out.println("Transactie bevat een uitvoer met een ongeldig bedrag");
-				return false;
+				return BLIJVEND_ONGELDIG;
+			}
+		}
+		
+		//controleer of de transactie niet twee keer dezelfde uitvoer uitgeeft (zo'n transactie zou
+		//nooit in een blok passen)
+		HashSet<Uitvoerpunt> eigenUitvoerpunten = new HashSet<Uitvoerpunt>();
+		for (int i=0; i<transactie.getAantalInvoeren(); i++) {
+			if (!eigenUitvoerpunten.add(new Uitvoerpunt(transactie.getInvoer(i)))) {
+				System.out.println("Transactie geeft dezelfde uitvoer twee keer uit");
+				return BLIJVEND_ONGELDIG;
 			}
 		}
 		
 		//controleer de transactie-invoeren
 		for (int i=0; i<transactie.getAantalInvoeren(); i++) {
 			Invoer invoer = transactie.getInvoer(i);
+			Uitvoerpunt uitvoerpunt = new Uitvoerpunt(invoer);
 			
-			//controleer eerst of de oudertransactie in de blockchain zit
-			Transactie vorigeTransactie = zoekTransactieInBlockchain(invoer.hashVorigeTransactie);
-			if (vorigeTransactie == null) {
-				//oudertransactie zit niet in blockchain
-				System.out.println("Transactie heeft geen ouder in de blockchain");
-				return false;
+			//controleer of de invoer verwijst naar een uitvoer in de blockchain die nog niet is uitgegeven,
+			//of naar een uitvoer van een onbevestigde transactie
+			Uitvoer vorigeUitvoer = utxoSet.getUitvoer(uitvoerpunt);
+			if (vorigeUitvoer == null) {
+				vorigeUitvoer = transactiePool.getUitvoer(uitvoerpunt);
 			}
-			
-			//controleer of de uitvoer van de oudertransactie niet al is uitgegeven door een transactie in de blockchain
-			if (isUitvoerUitgegeven(invoer.hashVorigeTransactie, invoer.uitvoerIndex)) {
-				System.out.println("Transactie verwijst naar een uitvoer die al uitgegeven is");
-				return false;
+			if (vorigeUitvoer == null) {
+				vorigeUitvoer = getUitvoer(groep.get(uitvoerpunt.getTxHash()), uitvoerpunt.getUitvoerIndex());
 			}
-			
-			//controleer of de uitvoer van de oudertransactie niet al is uitgegeven door een transactie in de transactiePool
-			for (Transactie poolTx : transactiePool) {
-				for (int j=0; j<poolTx.getAantalInvoeren(); j++) {
-					Invoer poolTxInvoer = poolTx.getInvoer(j);
-					if (invoer.uitvoerIndex == poolTxInvoer.uitvoerIndex &&
-						invoer.hashVorigeTransactie.equals(poolTxInvoer.hashVorigeTransactie)) {
-					
-						//de uitvoer is al uitgegeven door een andere transactie
-						System.out.println("Transactie verwijst naar een uitvoer die al uitgegeven is");
-						return false;
-					
-					}
-				}
+			if (vorigeUitvoer == null) {
+				System.out.println("Transactie verwijst naar een uitvoer die niet in de blockchain zit of al uitgegeven is");
+				return ONGELDIG;
 			}
 			
-			//controleer of de handtekening van de invoer klopt
-			if (!Wallet.controleerHandtekening(invoer, transactie, vorigeTransactie)) {
-				//handtekening klopt niet
-				System.out.println("Transactie bevat een invoer met een onjuiste handtekening");
-				return false;
+			//controleer of de uitvoer van de oudertransactie niet al is uitgegeven door een transactie in de 
+			//transactiePool
+			if (transactiePool.getUitgegevenDoor(uitvoerpunt) != null) {
+				System.out.println("Transactie verwijst naar een uitvoer die al uitgegeven is");
+				return ONGELDIG;
 			}
 			
-			somInvoeren += vorigeTransactie.getUitvoer(invoer.uitvoerIndex).bedrag;
+			//de handtekening van de invoer wordt later gecontroleerd
+			handtekeningen.add(new HandtekeningControle(invoer, transactie, vorigeUitvoer));
+			
+			somInvoeren += vorigeUitvoer.bedrag;
 		}
 		
-		//controleer of de transactie-uitvoeren niet te veel uitgeven
+		//Controleer of de transactie-uitvoeren niet te veel uitgeven. De bedragen van de invoeren 
+		//liggen vast door de hashes van de oudertransacties, dus dit verandert niet meer.
 		if (somUitvoeren > somInvoeren) {
 			System.out.println("Transactie-uitvoeren geven meer uit dan toegestaan");
-			return false;
+			return BLIJVEND_ONGELDIG;
 		}
 		
-		//transactie is geldig; voeg toe aan transactiePool
-		System.out.println("Transactie is geldig; wordt toegevoegd aan transactiePool");
-		transactiePool.add(transactie);
-		return true;
+		return GELDIG;
 	}
 	
 	/**
 	 * @return	De blokhoogte van het laatste blok in de langste keten van de blockchain.
 	 */
-	public int getBlokhoogte() {
-		return besteBlokhoogte;
+	public synchronized int getBlokhoogte() {
+		return besteBlok.getBlokhoogte();
 	}
 	
 	/**
-	 * Zet de blockchain om in een string. 
-	 * @return De blockchain in stringformaat.
+	 * @return De totale hoeveelheid werk van de beste keten (zie BlokIndex.getTotaalWerk()).
 	 */
-	public String blockchainNaarString() {
-		StringBuilder data = new StringBuilder();
-		
-		//schrijf op elke regel een blok uit de hoofdketen
-		BlokIndex index = genesisBlok;
-		while (!index.getBlok().equals(besteBlok.getBlok())) {
-			data.append(index.getBlok().toJSON().toString() + NEWLINE);
-			index = index.getVolgendeBlokIndex();
-		}
-		data.append(index.getBlok().toJSON().toString() + NEWLINE +
-					 "zijketen" + NEWLINE);
-		
-		//schrijf op elke regel een blok uit de zijketens
-		for (BlokIndex blokIndex : blokkenZijketen) {
-			data.append(blokIndex.getBlok().toJSON().toString() + NEWLINE);
-		}
-		
-		return data.toString();
+	public synchronized BigInteger getTotaalWerk() {
+		return besteBlok.getTotaalWerk();
 	}
 	
 	/**
-	 * Zoekt UTXO's in de blockchain die geld sturen naar de gegeven publieke sleutel.
-	 * @param publiekeSleutel	De publieke sleutel die de gezochte UTXO's moeten bevatten.
-	 * @return Lijst van alle transacties in de blockchain met uitvoeren die de gegeven publieke sleutel bevatten en nog niet zijn uitgegeven.
+	 * @param hash	Hash van een blok.
+	 * @return De totale hoeveelheid werk van de keten tot en met het blok (of null als het blok
+	 * 		   niet in de blockchain zit).
 	 */
-	public ArrayList<Transactie> zoekUTXOs(String publiekeSleutel) {
-		
-		ArrayList<Transactie> gevondenTransacties = new ArrayList<Transactie>();
-		ArrayList<Integer> gevondenUitvoerIndex = new ArrayList<Integer>();
-		
-		BlokIndex index = genesisBlok;
+	public synchronized BigInteger getTotaalWerk(String hash) {
+		BlokIndex blokIndex = getBlokIndex(hash);
+		return (blokIndex != null) ? blokIndex.getTotaalWerk() : null;
+	}
+	
+	/**
+	 * Maak een blok-locator: een lijst met hashes van blokken in de hoofdketen, van het beste
+	 * blok terug naar het genesisblok. De eerste tien blokken staan er allemaal in, daarna 
+	 * verdubbelt de afstand tussen de blokken. Een peer kan met de locator het laatste 
+	 * gemeenschappelijke blok vinden, terwijl de locator maar logaritmisch groeit met de 
+	 * lengte van de blockchain.
+	 * @return De hashes van de blokken in de locator, het beste blok eerst.
+	 */
+	public synchronized ArrayList<String> maakBlokLocator() {
+		ArrayList<String> locator = new ArrayList<String>();
 		
-		//zoek door elk blok in de blockchain, beginnende bij het genesisblok
-		while (index.getVolgendeBlokIndex() != null) {
-			index = index.getVolgendeBlokIndex();
-						
-			ArrayList<Transactie> transacties = index.getBlok().getTransacties();
-			
-			//zoek in elke transactie van het blok
-			for (Transactie tx : transacties) {
-						
-				//controleer of een van de tot nu gevonden uitvoeren wordt uitgegeven in deze transactie
-				for (int i=0; i<tx.getAantalInvoeren(); i++) {
-					Invoer invoer = tx.getInvoer(i);
-					
-					int verwijderIndex = -1;
-					for (int j=0; j<gevondenTransacties.size(); j++) {
-						if (invoer.uitvoerIndex == gevondenUitvoerIndex.get(j).intValue()) {
-							Transactie gevondenTx = gevondenTransacties.get(j);
-							if (invoer.hashVorigeTransactie.equals(gevondenTx.getHash())) {
-								//uitvoer wordt uitgegeven in deze transactie; verwijder hem uit de lijst
-								//met gevonden transacties 
-								verwijderIndex = j;
-								break;
-							}
-						}
-					}
-					
-					if (verwijderIndex != -1) {
-						gevondenTransacties.remove(verwijderIndex);
-						gevondenUitvoerIndex.remove(verwijderIndex);
-					}	
-				}
-				
-				//ga voor elke uitvoer na of het de gegeven publieke sleutel bevat
-				for (int i=0; i<tx.getAantalUitvoeren(); i++) {
-					Uitvoer uitvoer = tx.getUitvoer(i);
-					if (uitvoer.publiekeSleutel.equals(publiekeSleutel)) {
-						
-						//mogelijke UTXO gevonden; ga door naar volgende transactie
-						gevondenTransacties.add(tx);
-						gevondenUitvoerIndex.add(new Integer(i));
-						break;
-					}
-				}
+		int stap = 1;
+		for (int blokhoogte = besteBlok.getBlokhoogte(); blokhoogte > 0; blokhoogte -= stap) {
+			locator.add(hoofdketen.get(blokhoogte).getHash());
+			if (locator.size() >= 10) {
+				stap *= 2;
 			}
 		}
+		locator.add(genesisBlok.getHash());
 		
-		return gevondenTransacties;
+		return locator;
 	}
 	
 	/**
-	 * Vervang het blockchainbestand en laad de blockchain opnieuw.
-	 * @param blockchain	Inhoud van het nieuwe blockchainbestand.
+	 * Zoek de headers van de blokken in de hoofdketen die volgen op het laatste gemeenschappelijke
+	 * blok: het eerste blok uit de locator dat in de hoofdketen zit (of het genesisblok als geen 
+	 * enkel blok uit de locator in de hoofdketen zit).
+	 * @param locator	Blok-locator van een peer (zie maakBlokLocator()).
+	 * @param max		Het maximale aantal headers.
+	 * @return De headers, op volgorde van blokhoogte.
 	 */
-	public void vervangBlockchain(String blockchain) {
-		
-		FileWriter writer = null;
-		System.out.println("Probeer ontvangen blockchain naar bestand te schrijven: " + blockchain);
-		try {
-			writer = new FileWriter(BLOCKCHAIN_PATH);
-			writer.write(blockchain);
-			System.out.println("Klaar met blockchainbestand schrijven");
-		} catch (IOException e) {
-			e.printStackTrace();
-		} finally {
-			try {
-				if (writer != null) {
-					writer.close();
-				}
-			} catch (IOException e) {
-				e.printStackTrace();
+	public synchronized ArrayList<BlokHeader> zoekHeaders(List<String> locator, int max) {
+		int blokhoogteGemeenschappelijkBlok = 0;
+		for (String hash : locator) {
+			BlokIndex blokIndex = getBlokIndex(hash);
+			if (blokIndex != null && isInHoofdketen(blokIndex)) {
+				blokhoogteGemeenschappelijkBlok = blokIndex.getBlokhoogte();
+				break;
 			}
 		}
 		
-		//laad de blockchain opnieuw
-		initBlockchain();
-		
-		//Door het laden van de nieuwe blockchain hebben sommige weesblokken 
-		//misschien een ouder gekregen. Voeg deze blokken toe aan de blockchain.
-		ArrayList<Blok> verwijder = new ArrayList<Blok>();
+		ArrayList<BlokHeader> headers = new ArrayList<BlokHeader>();
+		for (int blokhoogte = blokhoogteGemeenschappelijkBlok + 1; 
+			 blokhoogte < hoofdketen.size() && headers.size() < max; blokhoogte++) {
+			headers.add(new BlokHeader(getBlok(hoofdketen.get(blokhoogte))));
+		}
+		return headers;
+	}
+	
+	/**
+	 * Zoek een blok in de blockchain (hoofdketen of zijketen).
+	 * @param hash	Hash van het gezochte blok.
+	 * @return Het blok (of null als het blok niet in de blockchain zit). Dit blok mag niet aangepast worden.
+	 */
+	public synchronized Blok getBlok(String hash) {
+		BlokIndex blokIndex = getBlokIndex(hash);
+		if (blokIndex == null) {
+			return null;
+		}
+		return getBlok(blokIndex);
+	}
+	
+	/**
+	 * Controleert of de blockchain of de lijst met weesblokken een blok met de gegeven hash bevat.
+	 * @param hash	De hashwaarde van het blok.
+	 * @return True (het blok is al ontvangen) of false (het blok is nog niet ontvangen).
+	 */
+	public synchronized boolean bevatBlok(String hash) {
+		if (blockchainBevat(hash)) {
+			return true;
+		}
 		for (Blok weesblok : weesblokken) {
-			if (blockchainBevat(weesblok.getVorigeBlokHash())) {
-				verwijder.add(weesblok);
+			if (weesblok.getHash().equals(hash)) {
+				return true;
 			}
 		}
-		for (Blok weesblok : verwijder) {
-			weesblokken.remove(weesblok);
-			voegBlokToe(weesblok);
-			System.out.println("Weesblok toegevoegd na laden van nieuwe blockchain");
-		}
+		return false;
 	}
-
+	
+	/**
+	 * Zoekt UTXO's in de blockchain die geld sturen naar de gegeven publieke sleutel.
+	 * @param publiekeSleutel	De publieke sleutel die de gezochte UTXO's moeten bevatten.
+	 * @return Alle uitvoeren in de blockchain die de gegeven publieke sleutel bevatten en nog niet zijn uitgegeven,
+	 * 		   met het bijbehorende Uitvoerpunt als sleutel.
+	 */
+	public synchronized HashMap<Uitvoerpunt, Uitvoer> zoekUTXOs(String publiekeSleutel) {
+		return utxoSet.zoekUitvoeren(publiekeSleutel);
+	}
+	
 	/**
 	 * Bepaal het saldo van de gebruiker met de gegeven publieke sleutel.
 	 * @param publiekeSleutel	Publieke sleutel van de gebruiker waarvan we het saldo willen weten.
 	 * @return Saldo van de gebruiker met de gegeven publieke sleutel.
 	 */
-	public int bepaalSaldo(String publiekeSleutel) {
+	public synchronized int bepaalSaldo(String publiekeSleutel) {
 		int saldo = 0;
-		ArrayList<Transactie> utxoTransacties = zoekUTXOs(publiekeSleutel);
-		for (Transactie tx : utxoTransacties) {
-			for (int i=0; i<tx.getAantalUitvoeren(); i++) {
-				Uitvoer uitvoer = tx.getUitvoer(i);
-				if (uitvoer.publiekeSleutel.equals(publiekeSleutel)) {
-					saldo += uitvoer.bedrag;
-					break;
-				}
-			}
+		for (Uitvoer uitvoer : zoekUTXOs(publiekeSleutel).values()) {
+			saldo += uitvoer.bedrag;
 		}
 		
 		return saldo;
 	}
 	
-	public ArrayList<Transactie> getTransactiePool() {
-		return transactiePool;
+	/**
+	 * @param transactie	Een transactie (of null).
+	 * @param index			De index van een uitvoer.
+	 * @return De uitvoer (of null als de transactie null is of de uitvoer niet bestaat).
+	 */
+	private static Uitvoer getUitvoer(Transactie transactie, int index) {
+		if (transactie == null || index < 0 || index >= transactie.getAantalUitvoeren()) {
+			return null;
+		}
+		return transactie.getUitvoer(index);
+	}
+	
+	/**
+	 * Zoek een transactie in de transactiePool.
+	 * @param hash	Hash van de gezochte transactie.
+	 * @return De transactie (of null als de transactie niet in de transactiePool zit).
+	 */
+	public synchronized Transactie getPoolTransactie(String hash) {
+		return transactiePool.get(hash);
+	}
+	
+	/**
+	 * @return Een kopie van de transacties in de transactiePool.
+	 */
+	public synchronized ArrayList<Transactie> getTransactiePoolKopie() {
+		return transactiePool.getTransacties();
+	}
+	
+	/**
+	 * @param uitvoerpunt	Een uitvoer.
+	 * @return True (de uitvoer wordt al uitgegeven door een transactie in de transactiePool) of false.
+	 */
+	public synchronized boolean isUitgegevenInPool(Uitvoerpunt uitvoerpunt) {
+		return transactiePool.getUitgegevenDoor(uitvoerpunt) != null;
 	}
 
 }
@@ -43,6 +43,20 @@ public class Blok {
 	 */
 	private ArrayList<Transactie> transacties;
 	
+	/**
+	 * De laatst berekende hashwaarde van dit blok (of null als de hash opnieuw berekend
+	 * moet worden). Wordt op null gezet door de setters van dit blok.
+	 */
+	private String hash;
+	
+	/**
+	 * De hashes van de transacties waarmee de bewaarde hash berekend is.
+	 * De lijst met transacties kan via getTransacties() worden aangepast en de
+	 * transacties zelf kunnen ook veranderen. Daarom controleert getHash() of de
+	 * transacties nog dezelfde hashes hebben voordat de bewaarde hash wordt teruggegeven.
+	 */
+	private String[] gehashteTransacties;
+	
 	public Blok(String vorigeBlokHash, long timestamp) {
 		this.vorigeBlokHash = vorigeBlokHash;
 		this.timestamp = timestamp;
@@ -51,6 +65,19 @@ public class Blok {
 		transacties = new ArrayList<Transactie>();
 	}
 	
+	/**
+	 * Maak een kopie van een blok. De lijst met transacties wordt gekopieerd, maar de
+	 * transacties zelf worden gedeeld met het originele blok.
+	 * @param blok	Het blok dat gekopieerd moet worden.
+	 */
+	public Blok(Blok blok) {
+		vorigeBlokHash = blok.vorigeBlokHash;
+		timestamp = blok.timestamp;
+		nonce = blok.nonce;
+		target = blok.target;
+		transacties = new ArrayList<Transactie>(blok.transacties);
+	}
+	
 	public Blok(JSONObject obj) {		
 		vorigeBlokHash = obj.getString("vorigeBlokHash");
 		timestamp = obj.getLong("timestamp");
@@ -71,17 +98,58 @@ public class Blok {
 	 * @return hash van de data van dit blok
 	 */
 	public String getHash() {
+		
+		if (isHashActueel()) {
+			return hash;
+		}
+		
+		String[] txHashes = new String[transacties.size()];
+		for (int i=0; i<transacties.size(); i++) {
+			txHashes[i] = transacties.get(i).getHash();
+		}
+		
+		hash = berekenHash(vorigeBlokHash, timestamp, nonce, target, txHashes);
+		gehashteTransacties = txHashes;
+		return hash;
+	}
+	
+	/**
+	 * Bereken de hash van een blok met de gegeven velden. Wordt ook door BlokHeader gebruikt.
+	 * @return De hash van het blok.
+	 */
+	static String berekenHash(String vorigeBlokHash, long timestamp, int nonce, String target, String[] txHashes) {
 		StringBuilder hashString = new StringBuilder();
 		hashString.append(vorigeBlokHash);
 		hashString.append(timestamp);
 		hashString.append(nonce);
 		hashString.append(target);
-		for (Transactie tx : transacties) {
-			hashString.append(tx.getHash());
+		for (String txHash : txHashes) {
+			hashString.append(txHash);
 		}
+		
 		return Util.getSha256Hash(hashString.toString());
 	}
 	
+	/**
+	 * Controleer of de bewaarde hash nog hoort bij de huidige inhoud van dit blok.
+	 * Transactie.getHash() geeft hetzelfde String-object terug zolang de transactie niet
+	 * verandert, dus de transactiehashes kunnen op referentie vergeleken worden.
+	 * @return True (de bewaarde hash kan gebruikt worden) of false (de hash moet opnieuw berekend worden).
+	 */
+	private boolean isHashActueel() {
+		if (hash == null || gehashteTransacties.length != transacties.size()) {
+			return false;
+		}
+		
+		for (int i=0; i<transacties.size(); i++) {
+			if (transacties.get(i).getHash() != gehashteTransacties[i]) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
 	public String getVorigeBlokHash() {
 		return vorigeBlokHash;
 	}
@@ -121,22 +189,27 @@ public class Blok {
 	
 	public void setVorigeBlokHash(String vorigeBlokHash) {
 		this.vorigeBlokHash = vorigeBlokHash;
+		hash = null;
 	}
 	
 	public void setTimestamp(long timestamp) {
 		this.timestamp = timestamp;
+		hash = null;
 	}
 	
 	public void setNonce(int nonce) {
 		this.nonce = nonce;
+		hash = null;
 	}
 	
 	public void setTarget(String target) {
 		this.target = target;
+		hash = null;
 	}
 	
 	public void voegTransactieToe(Transactie transactie) {
 		transacties.add(transactie);
+		hash = null;
 	}
 	
 	@Override
@@ -151,6 +224,11 @@ public class Blok {
 		return (this.getHash().equals(b.getHash()));
 	}
 	
+	@Override
+	public int hashCode() {
+		return getHash().hashCode();
+	}
+	
 	
 	
 	/**
@@ -0,0 +1,94 @@
+package nl.apkbaadjou.grotiuscoin;
+import java.util.ArrayList;
+
+
+/**
+ * Een BlokHeader bevat de velden van een blok die nodig zijn om de hash van het blok te 
+ * berekenen, zonder de transacties zelf: alleen de hashes van de transacties.
+ * Met een BlokHeader kan dus gecontroleerd worden of een blok genoeg werk bevat en op welk blok
+ * het volgt, voordat het hele blok gedownload wordt.
+ *
+ */
+public class BlokHeader {
+	
+	private final String vorigeBlokHash;
+	private final long timestamp;
+	private final int nonce;
+	private final String target;
+	private final String[] transactieHashes;
+	
+	/**
+	 * De hash van het blok (wordt berekend bij de eerste aanroep van getHash()).
+	 */
+	private String hash;
+	
+	public BlokHeader(String vorigeBlokHash, long timestamp, int nonce, String target, String[] transactieHashes) {
+		this.vorigeBlokHash = vorigeBlokHash;
+		this.timestamp = timestamp;
+		this.nonce = nonce;
+		this.target = target;
+		this.transactieHashes = transactieHashes;
+	}
+	
+	/**
+	 * Maak de header van een blok.
+	 * @param blok	Het blok.
+	 */
+	public BlokHeader(Blok blok) {
+		vorigeBlokHash = blok.getVorigeBlokHash();
+		timestamp = blok.getTimestamp();
+		nonce = blok.getNonce();
+		target = blok.getTarget();
+		
+		ArrayList<Transactie> transacties = blok.getTransacties();
+		transactieHashes = new String[transacties.size()];
+		for (int i=0; i<transacties.size(); i++) {
+			transactieHashes[i] = transacties.get(i).getHash();
+		}
+	}
+	
+	/**
+	 * @return De hash van het blok waar deze header bij hoort.
+	 */
+	public String getHash() {
+		if (hash == null) {
+			hash = Blok.berekenHash(vorigeBlokHash, timestamp, nonce, target, transactieHashes);
+		}
+		return hash;
+	}
+	
+	/**
+	 * Controleer of de hash onder de target ligt en de target niet hoger is dan 
+	 * BlockchainManager.MAX_TARGET (dezelfde controle als in BlockchainManager.voegBlokToe()).
+	 * @return True (de header bevat genoeg werk) of false (de header is ongeldig).
+	 */
+	public boolean isWerkGeldig() {
+		return getHash().compareTo(target) <= 0 &&
+			   target.compareTo(BlockchainManager.MAX_TARGET) <= 0;
+	}
+	
+	public String getVorigeBlokHash() {
+		return vorigeBlokHash;
+	}
+	
+	public long getTimestamp() {
+		return timestamp;
+	}
+	
+	public int getNonce() {
+		return nonce;
+	}
+	
+	public String getTarget() {
+		return target;
+	}
+	
+	public int getAantalTransacties() {
+		return transactieHashes.length;
+	}
+	
+	public String getTransactieHash(int index) {
+		return transactieHashes[index];
+	}
+
+}
@@ -1,9 +1,16 @@
 package nl.apkbaadjou.grotiuscoin;
+import java.math.BigInteger;
 
 /**
  * Een BlokIndex vormt een knoop in de boomstructuur van de blockchain.
  * Elk BlokIndex bevat een verwijzing naar het voorgaande en het volgende blok.
- * De verwijzing naar het volgende blok wijst altijd naar de langste keten.
+ * De verwijzing naar het volgende blok wijst altijd naar de keten met het meeste werk.
+ * 
+ * Een BlokIndex onthoudt ook de blokhoogte en de totale hoeveelheid werk van de keten tot en met
+ * dit blok. Deze waarden worden berekend zodra het vorige blok bekend is.
+ * 
+ * Een BlokIndex bevat alleen de headervelden van het blok en de locatie van het blok in de 
+ * BlokOpslag, niet de transacties. Het volledige blok kan via de BlokOpslag worden gelezen.
  *
  */
 public class BlokIndex {
@@ -11,12 +18,32 @@ public class BlokIndex {
 	private BlokIndex vorigeBlokIndex;
 	private BlokIndex volgendeBlokIndex;	//is null als er geen volgend blok is
 											//bij blokken in de zijketen is er geen garantie dat de volgendeBlokIndex klopt
-	private Blok blok;
+	private BlokLocatie locatie;
 	
-	public BlokIndex(Blok blok, BlokIndex vorigeBlokIndex, BlokIndex volgendeBlokIndex) {
-		this.blok = blok;
+	/**
+	 * Bevat de wijzigingen die dit blok in de UTXOSet heeft gemaakt, zodat deze ongedaan gemaakt 
+	 * kunnen worden als het blok uit de hoofdketen wordt gehaald. Is null als het blok niet in
+	 * de hoofdketen zit.
+	 */
+	private BlokUndo undo;
+	
+	/**
+	 * Het aantal blokken tussen het genesisblok en dit blok (het genesisblok heeft blokhoogte 0).
+	 */
+	private int blokhoogte;
+	
+	/**
+	 * De som van het werk van alle blokken vanaf het genesisblok tot en met dit blok.
+	 * Het werk van één blok is het verwachte aantal hashes dat nodig is om het blok te 
+	 * genereren (zie bepaalWerk()).
+	 */
+	private BigInteger totaalWerk;
+	
+	public BlokIndex(BlokLocatie locatie, BlokIndex vorigeBlokIndex, BlokIndex volgendeBlokIndex) {
+		this.locatie = locatie;
 		this.vorigeBlokIndex = vorigeBlokIndex;
 		this.volgendeBlokIndex = volgendeBlokIndex;
+		berekenHoogteEnWerk();
 	}
 	
 	public BlokIndex getVorigeBlokIndex() {
@@ -27,16 +54,73 @@ public class BlokIndex {
 		return volgendeBlokIndex;
 	}
 	
-	public Blok getBlok() {
-		return blok;
+	public BlokLocatie getLocatie() {
+		return locatie;
+	}
+	
+	public String getHash() {
+		return locatie.getHash();
+	}
+	
+	public String getVorigeBlokHash() {
+		return locatie.getVorigeBlokHash();
+	}
+	
+	public long getTimestamp() {
+		return locatie.getTimestamp();
+	}
+	
+	public String getTarget() {
+		return locatie.getTarget();
+	}
+	
+	public BlokUndo getUndo() {
+		return undo;
+	}
+	
+	public int getBlokhoogte() {
+		return blokhoogte;
+	}
+	
+	public BigInteger getTotaalWerk() {
+		return totaalWerk;
 	}
 	
 	public void setVorigeBlokIndex(BlokIndex vorigeBlokIndex) {
 		this.vorigeBlokIndex = vorigeBlokIndex;
+		berekenHoogteEnWerk();
 	}
 	
 	public void setVolgendeBlokIndex(BlokIndex volgendeBlokIndex) {
 		this.volgendeBlokIndex = volgendeBlokIndex;
 	}
+	
+	public void setUndo(BlokUndo undo) {
+		this.undo = undo;
+	}
+	
+	/**
+	 * Bereken de blokhoogte en het totale werk aan de hand van het vorige blok.
+	 * Als het vorige blok (nog) niet bekend is, wordt het blok behandeld als het begin van de keten.
+	 */
+	private void berekenHoogteEnWerk() {
+		BigInteger werk = bepaalWerk(locatie.getTarget());
+		if (vorigeBlokIndex == null) {
+			blokhoogte = 0;
+			totaalWerk = werk;
+		} else {
+			blokhoogte = vorigeBlokIndex.blokhoogte + 1;
+			totaalWerk = vorigeBlokIndex.totaalWerk.add(werk);
+		}
+	}
+	
+	/**
+	 * Bepaal het werk van een blok met de gegeven target: 2^256 / (target + 1).
+	 * @param target	De target van het blok (hexadecimaal).
+	 * @return Het verwachte aantal hashes dat nodig is om een blok met deze target te genereren.
+	 */
+	public static BigInteger bepaalWerk(String target) {
+		return BigInteger.ONE.shiftLeft(256).divide(new BigInteger(target, 16).add(BigInteger.ONE));
+	}
 
 }
@@ -0,0 +1,67 @@
+package nl.apkbaadjou.grotiuscoin;
+
+
+/**
+ * Een BlokLocatie beschrijft waar een blok in het blokbestand van de BlokOpslag staat.
+ * Daarnaast bevat een BlokLocatie de headervelden van het blok, zodat de structuur van de 
+ * blockchain kan worden opgebouwd door alleen het indexbestand te lezen.
+ *
+ */
+public class BlokLocatie {
+	
+	private final String hash;
+	private final String vorigeBlokHash;
+	private final long timestamp;
+	private final int nonce;
+	private final String target;
+	
+	/**
+	 * Positie van het blok in het blokbestand (in bytes vanaf het begin van het bestand).
+	 */
+	private final long offset;
+	
+	/**
+	 * Het aantal bytes dat het blok in het blokbestand inneemt (zonder de lengte zelf).
+	 */
+	private final int lengte;
+	
+	public BlokLocatie(String hash, String vorigeBlokHash, long timestamp, int nonce, String target, 
+					   long offset, int lengte) {
+		this.hash = hash;
+		this.vorigeBlokHash = vorigeBlokHash;
+		this.timestamp = timestamp;
+		this.nonce = nonce;
+		this.target = target;
+		this.offset = offset;
+		this.lengte = lengte;
+	}
+	
+	public String getHash() {
+		return hash;
+	}
+	
+	public String getVorigeBlokHash() {
+		return vorigeBlokHash;
+	}
+	
+	public long getTimestamp() {
+		return timestamp;
+	}
+	
+	public int getNonce() {
+		return nonce;
+	}
+	
+	public String getTarget() {
+		return target;
+	}
+	
+	public long getOffset() {
+		return offset;
+	}
+	
+	public int getLengte() {
+		return lengte;
+	}
+
+}
@@ -0,0 +1,396 @@
+package nl.apkbaadjou.grotiuscoin;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.xml.bind.DatatypeConverter;
+
+
+/**
+ * De BlokOpslag slaat blokken op de harde schijf op. Blokken worden alleen toegevoegd, nooit 
+ * aangepast of verwijderd, zodat het opslaan van een blok alleen kost wat het blok zelf kost.
+ * 
+ * De blokken worden in twee bestanden opgeslagen:
+ * 		-Het blokbestand bevat de blokken zelf. Elk blok begint met zijn lengte (int) en een 
+ * 		 byte die het formaat van het blok aangeeft, gevolgd door de data van het blok. De
+ * 		 blokken worden in het formaat van de BinaireCodec opgeslagen.
+ * 		-Het indexbestand bevat voor elk blok een item met een vaste grootte: de hash, de 
+ * 		 headervelden en de positie (offset en lengte) van het blok in het blokbestand.
+ * In beide bestanden staan de blokken in de volgorde waarin ze zijn toegevoegd. Een blok wordt
+ * dus altijd na zijn ouderblok opgeslagen.
+ * 
+ * Blokken worden pas gelezen als ze nodig zijn. Het blokbestand wordt daarvoor in het geheugen
+ * gemapt (in segmenten van maximaal 1 GB), zodat het lezen van een blok geen systeemaanroep kost
+ * en niet ten koste gaat van de heap. De laatst gelezen blokken worden bewaard in een cache met
+ * een vaste grootte.
+ * 
+ * Na het toevoegen van een blok worden beide bestanden naar de harde schijf geschreven (fsync),
+ * zodat er bij een crash geen geaccepteerde blokken verloren gaan. Als het programma crasht
+ * nadat een blok in het blokbestand is geschreven maar voordat het indexbestand is bijgewerkt,
+ * wordt het indexbestand bij het openen aangevuld.
+ *
+ */
+public class BlokOpslag {
+	
+	/**
+	 * Pad naar het blokbestand.
+	 */
+	public static final String BLOKKEN_PATH = Main.DIRECTORY + File.separator + "blokken.dat";
+	
+	/**
+	 * Pad naar het indexbestand.
+	 */
+	public static final String INDEX_PATH = Main.DIRECTORY + File.separator + "blokken.idx";
+	
+	/**
+	 * Formaat van een blok in het blokbestand: het formaat van de BinaireCodec. (De waarde 1
+	 * werd gebruikt voor blokken als JSON-tekst; die worden niet meer gelezen.)
+	 */
+	private static final byte FORMAAT_BINAIR = 2;
+	
+	/**
+	 * Grootte van een item in het indexbestand: hash (32), vorigeBlokHash (32), timestamp (8), 
+	 * nonce (4), target (32), offset (8) en lengte (4).
+	 */
+	private static final int INDEX_ITEM_GROOTTE = 32 + 32 + 8 + 4 + 32 + 8 + 4;
+	
+	/**
+	 * Het maximale aantal blokken in de cache. Kan worden ingesteld met de systeemeigenschap 
+	 * "grotiuscoin.blokcache".
+	 */
+	public static final int BLOK_CACHE_GROOTTE = Integer.getInteger("grotiuscoin.blokcache", 256);
+	
+	/**
+	 * Grootte van een gemapt segment van het blokbestand.
+	 */
+	private static final long SEGMENT_GROOTTE = 1L << 30;
+	
+	private RandomAccessFile blokkenBestand;
+	private RandomAccessFile indexBestand;
+	
+	/**
+	 * De locaties van alle opgeslagen blokken, in de volgorde waarin ze zijn toegevoegd.
+	 */
+	private ArrayList<BlokLocatie> locaties;
+	
+	/**
+	 * De gemapte segmenten van het blokbestand. Segment i begint bij i * SEGMENT_GROOTTE. Een
+	 * segment wordt opnieuw gemapt als er gelezen moet worden voorbij het einde van de mapping
+	 * (het laatste segment groeit mee met het bestand).
+	 */
+	private ArrayList<MappedByteBuffer> segmenten;
+	
+	/**
+	 * De laatst gebruikte blokken, met de offset van het blok als sleutel.
+	 */
+	private LinkedHashMap<Long, Blok> blokCache;
+	
+	public BlokOpslag() {
+		locaties = new ArrayList<BlokLocatie>();
+		segmenten = new ArrayList<MappedByteBuffer>();
+		
+		//LinkedHashMap in 'access order' houdt het minst recent gebruikte blok vooraan
+		blokCache = new LinkedHashMap<Long, Blok>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Blok> eldest) {
+				return size() > BLOK_CACHE_GROOTTE;
+			}
+		};
+	}
+	
+	/**
+	 * Open de bestanden van de BlokOpslag (ze worden aangemaakt als ze nog niet bestaan) en 
+	 * lees het indexbestand.
+	 * @throws IOException
+	 */
+	public synchronized void open() throws IOException {
+		sluit();
+		
+		blokkenBestand = new RandomAccessFile(BLOKKEN_PATH, "rw");
+		indexBestand = new RandomAccessFile(INDEX_PATH, "rw");
+		locaties.clear();
+		
+		//lees het indexbestand
+		long lengteBlokkenBestand = blokkenBestand.length();
+		long aantalItems = indexBestand.length() / INDEX_ITEM_GROOTTE;
+		ByteBuffer buffer = ByteBuffer.allocate(INDEX_ITEM_GROOTTE);
+		FileChannel indexKanaal = indexBestand.getChannel();
+		indexKanaal.position(0);
+		for (long i=0; i<aantalItems; i++) {
+			buffer.clear();
+			while (buffer.hasRemaining() && indexKanaal.read(buffer) >= 0);
+			buffer.flip();
+			
+			BlokLocatie locatie = leesIndexItem(buffer);
+			if (locatie.getOffset() + 4 + locatie.getLengte() > lengteBlokkenBestand) {
+				//het blok waar dit item naar verwijst staat niet (volledig) in het blokbestand
+				break;
+			}
+			locaties.add(locatie);
+		}
+		indexBestand.setLength((long) locaties.size() * INDEX_ITEM_GROOTTE);
+		
+		//vul de index aan met blokken die na het laatste indexitem in het blokbestand staan
+		long offset = 0;
+		if (!locaties.isEmpty()) {
+			BlokLocatie laatste = locaties.get(locaties.size()-1);
+			offset = laatste.getOffset() + 4 + laatste.getLengte();
+		}
+		while (offset + 4 <= lengteBlokkenBestand) {
+			blokkenBestand.seek(offset);
+			int lengte = blokkenBestand.readInt();
+			if (lengte <= 0 || offset + 4 + lengte > lengteBlokkenBestand) {
+				//onvolledig blok (bijvoorbeeld door een crash tijdens het schrijven)
+				break;
+			}
+			
+			byte[] data = new byte[lengte];
+			blokkenBestand.readFully(data);
+			Blok blok = decodeerBlok(data);
+			BlokLocatie locatie = maakLocatie(blok, offset, lengte);
+			schrijfIndexItem(locatie);
+			locaties.add(locatie);
+			offset += 4 + lengte;
+		}
+		blokkenBestand.setLength(offset);
+		
+		blokkenBestand.getChannel().force(false);
+		indexBestand.getChannel().force(false);
+	}
+	
+	/**
+	 * Sla een blok op. Het blok is na afloop van deze methode naar de harde schijf geschreven.
+	 * @param blok	Het blok dat opgeslagen moet worden.
+	 * @return De locatie van het opgeslagen blok.
+	 * @throws IOException
+	 */
+	public synchronized BlokLocatie voegBlokToe(Blok blok) throws IOException {
+		byte[] data = BinaireCodec.codeerBlok(blok);
+		
+		long offset = blokkenBestand.length();
+		ByteBuffer buffer = ByteBuffer.allocate(4 + 1 + data.length);
+		buffer.putInt(1 + data.length);
+		buffer.put(FORMAAT_BINAIR);
+		buffer.put(data);
+		buffer.flip();
+		
+		FileChannel kanaal = blokkenBestand.getChannel();
+		kanaal.position(offset);
+		while (buffer.hasRemaining()) {
+			kanaal.write(buffer);
+		}
+		kanaal.force(false);
+		
+		BlokLocatie locatie = maakLocatie(blok, offset, 1 + data.length);
+		schrijfIndexItem(locatie);
+		indexBestand.getChannel().force(false);
+		
+		locaties.add(locatie);
+		
+		//een nieuw blok wordt waarschijnlijk snel weer gebruikt
+		blokCache.put(offset, blok);
+		
+		return locatie;
+	}
+	
+	/**
+	 * Haal een blok op uit de cache, of lees het uit het blokbestand als het niet in de cache zit.
+	 * Het blok mag niet aangepast worden, omdat het in de cache bewaard blijft.
+	 * @param locatie	De locatie van het blok.
+	 * @return Het blok.
+	 * @throws IOException
+	 */
+	public synchronized Blok getBlok(BlokLocatie locatie) throws IOException {
+		Blok blok = blokCache.get(locatie.getOffset());
+		if (blok == null) {
+			blok = decodeerBlok(leesBytes(locatie.getOffset() + 4, locatie.getLengte()));
+			blokCache.put(locatie.getOffset(), blok);
+		}
+		return blok;
+	}
+	
+	/**
+	 * @return De locaties van alle opgeslagen blokken, in de volgorde waarin ze zijn toegevoegd.
+	 */
+	public synchronized ArrayList<BlokLocatie> getLocaties() {
+		return locaties;
+	}
+	
+	/**
+	 * @return True (er zijn geen blokken opgeslagen) of false (er zijn wel blokken opgeslagen).
+	 */
+	public synchronized boolean isLeeg() {
+		return locaties.isEmpty();
+	}
+	
+	/**
+	 * Sluit de bestanden van de BlokOpslag.
+	 */
+	public synchronized void sluit() {
+		segmenten.clear();
+		blokCache.clear();
+		try {
+			if (blokkenBestand != null) {
+				blokkenBestand.close();
+				blokkenBestand = null;
+			}
+			if (indexBestand != null) {
+				indexBestand.close();
+				indexBestand = null;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Lees bytes uit de gemapte segmenten van het blokbestand.
+	 * @param offset	Positie van de eerste byte in het blokbestand.
+	 * @param lengte	Het aantal bytes dat gelezen moet worden.
+	 * @return De gelezen bytes.
+	 * @throws IOException
+	 */
+	private byte[] leesBytes(long offset, int lengte) throws IOException {
+		byte[] data = new byte[lengte];
+		int gelezen = 0;
+		while (gelezen < lengte) {
+			long positie = offset + gelezen;
+			int segmentNummer = (int) (positie / SEGMENT_GROOTTE);
+			int positieInSegment = (int) (positie % SEGMENT_GROOTTE);
+			int aantal = (int) Math.min(lengte - gelezen, SEGMENT_GROOTTE - positieInSegment);
+			
+			MappedByteBuffer segment = getSegment(segmentNummer, positieInSegment + aantal);
+			
+			//gebruik een duplicate, zodat de positie van het segment zelf niet verandert
+			ByteBuffer buffer = segment.duplicate();
+			buffer.position(positieInSegment);
+			buffer.get(data, gelezen, aantal);
+			gelezen += aantal;
+		}
+		return data;
+	}
+	
+	/**
+	 * Geef een gemapt segment van het blokbestand dat minimaal het gegeven aantal bytes bevat.
+	 * @param segmentNummer		Nummer van het segment.
+	 * @param minimaleGrootte	Het aantal bytes dat het segment minimaal moet bevatten.
+	 * @return Het gemapte segment.
+	 * @throws IOException
+	 */
+	private MappedByteBuffer getSegment(int segmentNummer, int minimaleGrootte) throws IOException {
+		while (segmenten.size() <= segmentNummer) {
+			segmenten.add(null);
+		}
+		
+		MappedByteBuffer segment = segmenten.get(segmentNummer);
+		if (segment == null || segment.capacity() < minimaleGrootte) {
+			//map het segment (opnieuw), tot aan het einde van het segment of het bestand
+			long begin = segmentNummer * SEGMENT_GROOTTE;
+			long grootte = Math.min(SEGMENT_GROOTTE, blokkenBestand.length() - begin);
+			if (grootte < minimaleGrootte) {
+				throw new IOException("Blok valt buiten het blokbestand");
+			}
+			segment = blokkenBestand.getChannel().map(FileChannel.MapMode.READ_ONLY, begin, grootte);
+			segmenten.set(segmentNummer, segment);
+		}
+		return segment;
+	}
+	
+	/**
+	 * Zet de data van een blok uit het blokbestand om naar een Blok.
+	 * @param data	De data van het blok, te beginnen met de formaatbyte.
+	 * @return Het blok.
+	 * @throws IOException Als het formaat van het blok onbekend is.
+	 */
+	private Blok decodeerBlok(byte[] data) throws IOException {
+		try {
+			if (data[0] == FORMAAT_BINAIR) {
+				return BinaireCodec.decodeerBlok(Arrays.copyOfRange(data, 1, data.length));
+			}
+		} catch (RuntimeException e) {
+			throw new IOException("Blok is beschadigd", e);
+		}
+		throw new IOException("Onbekend blokformaat: " + data[0]);
+	}
+	
+	/**
+	 * Maak een BlokLocatie voor een blok.
+	 */
+	private BlokLocatie maakLocatie(Blok blok, long offset, int lengte) {
+		return new BlokLocatie(blok.getHash(), blok.getVorigeBlokHash(), blok.getTimestamp(), 
+							   blok.getNonce(), blok.getTarget(), offset, lengte);
+	}
+	
+	/**
+	 * Voeg een item toe aan het einde van het indexbestand.
+	 * @param locatie	De locatie die in het item wordt opgeslagen.
+	 * @throws IOException
+	 */
+	private void schrijfIndexItem(BlokLocatie locatie) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(INDEX_ITEM_GROOTTE);
+		buffer.put(hashNaarBytes(locatie.getHash()));
+		buffer.put(hashNaarBytes(locatie.getVorigeBlokHash()));
+		buffer.putLong(locatie.getTimestamp());
+		buffer.putInt(locatie.getNonce());
+		buffer.put(hashNaarBytes(locatie.getTarget()));
+		buffer.putLong(locatie.getOffset());
+		buffer.putInt(locatie.getLengte());
+		buffer.flip();
+		
+		FileChannel kanaal = indexBestand.getChannel();
+		kanaal.position(indexBestand.length());
+		while (buffer.hasRemaining()) {
+			kanaal.write(buffer);
+		}
+	}
+	
+	/**
+	 * Lees een item uit het indexbestand.
+	 * @param buffer	Buffer die het item bevat.
+	 * @return De locatie die in het item is opgeslagen.
+	 */
+	private BlokLocatie leesIndexItem(ByteBuffer buffer) {
+		String hash = leesHash(buffer);
+		String vorigeBlokHash = leesHash(buffer);
+		long timestamp = buffer.getLong();
+		int nonce = buffer.getInt();
+		String target = leesHash(buffer);
+		long offset = buffer.getLong();
+		int lengte = buffer.getInt();
+		return new BlokLocatie(hash, vorigeBlokHash, timestamp, nonce, target, offset, lengte);
+	}
+	
+	/**
+	 * Zet een hash (of target) om naar 32 bytes.
+	 * @param hash	Hash in hexadecimale notatie (64 tekens, hoofdletters).
+	 * @return De hash als byte-array.
+	 * @throws IOException Als de hash niet in 32 bytes kan worden opgeslagen zonder dat de 
+	 * 					   hexadecimale notatie verandert.
+	 */
+	private static byte[] hashNaarBytes(String hash) throws IOException {
+		if (hash.length() != 64) {
+			throw new IOException("Ongeldige hash: " + hash);
+		}
+		byte[] bytes = DatatypeConverter.parseHexBinary(hash);
+		if (!DatatypeConverter.printHexBinary(bytes).equals(hash)) {
+			throw new IOException("Ongeldige hash: " + hash);
+		}
+		return bytes;
+	}
+	
+	private static String leesHash(ByteBuffer buffer) {
+		byte[] bytes = new byte[32];
+		buffer.get(bytes);
+		return DatatypeConverter.printHexBinary(bytes);
+	}
+
+}
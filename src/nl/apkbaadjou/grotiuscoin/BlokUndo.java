@@ -0,0 +1,48 @@
+package nl.apkbaadjou.grotiuscoin;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+
+
+/**
+ * Een BlokUndo bevat de informatie die nodig is om de wijzigingen die een blok in de UTXOSet
+ * heeft gemaakt weer ongedaan te maken:
+ * 		-de uitvoeren die door de transacties van het blok zijn uitgegeven
+ * 		-de Uitvoerpunten van de uitvoeren die het blok heeft gemaakt
+ * Een BlokUndo wordt gemaakt door UTXOSet.verbindBlok() en wordt gebruikt door 
+ * UTXOSet.ontkoppelBlok() als het blok bij een reorganisatie uit de hoofdketen wordt gehaald.
+ *
+ */
+public class BlokUndo {
+	
+	/**
+	 * De uitvoeren die door het blok zijn uitgegeven, in de volgorde waarin ze zijn uitgegeven.
+	 */
+	private LinkedHashMap<Uitvoerpunt, Uitvoer> uitgegevenUitvoeren;
+	
+	/**
+	 * De Uitvoerpunten van de uitvoeren die door het blok zijn gemaakt.
+	 */
+	private LinkedHashSet<Uitvoerpunt> gemaakteUitvoerpunten;
+	
+	public BlokUndo() {
+		uitgegevenUitvoeren = new LinkedHashMap<Uitvoerpunt, Uitvoer>();
+		gemaakteUitvoerpunten = new LinkedHashSet<Uitvoerpunt>();
+	}
+	
+	public void voegUitgegevenUitvoerToe(Uitvoerpunt uitvoerpunt, Uitvoer uitvoer) {
+		uitgegevenUitvoeren.put(uitvoerpunt, uitvoer);
+	}
+	
+	public void voegGemaakteUitvoerToe(Uitvoerpunt uitvoerpunt) {
+		gemaakteUitvoerpunten.add(uitvoerpunt);
+	}
+	
+	public LinkedHashMap<Uitvoerpunt, Uitvoer> getUitgegevenUitvoeren() {
+		return uitgegevenUitvoeren;
+	}
+	
+	public LinkedHashSet<Uitvoerpunt> getGemaakteUitvoerpunten() {
+		return gemaakteUitvoerpunten;
+	}
+
+}
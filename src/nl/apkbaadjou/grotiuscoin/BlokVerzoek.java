@@ -0,0 +1,33 @@
+package nl.apkbaadjou.grotiuscoin;
+import java.util.LinkedHashSet;
+
+
+/**
+ * Een BlokVerzoek is een groep blokken die de Synchronisator bij één peer heeft opgevraagd.
+ *
+ */
+public class BlokVerzoek {
+	
+	/**
+	 * De peer bij wie de blokken zijn opgevraagd.
+	 */
+	public Peer peer;
+	
+	/**
+	 * Hashes van de opgevraagde blokken die nog niet ontvangen zijn, op volgorde van blokhoogte.
+	 */
+	public LinkedHashSet<String> hashes;
+	
+	/**
+	 * Tijdstip (in milliseconden sinds Unix Epoch) waarop het verzoek is verstuurd of waarop het
+	 * laatste blok van dit verzoek is ontvangen.
+	 */
+	public long laatsteActiviteit;
+	
+	public BlokVerzoek(Peer peer, LinkedHashSet<String> hashes) {
+		this.peer = peer;
+		this.hashes = hashes;
+		laatsteActiviteit = System.currentTimeMillis();
+	}
+
+}
@@ -0,0 +1,200 @@
+package nl.apkbaadjou.grotiuscoin;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+
+/**
+ * Een CompactBlok is een blok waarin de transacties (behalve de coinbasetransactie) alleen met
+ * een korte ID zijn opgenomen. Peers hebben de meeste transacties van een nieuw blok al in hun
+ * transactiePool, en kunnen het blok dus zelf weer opbouwen. Alleen de transacties die ze niet
+ * hebben, moeten nog opgevraagd worden.
+ *
+ * Een korte ID bestaat uit de eerste 6 bytes van de SHA-256-hash van de salt en de hash van de
+ * transactie. De salt is voor elk CompactBlok anders, zodat niemand van tevoren transacties kan
+ * maken met dezelfde korte ID. Omdat twee transacties toch dezelfde korte ID kunnen hebben,
+ * wordt na het opbouwen gecontroleerd of het blok de verwachte hash heeft.
+ *
+ */
+public class CompactBlok {
+
+	private static final SecureRandom random = new SecureRandom();
+
+	/**
+	 * De hash van het volledige blok.
+	 */
+	private final String hash;
+
+	private final String vorigeBlokHash;
+	private final long timestamp;
+	private final int nonce;
+	private final String target;
+	private final long salt;
+
+	/**
+	 * De korte ID's van de transacties, behalve de coinbasetransactie: kortIds[i] hoort bij
+	 * transactie i+1 van het blok.
+	 */
+	private final long[] kortIds;
+
+	/**
+	 * De transacties van het blok, voor zover ze bekend zijn (null als een transactie nog
+	 * ontbreekt). De coinbasetransactie wordt altijd meegestuurd.
+	 */
+	private final Transactie[] transacties;
+
+	public CompactBlok(String hash, String vorigeBlokHash, long timestamp, int nonce, String target,
+					   long salt, Transactie coinbase, long[] kortIds) {
+		this.hash = hash;
+		this.vorigeBlokHash = vorigeBlokHash;
+		this.timestamp = timestamp;
+		this.nonce = nonce;
+		this.target = target;
+		this.salt = salt;
+		this.kortIds = kortIds;
+		transacties = new Transactie[kortIds.length + 1];
+		transacties[0] = coinbase;
+	}
+
+	/**
+	 * Maak een CompactBlok van een blok, met een willekeurige salt.
+	 * @param blok	Het blok. Het blok moet een coinbasetransactie bevatten.
+	 */
+	public CompactBlok(Blok blok) {
+		hash = blok.getHash();
+		vorigeBlokHash = blok.getVorigeBlokHash();
+		timestamp = blok.getTimestamp();
+		nonce = blok.getNonce();
+		target = blok.getTarget();
+		salt = random.nextLong();
+
+		ArrayList<Transactie> bloktransacties = blok.getTransacties();
+		transacties = bloktransacties.toArray(new Transactie[bloktransacties.size()]);
+		kortIds = new long[transacties.length - 1];
+		for (int i=0; i<kortIds.length; i++) {
+			kortIds[i] = maakKortId(salt, transacties[i+1].getHash());
+		}
+	}
+
+	/**
+	 * @param salt		De salt van het CompactBlok.
+	 * @param txHash	De hash van de transactie.
+	 * @return De korte ID van de transactie (48 bits).
+	 */
+	public static long maakKortId(long salt, String txHash) {
+		return Long.parseLong(Util.getSha256Hash(salt + txHash).substring(0, 12), 16);
+	}
+
+	/**
+	 * Vul de ontbrekende transacties aan met transacties uit de transactiePool. Transacties
+	 * waarvan de korte ID bij meer dan één transactie uit de pool hoort, blijven ontbreken.
+	 * @param pool	De transacties in de transactiePool.
+	 */
+	public void vulAan(List<Transactie> pool) {
+		HashMap<Long, Transactie> perKortId = new HashMap<Long, Transactie>();
+		ArrayList<Long> dubbel = new ArrayList<Long>();
+		for (Transactie transactie : pool) {
+			long kortId = maakKortId(salt, transactie.getHash());
+			if (perKortId.put(kortId, transactie) != null) {
+				dubbel.add(kortId);
+			}
+		}
+		for (Long kortId : dubbel) {
+			perKortId.remove(kortId);
+		}
+
+		for (int i=0; i<kortIds.length; i++) {
+			if (transacties[i+1] == null) {
+				transacties[i+1] = perKortId.get(kortIds[i]);
+			}
+		}
+	}
+
+	/**
+	 * Vul ontbrekende transacties aan met transacties die bij een peer zijn opgevraagd.
+	 * @param indexen		De indexen van de transacties in het blok.
+	 * @param ontvangen		De transacties, in dezelfde volgorde als de indexen.
+	 * @return True (de transacties passen bij de korte ID's) of false (een transactie hoort niet
+	 * 		   bij de korte ID op haar plaats, of het aantal klopt niet).
+	 */
+	public boolean vulAan(List<Integer> indexen, List<Transactie> ontvangen) {
+		if (indexen.size() != ontvangen.size()) {
+			return false;
+		}
+		for (int i=0; i<indexen.size(); i++) {
+			int index = indexen.get(i);
+			Transactie transactie = ontvangen.get(i);
+			if (index < 1 || index >= transacties.length ||
+				kortIds[index-1] != maakKortId(salt, transactie.getHash())) {
+				return false;
+			}
+			transacties[index] = transactie;
+		}
+		return true;
+	}
+
+	/**
+	 * @return De indexen (in het blok) van de transacties die nog ontbreken.
+	 */
+	public ArrayList<Integer> getOntbrekendeIndexen() {
+		ArrayList<Integer> ontbrekend = new ArrayList<Integer>();
+		for (int i=0; i<transacties.length; i++) {
+			if (transacties[i] == null) {
+				ontbrekend.add(i);
+			}
+		}
+		return ontbrekend;
+	}
+
+	/**
+	 * Bouw het blok op. Alle transacties moeten bekend zijn (zie getOntbrekendeIndexen()).
+	 * @return Het blok (of null als het opgebouwde blok niet de verwachte hash heeft).
+	 */
+	public Blok maakBlok() {
+		Blok blok = new Blok(vorigeBlokHash, timestamp);
+		blok.setNonce(nonce);
+		blok.setTarget(target);
+		for (Transactie transactie : transacties) {
+			blok.voegTransactieToe(transactie);
+		}
+
+		if (!blok.getHash().equals(hash)) {
+			return null;
+		}
+		return blok;
+	}
+
+	public String getHash() {
+		return hash;
+	}
+
+	public String getVorigeBlokHash() {
+		return vorigeBlokHash;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public int getNonce() {
+		return nonce;
+	}
+
+	public String getTarget() {
+		return target;
+	}
+
+	public long getSalt() {
+		return salt;
+	}
+
+	public Transactie getCoinbase() {
+		return transacties[0];
+	}
+
+	public long[] getKortIds() {
+		return kortIds;
+	}
+
+}
@@ -0,0 +1,147 @@
+package nl.apkbaadjou.grotiuscoin;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Deze klasse bevat de cryptografische bewerkingen die vaak worden uitgevoerd: SHA-256-hashes
+ * berekenen en ECDSA-handtekeningen zetten en controleren.
+ * 
+ * MessageDigest.getInstance(), Signature.getInstance() en KeyFactory.getInstance() zoeken elke
+ * keer een provider op. Daarom krijgt elke thread één eigen MessageDigest, Signature en 
+ * KeyFactory, die steeds opnieuw gebruikt worden (deze objecten zijn niet thread-safe). 
+ * Publieke sleutels worden na het decoderen in een cache bewaard, zodat een sleutel die 
+ * in veel uitvoeren voorkomt niet steeds opnieuw geparsed hoeft te worden.
+ *
+ */
+public class Crypto {
+	
+	/**
+	 * Het maximale aantal publieke sleutels in de cache. Als de cache vol is, wordt de sleutel
+	 * vergeten die het langst niet gebruikt is.
+	 * Kan worden ingesteld met de systeemeigenschap "grotiuscoin.sleutelcache".
+	 */
+	public static final int MAX_SLEUTELS = Integer.getInteger("grotiuscoin.sleutelcache", 1000);
+	
+	private static final ThreadLocal<MessageDigest> sha256 = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+	
+	private static final ThreadLocal<Signature> ecdsa = new ThreadLocal<Signature>() {
+		@Override
+		protected Signature initialValue() {
+			try {
+				return Signature.getInstance("SHA256withECDSA");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+	
+	private static final ThreadLocal<KeyFactory> ecKeyFactory = new ThreadLocal<KeyFactory>() {
+		@Override
+		protected KeyFactory initialValue() {
+			try {
+				return KeyFactory.getInstance("EC");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+	
+	/**
+	 * Gedecodeerde publieke sleutels, met de sleutel (hex) als sleutel, de minst recent 
+	 * gebruikte eerst. Code die de map gebruikt dient in een synchronized-blok te staan met
+	 * 'publiekeSleutels' als de lock.
+	 */
+	private static final LinkedHashMap<String, PublicKey> publiekeSleutels = 
+			new LinkedHashMap<String, PublicKey>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, PublicKey> oudste) {
+			return size() > MAX_SLEUTELS;
+		}
+	};
+	
+	private Crypto() {
+	}
+	
+	/**
+	 * @param data	De data.
+	 * @return De SHA-256-hash van de data.
+	 */
+	public static byte[] sha256(byte[] data) {
+		return sha256.get().digest(data);
+	}
+	
+	/**
+	 * Decodeer een publieke sleutel (zoals die in een Uitvoer staat). Sleutels die al eerder
+	 * gedecodeerd zijn, komen uit de cache.
+	 * @param hex	De publieke sleutel: de X.509-codering van de sleutel, als hexadecimaal getal.
+	 * @return De publieke sleutel.
+	 * @throws GeneralSecurityException Als de sleutel ongeldig is.
+	 */
+	public static PublicKey getPubliekeSleutel(String hex) throws GeneralSecurityException {
+		synchronized (publiekeSleutels) {
+			PublicKey sleutel = publiekeSleutels.get(hex);
+			if (sleutel != null) {
+				return sleutel;
+			}
+		}
+		
+		//decodeer buiten de lock, zodat andere threads niet hoeven te wachten
+		byte[] pubBytes = new BigInteger(hex, 16).toByteArray();
+		PublicKey sleutel = ecKeyFactory.get().generatePublic(new X509EncodedKeySpec(pubBytes));
+		synchronized (publiekeSleutels) {
+			publiekeSleutels.put(hex, sleutel);
+		}
+		return sleutel;
+	}
+	
+	/**
+	 * Controleer een ECDSA-handtekening (SHA256withECDSA).
+	 * @param sleutel		De publieke sleutel.
+	 * @param data			De ondertekende data.
+	 * @param handtekening	De handtekening (DER-codering).
+	 * @return True (de handtekening klopt) of false.
+	 * @throws GeneralSecurityException Als de sleutel of de handtekening ongeldig is.
+	 */
+	public static boolean controleer(PublicKey sleutel, byte[] data, byte[] handtekening) throws GeneralSecurityException {
+		Signature sig = ecdsa.get();
+		sig.initVerify(sleutel);
+		sig.update(data);
+		return sig.verify(handtekening);
+	}
+	
+	/**
+	 * Zet een ECDSA-handtekening (SHA256withECDSA).
+	 * @param sleutel	De privésleutel.
+	 * @param data		De data die ondertekend moet worden.
+	 * @return De handtekening (DER-codering).
+	 * @throws GeneralSecurityException
+	 */
+	public static byte[] onderteken(PrivateKey sleutel, byte[] data) throws GeneralSecurityException {
+		Signature sig = ecdsa.get();
+		sig.initSign(sleutel);
+		sig.update(data);
+		return sig.sign();
+	}
+
+}
@@ -232,12 +232,15 @@ public class Gui extends JFrame {
 	 * Update de lijst met peers
 	 * @param peerinfo		Informatie over peers (bv. IP-adres)
 	 */
-	public void updatePeerLijst(String[] peerinfo) {
-		peerLijst.setText("");
-		for (String info : peerinfo) {
-			peerLijst.append(info + "\n");
-		}
-		
+	public void updatePeerLijst(final String[] peerinfo) {
+		SwingUtilities.invokeLater(new Runnable() {		
+			public void run() {	
+				peerLijst.setText("");
+				for (String info : peerinfo) {
+					peerLijst.append(info + "\n");
+				}
+			}
+		});
 	}
 	
 	/**
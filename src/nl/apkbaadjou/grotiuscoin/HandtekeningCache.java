@@ -0,0 +1,80 @@
+package nl.apkbaadjou.grotiuscoin;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * De HandtekeningCache onthoudt welke handtekeningen al gecontroleerd zijn en klopten. Een
+ * transactie wordt gecontroleerd als ze in de transactiePool komt en opnieuw als het blok met
+ * de transactie binnenkomt; met de cache hoeft de (dure) ECDSA-controle maar één keer.
+ * 
+ * De sleutel bestaat uit de hash van de transactie, de publieke sleutel van de uitvoer waar
+ * de invoer naar verwijst en de handtekening zelf. De handtekening moet in de sleutel zitten,
+ * omdat de hash van een transactie niet over de handtekeningen gaat: dezelfde transactie met
+ * een andere (onjuiste) handtekening heeft dezelfde hash.
+ * 
+ * Alleen kloppende handtekeningen worden onthouden. Als de cache vol is, wordt de handtekening
+ * vergeten die het langst niet gebruikt is. Alle methoden zijn synchronized, zodat de cache door
+ * meerdere threads (zie HandtekeningTaak) gebruikt kan worden.
+ *
+ */
+public class HandtekeningCache {
+	
+	/**
+	 * Het standaard maximale aantal handtekeningen in de cache.
+	 * Kan worden ingesteld met de systeemeigenschap "grotiuscoin.handtekeningcache".
+	 */
+	public static final int MAX_HANDTEKENINGEN = Integer.getInteger("grotiuscoin.handtekeningcache", 50000);
+	
+	/**
+	 * De sleutels van de kloppende handtekeningen, de minst recent gebruikte eerst.
+	 */
+	private LinkedHashMap<String, Boolean> handtekeningen;
+	
+	/**
+	 * @param max	Het maximale aantal handtekeningen in de cache.
+	 */
+	public HandtekeningCache(final int max) {
+		handtekeningen = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Boolean> oudste) {
+				return size() > max;
+			}
+		};
+	}
+	
+	/**
+	 * Maak de sleutel van een handtekening. De sleutel is een hash, zodat de cache niet de 
+	 * volledige publieke sleutels en handtekeningen bewaart.
+	 * @param txHash		De hash van de transactie.
+	 * @param pubSleutel	De publieke sleutel waarmee de handtekening gecontroleerd wordt.
+	 * @param handtekening	De handtekening.
+	 * @return De sleutel.
+	 */
+	public static String maakSleutel(String txHash, String pubSleutel, String handtekening) {
+		return Util.getSha256Hash(txHash + ":" + pubSleutel + ":" + handtekening);
+	}
+	
+	/**
+	 * @param sleutel	De sleutel van een handtekening (zie maakSleutel()).
+	 * @return True (de handtekening is al gecontroleerd en klopt) of false.
+	 */
+	public synchronized boolean bevat(String sleutel) {
+		return handtekeningen.get(sleutel) != null;
+	}
+	
+	/**
+	 * Onthoud dat een handtekening klopt.
+	 * @param sleutel	De sleutel van de handtekening (zie maakSleutel()).
+	 */
+	public synchronized void voegToe(String sleutel) {
+		handtekeningen.put(sleutel, Boolean.TRUE);
+	}
+	
+	public synchronized int getAantal() {
+		return handtekeningen.size();
+	}
+
+}
@@ -0,0 +1,34 @@
+package nl.apkbaadjou.grotiuscoin;
+
+
+/**
+ * Een HandtekeningControle is de controle van de handtekening van één invoer van een transactie
+ * (zie Wallet.controleerHandtekening()). De controles van een blok worden verzameld en daarna
+ * tegelijk op meerdere threads uitgevoerd (zie HandtekeningTaak).
+ *
+ */
+public class HandtekeningControle {
+	
+	/**
+	 * De invoer waarvan de handtekening gecontroleerd moet worden.
+	 */
+	public Invoer invoer;
+	
+	/**
+	 * De transactie die de invoer bevat. De hash van de transactie moet al berekend zijn, zodat
+	 * de transactie op meerdere threads gelezen kan worden zonder dat de hash verandert.
+	 */
+	public Transactie transactie;
+	
+	/**
+	 * De uitvoer waar de invoer naar verwijst.
+	 */
+	public Uitvoer vorigeUitvoer;
+	
+	public HandtekeningControle(Invoer invoer, Transactie transactie, Uitvoer vorigeUitvoer) {
+		this.invoer = invoer;
+		this.transactie = transactie;
+		this.vorigeUitvoer = vorigeUitvoer;
+	}
+
+}
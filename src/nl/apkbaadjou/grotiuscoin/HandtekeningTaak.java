@@ -0,0 +1,127 @@
+package nl.apkbaadjou.grotiuscoin;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+ * Een HandtekeningTaak controleert een reeks handtekeningen (zie HandtekeningControle) met een
+ * ForkJoinPool. De reeks wordt in tweeën gedeeld tot er maximaal DREMPEL controles over zijn;
+ * die worden door één thread uitgevoerd.
+ * 
+ * Met controleer() stoppen alle taken zodra één handtekening niet klopt; het resultaat is 
+ * hetzelfde als bij het één voor één controleren van de handtekeningen: true als alle 
+ * handtekeningen kloppen, anders false. Met controleerAfzonderlijk() worden alle handtekeningen
+ * gecontroleerd en komt er een resultaat per handtekening (bijvoorbeeld voor een groep 
+ * transacties die los van elkaar geldig of ongeldig zijn).
+ *
+ */
+public class HandtekeningTaak extends RecursiveTask<Boolean> {
+	
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Het maximale aantal controles dat niet meer verder gedeeld wordt.
+	 */
+	public static final int DREMPEL = 8;
+	
+	/**
+	 * De pool waarin de handtekeningen gecontroleerd worden, met één thread per processor.
+	 * Het aantal threads kan worden ingesteld met de systeemeigenschap "grotiuscoin.controlethreads".
+	 */
+	private static final ForkJoinPool pool = new ForkJoinPool(
+			Integer.getInteger("grotiuscoin.controlethreads", Runtime.getRuntime().availableProcessors()));
+	
+	private final List<HandtekeningControle> controles;
+	private final int begin;
+	private final int einde;
+	
+	/**
+	 * Wordt op true gezet zodra een handtekening niet klopt. Wordt gedeeld door alle taken
+	 * van dezelfde reeks.
+	 */
+	private final AtomicBoolean mislukt;
+	
+	/**
+	 * Het resultaat per handtekening (of null als de taken moeten stoppen bij de eerste 
+	 * onjuiste handtekening). Elke taak schrijft alleen in zijn eigen deel van de array.
+	 */
+	private final boolean[] resultaten;
+	
+	private HandtekeningTaak(List<HandtekeningControle> controles, int begin, int einde, AtomicBoolean mislukt,
+							 boolean[] resultaten) {
+		this.controles = controles;
+		this.begin = begin;
+		this.einde = einde;
+		this.mislukt = mislukt;
+		this.resultaten = resultaten;
+	}
+	
+	/**
+	 * Controleer alle handtekeningen. Kleine reeksen worden direct op de aanroepende thread
+	 * gecontroleerd.
+	 * @param controles	De handtekeningen die gecontroleerd moeten worden.
+	 * @return True (alle handtekeningen kloppen) of false (minstens één handtekening klopt niet).
+	 */
+	public static boolean controleer(List<HandtekeningControle> controles) {
+		HandtekeningTaak taak = new HandtekeningTaak(controles, 0, controles.size(), new AtomicBoolean(), null);
+		return voerUit(taak);
+	}
+	
+	/**
+	 * Controleer alle handtekeningen, ook als er handtekeningen niet kloppen.
+	 * @param controles	De handtekeningen die gecontroleerd moeten worden.
+	 * @return Per handtekening (in dezelfde volgorde): true (de handtekening klopt) of false.
+	 */
+	public static boolean[] controleerAfzonderlijk(List<HandtekeningControle> controles) {
+		boolean[] resultaten = new boolean[controles.size()];
+		voerUit(new HandtekeningTaak(controles, 0, controles.size(), new AtomicBoolean(), resultaten));
+		return resultaten;
+	}
+	
+	/**
+	 * Voer een taak uit. Kleine taken worden direct op de aanroepende thread uitgevoerd.
+	 */
+	private static boolean voerUit(HandtekeningTaak taak) {
+		if (taak.einde - taak.begin <= DREMPEL) {
+			return taak.compute();
+		}
+		return pool.invoke(taak);
+	}
+	
+	@Override
+	protected Boolean compute() {
+		if (einde - begin > DREMPEL) {
+			int midden = (begin + einde) >>> 1;
+			HandtekeningTaak links = new HandtekeningTaak(controles, begin, midden, mislukt, resultaten);
+			HandtekeningTaak rechts = new HandtekeningTaak(controles, midden, einde, mislukt, resultaten);
+			links.fork();
+			boolean rechtsGeldig = rechts.compute();
+			return links.join() && rechtsGeldig;
+		}
+		
+		boolean geldig = true;
+		for (int i=begin; i<einde; i++) {
+			if (resultaten == null && mislukt.get()) {
+				//een andere taak heeft al een onjuiste handtekening gevonden
+				return false;
+			}
+			HandtekeningControle controle = controles.get(i);
+			boolean klopt = Wallet.controleerHandtekening(controle.invoer, controle.transactie, controle.vorigeUitvoer);
+			if (resultaten != null) {
+				resultaten[i] = klopt;
+			}
+			if (!klopt) {
+				System.out.println("Transactie bevat een invoer met een onjuiste handtekening");
+				mislukt.set(true);
+				if (resultaten == null) {
+					return false;
+				}
+				geldig = false;
+			}
+		}
+		return geldig;
+	}
+
+}
@@ -1,7 +1,12 @@
 package nl.apkbaadjou.grotiuscoin;
 
 import java.io.File;
+import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Timer;
+import java.util.TimerTask;
 
 import javax.swing.SwingUtilities;
 import org.json.JSONObject;
@@ -16,9 +21,30 @@ public class Main implements GuiHandler, NetworkListener {
 	
 	public static final String COIN_NAAM = "Grotiuscoin";
 	
-	private Gui gui;
+	/**
+	 * Het maximale aantal ontvangen transacties dat in één keer aan de transactiePool wordt
+	 * toegevoegd (zie verwerkOntvangenTransacties()).
+	 */
+	public static final int MAX_TRANSACTIES_PER_GROEP = 500;
+	
+	/**
+	 * De GUI. Wordt op de Event Dispatch Thread gemaakt; tot die tijd is gui null.
+	 */
+	private volatile Gui gui;
 	private Network network;
 	private BlockchainManager blockchainManager;
+	private Synchronisator synchronisator;
+	private Verspreider verspreider;
+	private VerbindingsBeheerder verbindingsBeheerder;
+	
+	/**
+	 * Ontvangen transacties die nog aan de transactiePool moeten worden toegevoegd, met de 
+	 * afzender van elke transactie en de hashes (om dubbele transacties over te slaan).
+	 * Worden alleen door de main thread gebruikt.
+	 */
+	private ArrayList<Transactie> ontvangenTransacties;
+	private ArrayList<Peer> transactieAfzenders;
+	private HashSet<String> ontvangenHashes;
 	private Wallet wallet;
 	
 	/**
@@ -26,7 +52,7 @@ public class Main implements GuiHandler, NetworkListener {
 	 * Zodra te gebruiker het scherm probeert te sluiten, 
 	 * wordt deze waarde op false gezet.
 	 */
-	private boolean doorgaan;
+	private volatile boolean doorgaan;
 	
 	public static void main(String[] args) {
 		Main main = new Main();
@@ -35,6 +61,9 @@ public class Main implements GuiHandler, NetworkListener {
 	
 	public void start() {
 		doorgaan = true;
+		ontvangenTransacties = new ArrayList<Transactie>();
+		transactieAfzenders = new ArrayList<Peer>();
+		ontvangenHashes = new HashSet<String>();
 		
 		//initialiseer wallet
 		wallet = new Wallet();
@@ -43,87 +72,362 @@ public class Main implements GuiHandler, NetworkListener {
 		//initialiseer de blockchain
 		blockchainManager = new BlockchainManager(wallet.getPubliekeSleutel());
 		blockchainManager.initBlockchain();
+		synchronisator = new Synchronisator(blockchainManager);
 
 		//luister naar peers
 		network = new Network();
 		network.voegListenerToe(this);
+		verbindingsBeheerder = new VerbindingsBeheerder(network);
 		network.start();
+		verspreider = new Verspreider(network, blockchainManager);
+		
+		//maak de UI (op de Event Dispatch Thread) en wacht tot de UI bestaat
+		try {
+			SwingUtilities.invokeAndWait(new Runnable() {
+				@Override
+				public void run() {
+					gui = new Gui(Main.this);
+					gui.updateMijnAdres(wallet.getPubliekeSleutel());
+					gui.updateSaldo(blockchainManager.bepaalSaldo(wallet.getPubliekeSleutel()));
+					
+					//toon de peers die al verbonden zijn voordat de gui bestond
+					updatePeerLijst();
+				}
+			});
+		} catch (InterruptedException e) {
+			network.stop();
+			return;
+		} catch (InvocationTargetException e) {
+			//de UI kon niet gemaakt worden
+			e.printStackTrace();
+			network.stop();
+			return;
+		}
+		
+		//verbind automatisch met peers uit het adresboek (pas nu de gui bestaat)
+		verbindingsBeheerder.start();
+	
+		//registreer de handlers voor de verschillende soorten berichten
+		BerichtVerdeler verdeler = new BerichtVerdeler();
+		verdeler.registreer("peerverbonden", new BerichtHandler() {
+			@Override
+			public void verwerkBericht(JSONObject bericht, Peer peer) {
+				updatePeerLijst();
+				
+				//stuur de blokhoogte van deze node naar de nieuwe peer
+				peer.stuurBericht(BerichtUtil.maakBlokhoogteBericht(blockchainManager.getBlokhoogte()));
+				System.out.println("blokhoogte verstuurd");
+			}
+		});
+		verdeler.registreer("peerverbroken", new BerichtHandler() {
+			@Override
+			public void verwerkBericht(JSONObject bericht, Peer peer) {
+				synchronisator.peerVerbroken(peer);
+				updatePeerLijst();
+			}
+		});
+		verdeler.registreer("transactie", new BerichtHandler() {
+			@Override
+			public void verwerkBericht(JSONObject bericht, Peer afzender) {
+				verwerkTransactieBericht(bericht, afzender);
+			}
+		});
+		verdeler.registreer("inv", new BerichtHandler() {
+			@Override
+			public void verwerkBericht(JSONObject bericht, Peer afzender) {
+				verspreider.verwerkInv(bericht, afzender);
+			}
+		});
+		verdeler.registreer("getdata", new BerichtHandler() {
+			@Override
+			public void verwerkBericht(JSONObject bericht, Peer afzender) {
+				verspreider.verwerkGetData(bericht, afzender);
+			}
+		});
+		verdeler.registreer("compactblok", new BerichtHandler() {
+			@Override
+			public void verwerkBericht(JSONObject bericht, Peer afzender) {
+				//het blok wordt null als er nog transacties ontbreken; die worden opgevraagd
+				Blok blok = verspreider.verwerkCompactBlok(bericht, afzender);
+				if (blok != null) {
+					verwerkBlok(blok, afzender);
+				}
+			}
+		});
+		verdeler.registreer("getbloktx", new BerichtHandler() {
+			@Override
+			public void verwerkBericht(JSONObject bericht, Peer afzender) {
+				verspreider.verwerkGetBlokTx(bericht, afzender);
+			}
+		});
+		verdeler.registreer("bloktx", new BerichtHandler() {
+			@Override
+			public void verwerkBericht(JSONObject bericht, Peer afzender) {
+				Blok blok = verspreider.verwerkBlokTx(bericht, afzender);
+				if (blok != null) {
+					verwerkBlok(blok, afzender);
+				}
+			}
+		});
+		verdeler.registreer("blok", new BerichtHandler() {
+			@Override
+			public void verwerkBericht(JSONObject bericht, Peer afzender) {
+				verwerkBlokBericht(bericht, afzender);
+			}
+		});
+		verdeler.registreer("blokhoogte", new BerichtHandler() {
+			@Override
+			public void verwerkBericht(JSONObject bericht, Peer afzender) {
+				//als de andere node een hogere blokhoogte heeft, haal dan de ontbrekende blokken op
+				//(bij deze peer en bij alle andere peers die verder zijn) 
+				System.out.println("blokhoogte peer: " + bericht.getInt("blokhoogte"));
+				synchronisator.setBlokhoogte(afzender, bericht.getInt("blokhoogte"));
+			}
+		});
+		verdeler.registreer("getheaders", new BerichtHandler() {
+			@Override
+			public void verwerkBericht(JSONObject bericht, Peer afzender) {
+				ArrayList<BlokHeader> headers = blockchainManager.zoekHeaders(BerichtUtil.leesLocator(bericht), 
+																			  Synchronisator.MAX_HEADERS_PER_BERICHT);
+				afzender.stuurBericht(BerichtUtil.maakHeadersBericht(headers));
+			}
+		});
+		verdeler.registreer("headers", new BerichtHandler() {
+			@Override
+			public void verwerkBericht(JSONObject bericht, Peer afzender) {
+				ArrayList<BlokHeader> headers;
+				try {
+					headers = BerichtUtil.leesHeaders(bericht);
+				} catch (IllegalArgumentException e) {
+					System.out.println("ongeldige headers ontvangen: " + e.getMessage());
+					return;
+				}
+				System.out.println(headers.size() + " headers ontvangen");
+				synchronisator.verwerkHeaders(headers, afzender);
+			}
+		});
+		verdeler.registreer("getadressen", new BerichtHandler() {
+			@Override
+			public void verwerkBericht(JSONObject bericht, Peer afzender) {
+				verbindingsBeheerder.verwerkGetAdressen(afzender);
+			}
+		});
+		verdeler.registreer("adressen", new BerichtHandler() {
+			@Override
+			public void verwerkBericht(JSONObject bericht, Peer afzender) {
+				verbindingsBeheerder.verwerkAdressen(bericht, afzender);
+			}
+		});
+		verdeler.registreer("getblokken", new BerichtHandler() {
+			@Override
+			public void verwerkBericht(JSONObject bericht, Peer afzender) {
+				//stuur elk gevraagd blok (in de gevraagde volgorde) in een eigen blokbericht
+				ArrayList<String> hashes = BerichtUtil.leesHashes(bericht);
+				for (int i=0; i<hashes.size() && i<Synchronisator.MAX_HEADERS_PER_BERICHT; i++) {
+					Blok blok = blockchainManager.getBlok(hashes.get(i));
+					if (blok != null) {
+						afzender.stuurBericht(BerichtUtil.maakBlokBericht(blok));
+					}
+				}
+			}
+		});
 		
-		//maak de UI (op de Event Dispatch Thread)
-		SwingUtilities.invokeLater(new Runnable() {
+		//controleer regelmatig of er blokverzoeken zijn waarop geen antwoord komt
+		Timer synchronisatieTimer = new Timer("synchronisatieTimer", true);
+		synchronisatieTimer.schedule(new TimerTask() {
 			@Override
 			public void run() {
-				gui = new Gui(Main.this);
-				gui.updateMijnAdres(wallet.getPubliekeSleutel());
-				gui.updateSaldo(blockchainManager.bepaalSaldo(wallet.getPubliekeSleutel()));
+				synchronisator.controleerVerzoeken();
 			}
-		});	
+		}, Synchronisator.CONTROLE_INTERVAL, Synchronisator.CONTROLE_INTERVAL);
+		
+		//Deze thread wacht op blokken die door de MinerPool zijn gegenereerd, en zet ze als 
+		//eigen bericht (zonder afzender) in de queue, zodat ze net als ontvangen blokken op 
+		//de main thread worden verwerkt.
+		Thread gevondenBlokThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Blok gevondenBlok;
+				while ((gevondenBlok = blockchainManager.wachtOpGevondenBlok()) != null) {
+					network.plaatsBericht(BerichtUtil.maakBlokBericht(gevondenBlok), null);
+				}
+			}
+		});
+		gevondenBlokThread.setName("gevondenBlokThread");
+		gevondenBlokThread.setDaemon(true);
+		gevondenBlokThread.start();
 	
-		//deze loop stopt wanneer de gebruiker het venster probeert te sluiten
+		//Deze loop wacht op berichten en stopt wanneer de gebruiker het venster probeert te 
+		//sluiten. Als er geen berichten zijn, doet de main thread niets.
+		//Ontvangen transacties worden verzameld en als groep aan de transactiePool toegevoegd:
+		//zodra er geen berichten meer in de queue staan, de groep vol is of er een ander soort 
+		//bericht komt (dat na de transacties verwerkt moet worden).
 		while (doorgaan) {
-			
-			//verwerk ontvangen berichten
 			BerichtAfzenderPaar bap;
-			while ((bap = network.haalBerichtOp()) != null) {
-				String soort = bap.bericht.getString("soort");
-				
-				if (soort.equals("transactie")) {
-					
-					System.out.println("transactie ontvangen: " + bap.bericht.getString("transactiejson"));
-					Transactie transactie = new Transactie(new JSONObject(bap.bericht.getString("transactiejson")));
-					
-					//voeg de transactie toe aan de transactiePool
-					if (blockchainManager.voegTransactieToe(transactie)) {
-						
-						//transactie is geldig; stuur door naar alle peers
-						JSONObject transactiebericht = BerichtUtil.maakTransactieBericht(transactie);
-						for (int i=0; i<network.getAantalPeers(); i++) {	
-							Peer p = network.getPeer(i);
-							network.stuurBericht(transactiebericht, p.getIP());		
-						}
-					}	
-				} 
-				else if (soort.equals("blok")) {
-					//controleer het ontvangen blok en voeg het toe aan de blockchain
-					System.out.println("blok ontvangen: " + bap.bericht.getString("blokjson"));
-					Blok blok = new Blok(new JSONObject(bap.bericht.getString("blokjson")));
-					
-					if (blockchainManager.voegBlokToe(blok)) {
-						//door het nieuwe blok is het saldo van de gebruiker misschien veranderd; update gui
-						gui.updateSaldo(blockchainManager.bepaalSaldo(wallet.getPubliekeSleutel()));
-						
-					}
-				} else if (soort.equals("blokhoogte")) {
-					//als de andere node een lagere blokhoogte heeft, stuur hem dan de blockchain 
-					System.out.println("blokhoogte peer: " + bap.bericht.getInt("blokhoogte"));
-					if (bap.bericht.getInt("blokhoogte") < blockchainManager.getBlokhoogte()) {
-						bap.afzender.stuurBericht(BerichtUtil.maakBlockchainBericht(blockchainManager.blockchainNaarString()));
-					}
-				} else if (soort.equals("blockchain")) {
-					//neem de ontvangen blockchain over
-					System.out.println("blockchain ontvangen");
-					blockchainManager.vervangBlockchain(bap.bericht.getString("blockchain"));
+			try {
+				bap = ontvangenTransacties.isEmpty() ? network.wachtOpBericht() : network.haalBerichtOp();
+			} catch (InterruptedException e) {
+				break;
+			}
+			
+			if (bap == null) {
+				//de queue is leeg
+				verwerkOntvangenTransacties();
+				continue;
+			}
+			if (!doorgaan) {
+				//stopbericht
+				break;
+			}
+			if (!bap.bericht.optString("soort").equals("transactie") ||
+				ontvangenTransacties.size() >= MAX_TRANSACTIES_PER_GROEP) {
+				verwerkOntvangenTransacties();
+			}
+			verdeler.verdeel(bap);
+		}
+		
+		//stop met minen en sluit de blockchain af
+		synchronisatieTimer.cancel();
+		verbindingsBeheerder.stop();
+		blockchainManager.stopMiner();
+		blockchainManager.sluitBlockchain();
+
+	}
+
+	/**
+	 * Verwerk een ontvangen transactie. De transactie wordt bij de ontvangen transacties gezet
+	 * en later (met andere transacties) aan de transactiePool toegevoegd.
+	 * @param bericht	Het transactiebericht.
+	 * @param afzender	De Peer die de transactie gestuurd heeft.
+	 */
+	private void verwerkTransactieBericht(JSONObject bericht, Peer afzender) {
+		Transactie transactie;
+		try {
+			transactie = BerichtUtil.leesTransactie(bericht);
+		} catch (IllegalArgumentException e) {
+			System.out.println("ongeldige transactie ontvangen: " + e.getMessage());
+			return;
+		}
+		String hash = transactie.getHash();
+		System.out.println("transactie ontvangen: " + hash);
+		verspreider.ontvangen(hash, afzender);
+		
+		//controleer de transactie niet opnieuw als deze al bekend is
+		if (verspreider.isAfgewezen(hash) || ontvangenHashes.contains(hash) ||
+			blockchainManager.getPoolTransactie(hash) != null) {
+			return;
+		}
+		
+		ontvangenTransacties.add(transactie);
+		transactieAfzenders.add(afzender);
+		ontvangenHashes.add(hash);
+	}
+	
+	/**
+	 * Voeg de ontvangen transacties in één keer toe aan de transactiePool (zie 
+	 * BlockchainManager.voegTransactiesToe()) en kondig de geldige transacties aan bij de 
+	 * andere peers.
+	 */
+	private void verwerkOntvangenTransacties() {
+		if (ontvangenTransacties.isEmpty()) {
+			return;
+		}
+		
+		try {
+			boolean[] blijvendOngeldig = new boolean[ontvangenTransacties.size()];
+			boolean[] geldig = blockchainManager.voegTransactiesToe(ontvangenTransacties, blijvendOngeldig);
+			ArrayList<String> hashes = new ArrayList<String>();
+			ArrayList<Peer> afzenders = new ArrayList<Peer>();
+			for (int i=0; i<geldig.length; i++) {
+				String hash = ontvangenTransacties.get(i).getHash();
+				Peer afzender = transactieAfzenders.get(i);
+				if (geldig[i]) {
+					afzender.verhoogNut();
+					hashes.add(hash);
+					afzenders.add(afzender);
+				} else if (blijvendOngeldig[i]) {
+					//Alleen transacties die altijd ongeldig zijn worden onthouden. Een transactie met
+					//een onjuiste handtekening niet: de hash bevat de handtekening niet, dus dan zou
+					//ook de echte transactie worden afgewezen.
+					verspreider.wijsAf(hash);
 				}
 			}
 			
-			//probeer een blok te genereren
-			Blok nieuwBlok;
-			if ((nieuwBlok = blockchainManager.mine()) != null) {
+			//transacties zijn geldig; kondig aan bij de andere peers
+			verspreider.kondigTransactiesAan(hashes, afzenders);
+		} catch (RuntimeException e) {
+			//de groep gaat verloren, maar de main thread blijft berichten verwerken
+			System.out.println("Fout bij het verwerken van ontvangen transacties; groep wordt overgeslagen");
+			e.printStackTrace();
+		} finally {
+			ontvangenTransacties.clear();
+			transactieAfzenders.clear();
+			ontvangenHashes.clear();
+		}
+	}
+	
+	/**
+	 * Verwerk een ontvangen of zelf gegenereerd blok.
+	 * @param bericht	Het blokbericht.
+	 * @param afzender	De Peer die het blok gestuurd heeft (of null als de MinerPool het blok 
+	 * 					heeft gegenereerd).
+	 */
+	private void verwerkBlokBericht(JSONObject bericht, Peer afzender) {
+		Blok blok;
+		try {
+			blok = BerichtUtil.leesBlok(bericht);
+		} catch (IllegalArgumentException e) {
+			System.out.println("ongeldig blok ontvangen: " + e.getMessage());
+			return;
+		}
+		
+		verwerkBlok(blok, afzender);
+	}
+	
+	/**
+	 * Verwerk een ontvangen, opgebouwd of zelf gegenereerd blok.
+	 * @param blok		Het blok.
+	 * @param afzender	De Peer die het blok gestuurd heeft (of null als de MinerPool het blok 
+	 * 					heeft gegenereerd).
+	 */
+	private void verwerkBlok(Blok blok, Peer afzender) {
+		if (afzender == null) {
+			//zelf gegenereerd blok
+			if (blockchainManager.verwerkGevondenBlok(blok)) {
 				
-				//stuur blok door naar peers
-				for (int i=0; i<network.getAantalPeers(); i++) {
-					network.stuurBericht(BerichtUtil.maakBlokBericht(nieuwBlok), network.getPeer(i).getIP());
-					System.out.println("blok verstuurd");
-				}
+				//stuur het blok (als CompactBlok) naar de peers
+				verspreider.kondigBlokAan(blok, null);
 				
 				//het saldo van de gebruiker is misschien veranderd; update gui
 				gui.updateSaldo(blockchainManager.bepaalSaldo(wallet.getPubliekeSleutel()));
 			}
+			return;
 		}
 		
-		//sla de blockchain op
-		blockchainManager.slaBlockchainOp();
-
+		System.out.println("blok ontvangen: " + blok.getHash());
+		verspreider.ontvangen(blok.getHash(), afzender);
+		if (synchronisator.verwerkBlok(blok, afzender)) {
+			//het blok is opgevraagd door de synchronisator en wordt (op volgorde) toegevoegd
+			afzender.verhoogNut();
+			gui.updateSaldo(blockchainManager.bepaalSaldo(wallet.getPubliekeSleutel()));
+			return;
+		}
+		
+		//controleer het ontvangen blok en voeg het toe aan de blockchain
+		boolean ouderOntbreekt = !blockchainManager.bevatBlok(blok.getVorigeBlokHash());
+		if (blockchainManager.voegBlokToe(blok)) {
+			//het blok is geldig; stuur het (als CompactBlok) naar de andere peers
+			afzender.verhoogNut();
+			verspreider.kondigBlokAan(blok, afzender);
+			
+			//door het nieuwe blok is het saldo van de gebruiker misschien veranderd; update gui
+			gui.updateSaldo(blockchainManager.bepaalSaldo(wallet.getPubliekeSleutel()));
+		}
+		
+		if (ouderOntbreekt) {
+			//de peer heeft blokken die deze node mist; haal ze op
+			synchronisator.start(afzender);
+		}
 	}
 
 	/**
@@ -143,42 +447,21 @@ public class Main implements GuiHandler, NetworkListener {
 				nieuweTransactie.voegUitvoerToe(new Uitvoer(aantal, adres));
 				
 				//zoek UTXO's in de blockchain
-				ArrayList<Transactie> utxoTransacties = blockchainManager.zoekUTXOs(wallet.getPubliekeSleutel());
+				HashMap<Uitvoerpunt, Uitvoer> utxos = blockchainManager.zoekUTXOs(wallet.getPubliekeSleutel());
 				
-				//verwijder UTXO's die al gebruikt worden door een transactie in de transactiePool
-				ArrayList<Transactie> verwijder = new ArrayList<Transactie>();
-				for (Transactie utxoTx : utxoTransacties) {
-					for (int i=0; i<utxoTx.getAantalUitvoeren(); i++) {
-						Uitvoer uitvoer = utxoTx.getUitvoer(i);
-						if (uitvoer.publiekeSleutel.equals(wallet.getPubliekeSleutel())) {
-							
-							for (Transactie poolTx : blockchainManager.getTransactiePool()) {
-								for (int j=0; j<poolTx.getAantalInvoeren(); j++) {
-									Invoer invoer = poolTx.getInvoer(j);
-									if (invoer.uitvoerIndex == i) {
-										if (invoer.hashVorigeTransactie.equals(utxoTx.getHash())) {
-											//uitvoer wordt al uitgegeven door een transactie in de transactiepool
-											if (!verwijder.contains(utxoTx)) {
-												verwijder.add(utxoTx);
-												break;
-											}
-										}
-									}
-								}
-							}			
-							break;
-						}
+				//sla UTXO's over die al gebruikt worden door een transactie in de transactiePool
+				ArrayList<Uitvoerpunt> beschikbareUitvoerpunten = new ArrayList<Uitvoerpunt>();
+				for (Uitvoerpunt uitvoerpunt : utxos.keySet()) {
+					if (!blockchainManager.isUitgegevenInPool(uitvoerpunt)) {
+						beschikbareUitvoerpunten.add(uitvoerpunt);
 					}
 				}
-				for (Transactie t : verwijder) {
-					utxoTransacties.remove(t);
-				}
 				
 				//bepaal hoeveel UTXO's nodig zijn om het gewenste bedrag te kunnen uitgeven
 				int nogTeBetalen = aantal;
 				while (nogTeBetalen > 0) {
 					
-					if (utxoTransacties.size() == 0) {
+					if (beschikbareUitvoerpunten.size() == 0) {
 						//Geen UTXO's meer over: de gebruiker heeft niet genoeg geld voor de transactie of
 						//er zijn tijdelijk geen transactie-invoeren beschikbaar.
 						if (aantal > blockchainManager.bepaalSaldo(wallet.getPubliekeSleutel())) {
@@ -189,21 +472,9 @@ public class Main implements GuiHandler, NetworkListener {
 						return;
 					}
 					
-					Transactie utxoTx = utxoTransacties.remove(utxoTransacties.size()-1);
-					Uitvoer uit = null;
-					int uitvoerIndex = 0;
-					
-					//zoek de juiste uitvoer
-					for (int i=0; i<utxoTx.getAantalUitvoeren(); i++) {
-						uit = utxoTx.getUitvoer(i);
-						uitvoerIndex = i;
-						if (utxoTx.getUitvoer(i).publiekeSleutel.equals(wallet.getPubliekeSleutel())) {
-							break;
-						}
-					}
-					
-					nogTeBetalen -= uit.bedrag;
-					nieuweTransactie.voegInvoerToe(new Invoer(utxoTx.getHash(), uitvoerIndex));	
+					Uitvoerpunt uitvoerpunt = beschikbareUitvoerpunten.remove(beschikbareUitvoerpunten.size()-1);
+					nogTeBetalen -= utxos.get(uitvoerpunt).bedrag;
+					nieuweTransactie.voegInvoerToe(new Invoer(uitvoerpunt.getTxHash(), uitvoerpunt.getUitvoerIndex()));	
 				}
 				
 				//als er te veel betaald is, stuur dan wisselgeld terug naar de eigen publieke sleutel
@@ -218,12 +489,8 @@ public class Main implements GuiHandler, NetworkListener {
 				//voeg de transactie toe aan de transactiePool
 				if (blockchainManager.voegTransactieToe(nieuweTransactie)) {
 
-					//transactie is geldig; stuur door naar alle peers
-					JSONObject transactiebericht = BerichtUtil.maakTransactieBericht(nieuweTransactie);
-					for (int i=0; i<network.getAantalPeers(); i++) {	
-						Peer p = network.getPeer(i);
-						network.stuurBericht(transactiebericht, p.getIP());		
-					}
+					//transactie is geldig; kondig aan bij alle peers
+					verspreider.kondigTransactieAan(nieuweTransactie.getHash(), null);
 					
 					gui.toonMelding("Transactie is verstuurd en zal over enkele minuten zijn verwerkt.");
 				}
@@ -245,6 +512,9 @@ public class Main implements GuiHandler, NetworkListener {
 		//Laat alle niet-Daemon threads stoppen, zodat het programma stopt.
 		network.stop();
 		doorgaan = false;	//zorgt ervoor dat main thread stopt
+		
+		//maak de main thread wakker als deze op een bericht wacht
+		network.plaatsBericht(BerichtUtil.maakStopBericht(), null);
 	}
 
 	/**
@@ -252,47 +522,70 @@ public class Main implements GuiHandler, NetworkListener {
 	 * Wordt uitgevoerd op Event Dispatch Thread
 	 */
 	@Override
-	public void verbindMetPeer(final int poort, final String ip) {
-
-		
-		//start nieuwe Thread zodat de Event Dispatch Thread niet hoeft te wachten
-		new Thread(new Runnable() {
-			@Override
-			public void run() {
-				network.verbindMetPeer(poort, ip);
-			}	
-		}).start();
+	public void verbindMetPeer(int poort, String ip) {
+		//het adres wordt onthouden; als de verbinding later verbroken wordt, verbindt de 
+		//VerbindingsBeheerder opnieuw
+		verbindingsBeheerder.verbindHandmatig(ip, poort);
 	}
 
 	/**
-	 * Wordt aangeroepen door network als een nieuwe peer verbindt
+	 * Wordt aangeroepen door network als een nieuwe peer verbindt.
+	 * Wordt uitgevoerd op de netwerkthread. De rest van de verwerking (die locks van de
+	 * BlockchainManager en de Synchronisator nodig heeft) gebeurt op de main thread.
 	 */
 	@Override
 	public void nieuwePeer(Peer peer) {
-		updatePeerLijst();
-		
-		//stuur de blokhoogte van deze node naar de nieuwe peer
-		peer.stuurBericht(BerichtUtil.maakBlokhoogteBericht(blockchainManager.getBlokhoogte()));
-		
-		System.out.println("blokhoogte verstuurd");
+		verbindingsBeheerder.nieuwePeer(peer);
+		network.plaatsBericht(BerichtUtil.maakPeerVerbondenBericht(), peer);
 	}
 
 	/**
 	 * Wordt aangeroepen door network als een peer de verbinding verbreekt.
+	 * Wordt uitgevoerd op de netwerkthread; de Synchronisator hoort het op de main thread.
 	 */
 	@Override
 	public void verbindingVerbroken(Peer peer) {
-		updatePeerLijst();
+		verbindingsBeheerder.verbindingVerbroken(peer);
+		network.plaatsBericht(BerichtUtil.maakPeerVerbrokenBericht(), peer);
+	}
+	
+	/**
+	 * Wordt aangeroepen door network als een peer zijn versiebericht heeft gestuurd.
+	 */
+	@Override
+	public void versieOntvangen(Peer peer) {
+		verbindingsBeheerder.versieOntvangen(peer);
+	}
+	
+	/**
+	 * Wordt aangeroepen door network als een uitgaande verbinding niet gemaakt kon worden.
+	 */
+	@Override
+	public void verbindingMislukt(String ip, int poort) {
+		verbindingsBeheerder.verbindingMislukt(ip, poort);
+	}
+	
+	/**
+	 * Wordt aangeroepen door network als deze node met zichzelf verbonden was.
+	 */
+	@Override
+	public void verbindingMetZelf(String ip, int poort) {
+		verbindingsBeheerder.verbindingMetZelf(ip, poort);
 	}
 	
 	/**
 	 * Update de lijst met peers die wordt weergegeven in de GUI.
 	 */
 	private void updatePeerLijst() {
-		String[] peerInfo = new String[network.getAantalPeers()];
-		for (int i=0; i<network.getAantalPeers(); i++) {
-			Peer p = network.getPeer(i);
-			peerInfo[i] = p.getIP();
+		Gui gui = this.gui;
+		if (gui == null) {
+			//de gui wordt nog gemaakt; die toont de peers zodra hij bestaat
+			return;
+		}
+		ArrayList<Peer> peers = network.getPeers();
+		String[] peerInfo = new String[peers.size()];
+		for (int i=0; i<peers.size(); i++) {
+			peerInfo[i] = peers.get(i).getIP();
 		}
 		gui.updatePeerLijst(peerInfo);
 	}
@@ -0,0 +1,183 @@
+package nl.apkbaadjou.grotiuscoin;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.xml.bind.DatatypeConverter;
+
+
+/**
+ * De Miner zoekt een nonce waarmee de hash van een blok onder de target ligt.
+ *
+ * De hash van een blok wordt berekend over de volgende tekst (zie Blok.getHash()):
+ * 		vorigeBlokHash + timestamp + nonce + target + hashes van de transacties
+ * Alleen de nonce verandert tijdens het minen. Daarom wordt de tekst bij het aanmaken
+ * van een Miner eenmalig in drie delen opgesplitst:
+ * 		-Het deel vóór de nonce wordt al door SHA-256 verwerkt. De toestand van de
+ * 		 MessageDigest na dit deel (de 'midstate') wordt bewaard en voor elke poging
+ * 		 gekopieerd.
+ * 		-De nonce wordt per poging direct als ASCII-cijfers in een buffer geschreven.
+ * 		-Het deel na de nonce wordt als byte-array bewaard.
+ * De berekende hash wordt byte voor byte vergeleken met de target, zodat er per poging
+ * geen hexadecimale strings gemaakt hoeven te worden.
+ * De gevonden hashes zijn exact gelijk aan de hashes van Blok.getHash().
+ *
+ */
+public class Miner {
+
+	/**
+	 * Het blok waarvoor een nonce wordt gezocht.
+	 */
+	private Blok blok;
+
+	/**
+	 * Toestand van de MessageDigest nadat het deel vóór de nonce is verwerkt.
+	 * Is null als de MessageDigest niet gekopieerd kan worden; in dat geval wordt
+	 * prefix bij elke poging opnieuw verwerkt.
+	 */
+	private MessageDigest midstate;
+
+	/**
+	 * Het deel van de hashtekst vóór de nonce.
+	 */
+	private byte[] prefix;
+
+	/**
+	 * Het deel van de hashtekst na de nonce.
+	 */
+	private byte[] suffix;
+
+	/**
+	 * De target van het blok in binaire vorm.
+	 */
+	private byte[] target;
+
+	/**
+	 * @param blok	Het blok waarvoor een nonce gezocht moet worden. De Miner gebruikt de
+	 * 				velden van het blok zoals ze op dit moment zijn; latere wijzigingen aan het
+	 * 				blok hebben geen invloed op de Miner.
+	 */
+	public Miner(Blok blok) {
+		this.blok = blok;
+
+		//gebruik dezelfde opbouw als Blok.getHash()
+		StringBuilder prefixString = new StringBuilder();
+		prefixString.append(blok.getVorigeBlokHash());
+		prefixString.append(blok.getTimestamp());
+
+		StringBuilder suffixString = new StringBuilder();
+		suffixString.append(blok.getTarget());
+		for (Transactie tx : blok.getTransacties()) {
+			suffixString.append(tx.getHash());
+		}
+
+		//Util.getSha256Hash() gebruikt String.getBytes(), dus dat doen we hier ook
+		prefix = prefixString.toString().getBytes();
+		suffix = suffixString.toString().getBytes();
+		target = DatatypeConverter.parseHexBinary(blok.getTarget());
+
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(prefix);
+
+			//controleer of de midstate gekopieerd kan worden
+			digest.clone();
+			midstate = digest;
+		} catch (NoSuchAlgorithmException e) {
+			e.printStackTrace();
+		} catch (CloneNotSupportedException e) {
+			midstate = null;
+		}
+	}
+
+	/**
+	 * Probeer alle nonces in het gegeven bereik.
+	 * Het bereik wordt als long opgegeven, zodat ook Integer.MAX_VALUE geprobeerd kan worden.
+	 * @param beginNonce	De eerste nonce die geprobeerd wordt (minimaal Integer.MIN_VALUE).
+	 * @param eindNonce		De nonce tot waar gezocht wordt (deze nonce zelf wordt niet geprobeerd; 
+	 * 						maximaal Integer.MAX_VALUE + 1).
+	 * @return De eerste nonce waarmee de hash van het blok onder de target ligt (of null als
+	 * 		   er geen geldige nonce in het bereik zit).
+	 */
+	public Integer zoekNonce(long beginNonce, long eindNonce) {
+
+		try {
+			MessageDigest digest = (midstate != null) ? null : MessageDigest.getInstance("SHA-256");
+			byte[] nonceBytes = new byte[11];	//genoeg voor "-2147483648"
+
+			for (long nonce = beginNonce; nonce < eindNonce; nonce++) {
+
+				if (midstate != null) {
+					digest = (MessageDigest) midstate.clone();
+				} else {
+					digest.reset();
+					digest.update(prefix);
+				}
+
+				int lengte = schrijfNonce((int) nonce, nonceBytes);
+				digest.update(nonceBytes, nonceBytes.length - lengte, lengte);
+				digest.update(suffix);
+
+				if (isOnderTarget(digest.digest())) {
+					return Integer.valueOf((int) nonce);
+				}
+			}
+
+		} catch (NoSuchAlgorithmException e) {
+			e.printStackTrace();
+		} catch (CloneNotSupportedException e) {
+			e.printStackTrace();
+		}
+
+		//geen geldige nonce gevonden
+		return null;
+	}
+
+	/**
+	 * @return Het blok waarvoor deze Miner een nonce zoekt.
+	 */
+	public Blok getBlok() {
+		return blok;
+	}
+
+	/**
+	 * Controleer of een hash kleiner dan of gelijk aan de target is.
+	 * Dit komt overeen met hash.compareTo(target) <= 0 op de hexadecimale strings.
+	 * @param hash	De te controleren hash (32 bytes).
+	 * @return True (hash <= target) of false (hash > target).
+	 */
+	private boolean isOnderTarget(byte[] hash) {
+		for (int i=0; i<hash.length; i++) {
+			int h = hash[i] & 0xFF;
+			int t = target[i] & 0xFF;
+			if (h != t) {
+				return h < t;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Schrijf de decimale notatie van de nonce (zoals StringBuilder.append(int) die maakt)
+	 * aan het einde van de buffer.
+	 * @param nonce		De nonce die geschreven moet worden.
+	 * @param buffer	Buffer van minimaal 11 bytes.
+	 * @return Het aantal geschreven bytes.
+	 */
+	private static int schrijfNonce(int nonce, byte[] buffer) {
+		int positie = buffer.length;
+
+		//reken met een negatieve waarde, zodat ook Integer.MIN_VALUE werkt
+		int waarde = (nonce < 0) ? nonce : -nonce;
+		do {
+			buffer[--positie] = (byte) ('0' - (waarde % 10));
+			waarde /= 10;
+		} while (waarde != 0);
+
+		if (nonce < 0) {
+			buffer[--positie] = '-';
+		}
+
+		return buffer.length - positie;
+	}
+
+}
@@ -0,0 +1,172 @@
+package nl.apkbaadjou.grotiuscoin;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ * De MinerPool verdeelt het minen van een blok over meerdere threads.
+ *
+ * Elke keer dat start() wordt aangeroepen, wordt er een kopie gemaakt van het gegeven blok
+ * (het 'sjabloon'). De threads werken alleen met deze kopie, zodat het originele blok tijdens
+ * het minen gewoon aangepast kan worden. Het bereik van de nonce (alle int-waarden) wordt in
+ * gelijke delen over de threads verdeeld. Als een thread zijn hele deel heeft geprobeerd,
+ * krijgt het blok een nieuwe timestamp en begint de thread opnieuw aan zijn deel.
+ *
+ * Een gevonden blok wordt in een queue gezet en kan worden opgehaald met wachtOpGevondenBlok().
+ * Een nieuwe aanroep van start() stopt het werk aan het vorige sjabloon; blokken die voor een
+ * oud sjabloon gevonden worden, worden weggegooid.
+ *
+ */
+public class MinerPool {
+
+	/**
+	 * Het aantal threads dat standaard gebruikt wordt om te minen. Kan worden ingesteld
+	 * met de systeemeigenschap "grotiuscoin.minerthreads".
+	 */
+	public static final int AANTAL_MINER_THREADS = Integer.getInteger("grotiuscoin.minerthreads",
+												   Runtime.getRuntime().availableProcessors());
+
+	/**
+	 * Het aantal nonces dat een thread probeert voordat gecontroleerd wordt of het werk
+	 * gestopt moet worden.
+	 */
+	private static final int NONCES_PER_POGING = 4096;
+
+	/**
+	 * Het aantal threads van deze MinerPool.
+	 */
+	private int aantalThreads;
+
+	/**
+	 * Voert de mine-taken uit.
+	 */
+	private ExecutorService executor;
+
+	/**
+	 * Het sjabloon waar de threads op dit moment aan werken (of null als er niet gemined wordt).
+	 * Wordt gebruikt om te controleren of een taak gestopt moet worden: zodra dit veld naar
+	 * een ander object verwijst, stoppen de taken van het oude sjabloon.
+	 */
+	private volatile Blok huidigSjabloon;
+
+	/**
+	 * Blokken met een geldige nonce komen in deze queue terecht.
+	 */
+	private LinkedBlockingQueue<Blok> gevondenBlokken;
+
+	/**
+	 * @param aantalThreads	Het aantal threads dat gebruikt wordt om te minen.
+	 */
+	public MinerPool(int aantalThreads) {
+		this.aantalThreads = Math.max(1, aantalThreads);
+		gevondenBlokken = new LinkedBlockingQueue<Blok>();
+		huidigSjabloon = null;
+
+		executor = Executors.newFixedThreadPool(this.aantalThreads, new ThreadFactory() {
+			private int nummer = 0;
+
+			@Override
+			public Thread newThread(Runnable r) {
+				//daemon threads, zodat het programma kan stoppen terwijl er gemined wordt
+				Thread thread = new Thread(r);
+				thread.setName("minerThread " + (nummer++));
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Stop het werk aan het huidige sjabloon en begin met het minen van het gegeven blok.
+	 * @param blok	Het blok dat gemined moet worden. Er wordt een kopie van dit blok gemaakt.
+	 */
+	public synchronized void start(Blok blok) {
+		final Blok sjabloon = new Blok(blok);
+		huidigSjabloon = sjabloon;
+		gevondenBlokken.clear();
+
+		//verdeel alle mogelijke nonces over de threads
+		long deelGrootte = (1L << 32) / aantalThreads;
+		for (int i=0; i<aantalThreads; i++) {
+			final long beginNonce = Integer.MIN_VALUE + i * deelGrootte;
+			final long eindNonce = (i == aantalThreads-1) ? (long) Integer.MAX_VALUE + 1 : beginNonce + deelGrootte;
+
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					mine(sjabloon, beginNonce, eindNonce);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Stop alle threads van deze MinerPool. De MinerPool kan daarna niet meer gebruikt worden.
+	 */
+	public synchronized void stop() {
+		huidigSjabloon = null;
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Haal een gevonden blok op. Wacht tot er een blok gevonden is.
+	 * @return Een blok met een geldige nonce (of null als de thread onderbroken is).
+	 */
+	public Blok wachtOpGevondenBlok() {
+		try {
+			return gevondenBlokken.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	/**
+	 * Probeer alle nonces in het gegeven deel van het bereik, totdat een geldig blok gevonden is
+	 * of het sjabloon niet meer actueel is.
+	 * Wordt uitgevoerd op een van de threads van deze MinerPool.
+	 * @param sjabloon		Het blok dat gemined wordt (wordt niet aangepast).
+	 * @param beginNonce	De eerste nonce van het deel.
+	 * @param eindNonce		Het einde van het deel (deze nonce zelf hoort er niet bij).
+	 */
+	private void mine(Blok sjabloon, long beginNonce, long eindNonce) {
+
+		long timestamp = sjabloon.getTimestamp();
+
+		while (huidigSjabloon == sjabloon) {
+
+			//elke thread werkt met zijn eigen kopie, zodat de timestamp aangepast kan worden
+			Blok blok = new Blok(sjabloon);
+			blok.setTimestamp(timestamp);
+			Miner miner = new Miner(blok);
+
+			for (long nonce = beginNonce; nonce < eindNonce; nonce += NONCES_PER_POGING) {
+
+				if (huidigSjabloon != sjabloon) {
+					//er wordt aan een nieuw sjabloon gewerkt
+					return;
+				}
+
+				Integer gevondenNonce = miner.zoekNonce(nonce, Math.min(eindNonce, nonce + NONCES_PER_POGING));
+				if (gevondenNonce != null) {
+					blok.setNonce(gevondenNonce.intValue());
+					synchronized (this) {
+						//voeg het blok alleen toe als het sjabloon nog actueel is
+						if (huidigSjabloon == sjabloon) {
+							huidigSjabloon = null;
+							gevondenBlokken.add(blok);
+						}
+					}
+					return;
+				}
+			}
+
+			//alle nonces in dit deel zijn geprobeerd; probeer het opnieuw met een nieuwe timestamp
+			timestamp = Math.max(timestamp + 1, System.currentTimeMillis());
+		}
+	}
+
+}
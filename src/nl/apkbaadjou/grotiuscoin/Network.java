@@ -1,13 +1,24 @@
 package nl.apkbaadjou.grotiuscoin;
 import java.io.IOException;
-import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
-import java.net.UnknownHostException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
 import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.security.SecureRandom;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.json.JSONObject;
 
@@ -16,6 +27,17 @@ import org.json.JSONObject;
  * 		-het ontvangen van berichten van peers
  * 		-het sturen van berichten naar peers
  * 		-het wachten op nieuwe peers
+ * 
+ * Alle verbindingen worden afgehandeld door één netwerkthread met een Selector. Deze thread
+ * accepteert nieuwe verbindingen, maakt (non-blocking) uitgaande verbindingen, leest 
+ * binnenkomende frames en verstuurt de frames die in de queues van de peers staan. Er is dus
+ * geen thread per peer of per verbindingspoging nodig, zodat een node duizenden peers kan hebben.
+ * 
+ * Versie-, ping- en pongberichten gaan over de verbinding zelf en worden direct op de
+ * netwerkthread verwerkt; ze komen niet in de queue met ontvangen berichten.
+ * 
+ * De NetworkListeners worden aangeroepen op de netwerkthread. Een listener moet daarom snel
+ * klaar zijn; zolang de listener bezig is, worden er geen berichten verstuurd of ontvangen.
  *
  */
 public class Network {
@@ -25,6 +47,25 @@ public class Network {
 	 */
 	public static final int POORT = 39114; 
 	
+	/**
+	 * Het aantal milliseconden dat een uitgaande verbinding (zie verbindMetPeer()) maximaal
+	 * mag duren voordat de poging als mislukt wordt beschouwd.
+	 */
+	public static final int VERBIND_TIMEOUT = 10000;
+	
+	/**
+	 * Het maximale aantal inkomende verbindingen. Verbindingen daarboven worden direct na het 
+	 * accepteren gesloten. Er is één plaats meer dan VerbindingsBeheerder.MAX_INKOMEND, zodat een
+	 * nieuwe peer nog kan verbinden; de VerbindingsBeheerder verbreekt dan de slechtste peer.
+	 */
+	public static final int MAX_INKOMEND = VerbindingsBeheerder.MAX_INKOMEND + 1;
+	
+	/**
+	 * Het maximale aantal milliseconden dat de netwerkthread op de Selector wacht, zodat
+	 * verlopen verbindingspogingen op tijd worden opgemerkt.
+	 */
+	private static final int SELECT_TIMEOUT = 1000;
+	
 	/**
 	 * In deze lijst staan objecten die melding moeten krijgen van belangrijke gebeurtenissen 
 	 * in deze klasse. 
@@ -35,168 +76,560 @@ public class Network {
 	 */
 	private ArrayList<NetworkListener> listeners;
 	
+	/**
+	 * Het maximale aantal berichten in de queue met ontvangen berichten. Als de queue vol is,
+	 * wacht de netwerkthread tot er weer plaats is; er worden dan tijdelijk geen berichten
+	 * van peers gelezen.
+	 */
+	public static final int MAX_ONTVANGEN_BERICHTEN = 10000;
+	
 	/**
 	 * Ontvangen berichten worden toegevoegd aan deze queue.
-	 * Deze queue kan door meerdere threads worden aangepast, dus
-	 * veranderingen dienen altijd in een synchronized-blok te 
-	 * staan, met 'ontvangenBerichten' als de lock.
 	 */
-	private Queue<BerichtAfzenderPaar> ontvangenBerichten;
+	private LinkedBlockingQueue<BerichtAfzenderPaar> ontvangenBerichten;
 	
 	/**
 	 * Peers zijn de nodes in het netwerk waarmee deze node
-	 * verbonden is. 
-	 * Deze lijst met peers kan door meerdere
-	 * threads worden aangepast, dus veranderingen dienen
-	 * altijd in een synchronized-blok te staan, met 
-	 * 'peers' als lock.
+	 * verbonden is, met de ID van de Peer als sleutel.
+	 * De map wordt alleen door de netwerkthread aangepast, maar kan door
+	 * elke thread (zonder lock) gelezen worden.
+	 */
+	private ConcurrentHashMap<Long, Peer> peers;
+	
+	/**
+	 * De ID die de volgende nieuwe Peer krijgt.
 	 */
-	private ArrayList<Peer> peers;
+	private AtomicLong volgendePeerId;
 	
 	/**
 	 * Wordt gebruikt om binnenkomende verbindingen te accepteren.
 	 */
-	private ServerSocket serverSocket;
+	private ServerSocketChannel serverKanaal;
+	
+	/**
+	 * Houdt bij welke kanalen klaar zijn om te accepteren, te lezen of te schrijven.
+	 */
+	private Selector selector;
+	
+	/**
+	 * De thread waarop alle verbindingen worden afgehandeld.
+	 */
+	private Thread netwerkThread;
+	
+	/**
+	 * Adressen waarmee verbonden moet worden (zie verbindMetPeer()). De netwerkthread begint de
+	 * verbinding en registreert het kanaal bij de Selector.
+	 */
+	private ConcurrentLinkedQueue<InetSocketAddress> teVerbinden;
+	
+	/**
+	 * Uitgaande verbindingen die nog niet gemaakt zijn, met het tijdstip waarop de poging 
+	 * begonnen is. Wordt alleen door de netwerkthread gebruikt.
+	 */
+	private HashMap<SelectionKey, Long> verbindingsPogingen;
+	
+	/**
+	 * Willekeurige ID van deze node. Wordt in het versiebericht meegestuurd, zodat een
+	 * verbinding met deze node zelf herkend kan worden.
+	 */
+	private final long knoopId;
+	
+	/**
+	 * Peers met frames in hun queue, waarvoor de netwerkthread OP_WRITE moet aanzetten.
+	 */
+	private ConcurrentLinkedQueue<Peer> schrijfVerzoeken;
+	
+	/**
+	 * Peers waarvan de verbinding door een andere thread verbroken moet worden.
+	 */
+	private ConcurrentLinkedQueue<Peer> teVerbrekenPeers;
+	
+	/**
+	 * Wordt op false gezet door stop().
+	 */
+	private volatile boolean actief;
 	
 	public Network() {
 		listeners = new ArrayList<NetworkListener>();
-		ontvangenBerichten = new LinkedList<BerichtAfzenderPaar>();
-		peers = new ArrayList<Peer>();
-		serverSocket = null;
+		ontvangenBerichten = new LinkedBlockingQueue<BerichtAfzenderPaar>(MAX_ONTVANGEN_BERICHTEN);
+		peers = new ConcurrentHashMap<Long, Peer>();
+		volgendePeerId = new AtomicLong();
+		teVerbinden = new ConcurrentLinkedQueue<InetSocketAddress>();
+		verbindingsPogingen = new HashMap<SelectionKey, Long>();
+		knoopId = new SecureRandom().nextLong();
+		schrijfVerzoeken = new ConcurrentLinkedQueue<Peer>();
+		teVerbrekenPeers = new ConcurrentLinkedQueue<Peer>();
+		serverKanaal = null;
 	}
 	
 	public void start() {
+		
+		try {
+			selector = Selector.open();
+			serverKanaal = ServerSocketChannel.open();
+			serverKanaal.configureBlocking(false);
+			serverKanaal.socket().bind(new InetSocketAddress(POORT));
+			serverKanaal.register(selector, SelectionKey.OP_ACCEPT);
+			System.out.println("Aan het luisteren op poort " + POORT);
+		} catch (IOException e) {
+			e.printStackTrace();
 			
-		//deze thread wacht op binnenkomende verbindingen
-		Thread binnenkomendeVerbindingThread = new Thread(new Runnable() {
+			//zonder serverKanaal kan er nog wel met andere nodes verbonden worden
+			serverKanaal = null;
+			if (selector == null) {
+				return;
+			}
+		}
+		
+		actief = true;
+		netwerkThread = new Thread(new Runnable() {
 			@Override
 			public void run() {
-				
-				//wacht op nieuwe verbinding		
-				try {
-					serverSocket = new ServerSocket(POORT);
-					System.out.println("Aan het luisteren op poort " + POORT);
-			
-					//Deze loop eindigt zodra serverSocket.accept() een SocketException 
-					//werpt (doordat serverSocket.close() wordt aangeroepen).
-					while (true) {
-						
-						Socket s = serverSocket.accept();
-						Peer nieuwePeer = new Peer(s, Network.this);
-						
-						synchronized (peers) {
-							peers.add(nieuwePeer);
-						}
+				while (actief) {
+					try {
+						selector.select(SELECT_TIMEOUT);
+						beginVerbindingen();
+						controleerVerbindingsPogingen();
+						verwerkSchrijfVerzoeken();
+						verbreekPeers();
 						
-						synchronized (listeners) {
-							for (NetworkListener listener : listeners) {
-								listener.nieuwePeer(nieuwePeer);
+						Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+						while (iterator.hasNext()) {
+							SelectionKey key = iterator.next();
+							iterator.remove();
+							try {
+								verwerkKey(key);
+							} catch (RuntimeException e) {
+								//een fout bij één verbinding mag de andere verbindingen niet stoppen
+								System.out.println("Fout bij het verwerken van een verbinding; verbinding wordt gesloten");
+								e.printStackTrace();
+								sluitKey(key);
 							}
 						}
+					} catch (ClosedSelectorException e) {
+						//stop() is aangeroepen
+						break;
+					} catch (IOException e) {
+						e.printStackTrace();
+					} catch (RuntimeException e) {
+						//bijvoorbeeld een fout in een listener; de netwerkthread gaat door
+						e.printStackTrace();
 					}
-					
-					
-				} catch (SocketException se) { 
-					//wordt geworpen als ServerSocket.close() wordt aangeroepen
-				} catch (IOException e) {
-					e.printStackTrace();
-				} 
+				}
 				
+				//sluit de kanalen van verbindingen die nog niet gemaakt waren
+				for (SelectionKey key : verbindingsPogingen.keySet()) {
+					sluitKanaal((SocketChannel) key.channel());
+				}
+				verbindingsPogingen.clear();
 			}
 		});
-		binnenkomendeVerbindingThread.setName("binnenkomendeVerbindingThread");
-		binnenkomendeVerbindingThread.start();
+		netwerkThread.setName("netwerkThread");
+		netwerkThread.start();
 	}
 	
 	/**
 	 * Stop alle verbindingen. 
 	 */
 	public void stop() {
+		actief = false;
 		
-		//hier worden alle sockets, streams, etc. gesloten 
 		try {
-			//ServerSocket.close() zorgt ervoor dat ServerSocket.accept() niet langer 
-			//blokkeert en een SocketException werpt.
-			//Als close() wordt aangeroepen voor accept(), dan wordt een SocketException
-			//geworpen zodra accept() aangeroepen wordt.
-			//(Merk op dat het serverSocket-object nu door twee threads wordt 
-			// aangepast: de EDT in stop() en door binnenkomendeVerbindingThread in start(). 
-			// Synchronisatie is echter niet nodig, aangezien het de bedoeling is dat
-			// close() wordt aangeroepen wanneer accept() blokkeert)
-			if (serverSocket != null) {
-				serverSocket.close();
+			if (serverKanaal != null) {
+				serverKanaal.close();
 			}
 			
-			//stop alle luisterthreads van de peers
-			synchronized (peers) {
-				for (Peer peer : peers) {
-					peer.stopLuisterThread();
-				}
+			//verbreek de verbindingen met alle peers
+			for (Peer peer : peers.values()) {
+				peer.sluitKanaal();
 			}
 			
-			
+			//Selector.close() zorgt ervoor dat select() niet langer blokkeert
+			if (selector != null) {
+				selector.close();
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 	
+	/**
+	 * Verwerk een kanaal dat klaar is om te accepteren, te lezen of te schrijven.
+	 * Wordt aangeroepen op de netwerkthread.
+	 * @param key	De SelectionKey van het kanaal.
+	 */
+	private void verwerkKey(SelectionKey key) {
+		if (!key.isValid()) {
+			return;
+		}
+		
+		if (key.isAcceptable()) {
+			try {
+				SocketChannel kanaal = serverKanaal.accept();
+				if (kanaal != null && getAantalInkomend() >= MAX_INKOMEND) {
+					System.out.println("Te veel inkomende verbindingen; verbinding wordt geweigerd");
+					sluitKanaal(kanaal);
+				} else if (kanaal != null) {
+					kanaal.configureBlocking(false);
+					voegPeerToe(new Peer(volgendePeerId.incrementAndGet(), kanaal, this, false));
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return;
+		}
+		
+		if (key.isConnectable()) {
+			verbindingGemaakt(key);
+			return;
+		}
+		
+		Peer peer = (Peer) key.attachment();
+		try {
+			if (key.isReadable()) {
+				peer.lees();
+			}
+			if (key.isValid() && key.isWritable()) {
+				if (peer.schrijf()) {
+					//alle frames zijn verstuurd
+					key.interestOps(SelectionKey.OP_READ);
+				}
+			}
+		} catch (IOException e) {
+			System.out.println("Verbinding met " + peer.getIP() + " verbroken: " + e.getMessage());
+			sluitVerbinding(peer);
+		} catch (CancelledKeyException e) {
+			sluitVerbinding(peer);
+		}
+	}
+	
+	/**
+	 * @return Het aantal peers die met deze node verbonden zijn (inkomende verbindingen).
+	 */
+	private int getAantalInkomend() {
+		int aantal = 0;
+		for (Peer peer : peers.values()) {
+			if (!peer.isUitgaand()) {
+				aantal++;
+			}
+		}
+		return aantal;
+	}
+	
+	/**
+	 * Sluit het kanaal van een key waarbij een onverwachte fout is opgetreden. Het serverkanaal
+	 * blijft open. Wordt aangeroepen op de netwerkthread.
+	 * @param key	De SelectionKey van het kanaal.
+	 */
+	private void sluitKey(SelectionKey key) {
+		try {
+			if (key.attachment() instanceof Peer) {
+				sluitVerbinding((Peer) key.attachment());
+			} else if (key.attachment() instanceof InetSocketAddress) {
+				//uitgaande verbinding die nog niet gemaakt was
+				verbindingsPogingen.remove(key);
+				key.cancel();
+				sluitKanaal((SocketChannel) key.channel());
+			}
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Registreer een nieuwe Peer bij de Selector en meld de Peer aan de listeners (zie meldNieuwePeer()).
+	 * Wordt aangeroepen op de netwerkthread.
+	 * @param peer	De nieuwe Peer.
+	 */
+	private void voegPeerToe(Peer peer) {
+		try {
+			peer.setSelectionKey(peer.getKanaal().register(selector, SelectionKey.OP_READ, peer));
+		} catch (IOException e) {
+			e.printStackTrace();
+			peer.sluitKanaal();
+			return;
+		}
+		
+		meldNieuwePeer(peer);
+	}
+	
+	/**
+	 * Voeg een (geregistreerde) Peer toe aan de peers, stuur het versiebericht en meld de Peer
+	 * aan de listeners. Wordt aangeroepen op de netwerkthread.
+	 * @param peer	De nieuwe Peer.
+	 */
+	private void meldNieuwePeer(Peer peer) {
+		peers.put(peer.getId(), peer);
+		
+		//het versiebericht is altijd het eerste bericht
+		peer.stuurBericht(BerichtUtil.maakVersieBericht(serverKanaal != null ? POORT : 0, knoopId));
+		
+		synchronized (listeners) {
+			for (NetworkListener listener : listeners) {
+				listener.nieuwePeer(peer);
+			}
+		}
+		
+		//de listeners hebben misschien al berichten naar de peer gestuurd
+		wilSchrijven(peer);
+	}
+	
+	/**
+	 * Begin de verbindingen die door verbindMetPeer() zijn aangevraagd. De verbinding wordt 
+	 * non-blocking gemaakt; verwerkKey() maakt de verbinding af zodra het kanaal klaar is.
+	 * Wordt aangeroepen op de netwerkthread.
+	 */
+	private void beginVerbindingen() {
+		InetSocketAddress adres;
+		while ((adres = teVerbinden.poll()) != null) {
+			SocketChannel kanaal = null;
+			try {
+				kanaal = SocketChannel.open();
+				kanaal.configureBlocking(false);
+				if (kanaal.connect(adres)) {
+					//lokale verbindingen kunnen direct gemaakt zijn
+					voegPeerToe(new Peer(volgendePeerId.incrementAndGet(), kanaal, this, true));
+				} else {
+					SelectionKey key = kanaal.register(selector, SelectionKey.OP_CONNECT, adres);
+					verbindingsPogingen.put(key, System.currentTimeMillis());
+				}
+			} catch (IOException e) {
+				System.out.println("Verbinden met " + adres.getHostString() + " mislukt: " + e.getMessage());
+				sluitKanaal(kanaal);
+				verbindingMislukt(adres);
+			} catch (UnresolvedAddressException e) {
+				System.out.println("Onbekend adres: " + adres.getHostString());
+				sluitKanaal(kanaal);
+				verbindingMislukt(adres);
+			}
+		}
+	}
+	
+	/**
+	 * Maak een uitgaande verbinding af. Wordt aangeroepen op de netwerkthread als het kanaal 
+	 * klaar is met verbinden.
+	 * @param key	De SelectionKey van het kanaal.
+	 */
+	private void verbindingGemaakt(SelectionKey key) {
+		verbindingsPogingen.remove(key);
+		SocketChannel kanaal = (SocketChannel) key.channel();
+		InetSocketAddress adres = (InetSocketAddress) key.attachment();
+		try {
+			kanaal.finishConnect();
+		} catch (IOException e) {
+			System.out.println("Verbinden met " + adres.getHostString() + " mislukt: " + e.getMessage());
+			key.cancel();
+			sluitKanaal(kanaal);
+			verbindingMislukt(adres);
+			return;
+		}
+		
+		System.out.println("Verbonden met " + adres.getHostString());
+		Peer peer = new Peer(volgendePeerId.incrementAndGet(), kanaal, this, true);
+		key.attach(peer);
+		peer.setSelectionKey(key);
+		key.interestOps(SelectionKey.OP_READ);
+		meldNieuwePeer(peer);
+	}
+	
+	/**
+	 * Breek uitgaande verbindingen af die al langer dan VERBIND_TIMEOUT bezig zijn.
+	 * Wordt aangeroepen op de netwerkthread.
+	 */
+	private void controleerVerbindingsPogingen() {
+		long nu = System.currentTimeMillis();
+		Iterator<Map.Entry<SelectionKey, Long>> iterator = verbindingsPogingen.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<SelectionKey, Long> poging = iterator.next();
+			if (nu - poging.getValue() < VERBIND_TIMEOUT) {
+				continue;
+			}
+			iterator.remove();
+			
+			SelectionKey key = poging.getKey();
+			InetSocketAddress adres = (InetSocketAddress) key.attachment();
+			System.out.println("Verbinden met " + adres.getHostString() + " duurt te lang");
+			key.cancel();
+			sluitKanaal((SocketChannel) key.channel());
+			verbindingMislukt(adres);
+		}
+	}
+	
+	/**
+	 * Meld aan de listeners dat een uitgaande verbinding niet gemaakt kon worden.
+	 * Wordt aangeroepen op de netwerkthread.
+	 * @param adres	Het adres waarmee verbonden zou worden.
+	 */
+	private void verbindingMislukt(InetSocketAddress adres) {
+		synchronized (listeners) {
+			for (NetworkListener listener : listeners) {
+				listener.verbindingMislukt(adres.getHostString(), adres.getPort());
+			}
+		}
+	}
+	
+	private void verwerkSchrijfVerzoeken() {
+		Peer peer;
+		while ((peer = schrijfVerzoeken.poll()) != null) {
+			SelectionKey key = peer.getSelectionKey();
+			if (key != null && key.isValid()) {
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+		}
+	}
+	
+	private void verbreekPeers() {
+		Peer peer;
+		while ((peer = teVerbrekenPeers.poll()) != null) {
+			sluitVerbinding(peer);
+		}
+	}
+	
+	/**
+	 * Sluit het kanaal van een Peer en meld aan de listeners dat de verbinding verbroken is.
+	 * Wordt aangeroepen op de netwerkthread.
+	 * @param peer	De Peer waarvan de verbinding gesloten moet worden.
+	 */
+	private void sluitVerbinding(Peer peer) {
+		SelectionKey key = peer.getSelectionKey();
+		if (key != null) {
+			key.cancel();
+		}
+		peer.sluitKanaal();
+		verbindingVerbroken(peer);
+	}
+	
+	/**
+	 * Verbreek de verbinding met een Peer. De verbinding wordt op de netwerkthread gesloten.
+	 * Kan door elke thread worden aangeroepen.
+	 * @param peer	De Peer waarvan de verbinding verbroken moet worden.
+	 */
+	void verbreek(Peer peer) {
+		teVerbrekenPeers.add(peer);
+		if (selector != null) {
+			selector.wakeup();
+		}
+	}
+	
+	/**
+	 * Wordt aangeroepen door een Peer als er een frame in zijn queue is gezet. De netwerkthread
+	 * gaat dan naar de Peer schrijven zodra het kanaal dat toelaat.
+	 * Kan door elke thread worden aangeroepen.
+	 * @param peer	De Peer die iets wil versturen.
+	 */
+	void wilSchrijven(Peer peer) {
+		schrijfVerzoeken.add(peer);
+		if (selector != null) {
+			selector.wakeup();
+		}
+	}
+	
 	/**
 	 * Stuur een bericht naar een Peer.
 	 * @param bericht	Bericht dat verstuurd wordt (in de vorm van een JSON-object)
-	 * @param ip		IP-adres van de geadresseerde
-	 */
-	public void stuurBericht(JSONObject bericht, String ip) {
-		synchronized (peers) {
-			for (Peer peer : peers) {
-				if (peer.getIP().equals(ip)) {
-					peer.stuurBericht(bericht);
-					break;
-				} 
+	 * @param peerId	ID van de geadresseerde
+	 * @return True (het bericht is in de queue van de Peer gezet) of false (er is geen Peer met 
+	 * 		   deze ID, bijvoorbeeld omdat de verbinding verbroken is).
+	 */
+	public boolean stuurBericht(JSONObject bericht, long peerId) {
+		Peer peer = peers.get(peerId);
+		if (peer == null) {
+			return false;
+		}
+		peer.stuurBericht(bericht);
+		return true;
+	}
+	
+	/**
+	 * Stuur een bericht naar alle peers. Het bericht wordt maar één keer omgezet naar een frame.
+	 * @param bericht		Bericht dat verstuurd wordt.
+	 * @param uitgezonderd	Peer die het bericht niet moet krijgen, bijvoorbeeld omdat het bericht
+	 * 						van deze Peer komt (of null).
+	 */
+	public void stuurNaarIedereen(JSONObject bericht, Peer uitgezonderd) {
+		ArrayList<Peer> ontvangers = new ArrayList<Peer>();
+		for (Peer peer : peers.values()) {
+			if (peer != uitgezonderd) {
+				ontvangers.add(peer);
+			}
+		}
+		stuurNaarPeers(bericht, ontvangers);
+	}
+	
+	/**
+	 * Stuur een bericht naar de gegeven peers. Het bericht wordt maar één keer omgezet naar een frame
+	 * (en hooguit één keer gecomprimeerd).
+	 * @param bericht		Bericht dat verstuurd wordt.
+	 * @param ontvangers	De peers die het bericht moeten krijgen.
+	 * @return De peers bij wie het bericht in de queue is gezet (zie Peer.stuurFrame()).
+	 */
+	public ArrayList<Peer> stuurNaarPeers(JSONObject bericht, Collection<Peer> ontvangers) {
+		ArrayList<Peer> verstuurd = new ArrayList<Peer>();
+		if (ontvangers.isEmpty()) {
+			return verstuurd;
+		}
+		boolean prioriteit = Peer.heeftPrioriteit(bericht);
+		
+		//maak (hooguit) één gewoon en één gecomprimeerd frame
+		ByteBuffer frame = null;
+		ByteBuffer gecomprimeerdFrame = null;
+		for (Peer peer : ontvangers) {
+			if (peer.isCompressie()) {
+				if (gecomprimeerdFrame == null) {
+					gecomprimeerdFrame = Peer.maakFrame(bericht, true);
+				}
+				if (peer.stuurFrame(gecomprimeerdFrame, prioriteit)) {
+					verstuurd.add(peer);
+				}
+			} else {
+				if (frame == null) {
+					frame = Peer.maakFrame(bericht, false);
+				}
+				if (peer.stuurFrame(frame, prioriteit)) {
+					verstuurd.add(peer);
+				}
 			}
 		}
+		return verstuurd;
 	}
 	
 	/**
-	 * Ga een verbinding aan met een andere node.
+	 * Ga een verbinding aan met een andere node. Deze methode wacht niet tot de verbinding
+	 * gemaakt is: de netwerkthread maakt de verbinding en meldt daarna een nieuwe Peer (of een
+	 * mislukte verbinding) aan de listeners. Een verbinding die na VERBIND_TIMEOUT milliseconden
+	 * nog niet gemaakt is, mislukt.
+	 * Kan door elke thread worden aangeroepen. Geef een IP-adres op; een hostnaam wordt op de
+	 * aanroepende thread opgezocht.
 	 * @param poort		Poortnummer waarop verbonden moet worden.
 	 * @param ip		Het IP-adres van de andere node.
 	 */
-	public void verbindMetPeer(final int poort, final String ip) {
-		//probeer met peer te verbinden
+	public void verbindMetPeer(int poort, String ip) {
 		System.out.println("Probeer te verbinden met " + ip + " op poort " + poort);
-		Socket socket = null;
+		teVerbinden.add(new InetSocketAddress(ip, poort));
+		if (selector != null) {
+			selector.wakeup();
+		}
+	}
+	
+	private void sluitKanaal(SocketChannel kanaal) {
 		try {
-			socket = new Socket(InetAddress.getByName(ip), poort);
-			System.out.println("Verbonden met " + socket.getInetAddress());
-		
-			//voeg de peer toe aan de lijst met peers
-			Peer nieuwePeer = new Peer(socket, Network.this);
-			
-			synchronized (peers) {
-				peers.add(nieuwePeer);
+			if (kanaal != null) {
+				kanaal.close();
 			}
-			
-			synchronized (listeners) {
-				for (NetworkListener listener : listeners) {
-					listener.nieuwePeer(nieuwePeer);
-				}
-			}
-			
-		} catch (UnknownHostException uhe) {
-			uhe.printStackTrace();
-		} catch (IOException ioe) {
-			ioe.printStackTrace();
-		} 
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
 	}
 
 	/**
-	 * Wordt aangeroepen door een Peer als de verbinding verbroken is.
-	 * Wordt aangeroepen op de luisterThread van de Peer.
+	 * Wordt aangeroepen als de verbinding met een Peer verbroken is.
+	 * Wordt aangeroepen op de netwerkthread.
 	 * @param peer	Reference naar de Peer waarvan de verbinding is verbroken.
 	 */
-	public void verbindingVerbroken(Peer peer) {
-		synchronized (peers) {
-			peers.remove(peer);
+	private void verbindingVerbroken(Peer peer) {
+		if (peers.remove(peer.getId()) == null) {
+			//al eerder gemeld
+			return;
 		}
 	
 		synchronized (listeners) {
@@ -208,12 +641,71 @@ public class Network {
 	
 	/**
 	 * Wordt aangeroepen door een Peer als deze een bericht gestuurd heeft.
-	 * Wordt aangeroepen op de luisterThread van de Peer.
+	 * Wordt aangeroepen op de netwerkthread.
 	 * @param bericht	Het bericht dat de Peer gestuurd heeft.
 	 */
-	public void ontvangBericht(JSONObject bericht, Peer afzender) {
-		synchronized (ontvangenBerichten) {
-			ontvangenBerichten.add(new BerichtAfzenderPaar(bericht, afzender));
+	void ontvangBericht(JSONObject bericht, Peer afzender) {
+		String soort = bericht.optString("soort");
+		
+		//versie-, ping- en pongberichten gaan over de verbinding zelf en worden hier verwerkt
+		if (soort.equals("versie")) {
+			if (BerichtUtil.leesKnoopId(bericht) == knoopId) {
+				//deze node is met zichzelf verbonden
+				System.out.println("Verbinding met eigen node (" + afzender.getIP() + ") wordt verbroken");
+				verbindingMetZelf(afzender);
+				return;
+			}
+			afzender.verwerkVersie(bericht);
+			synchronized (listeners) {
+				for (NetworkListener listener : listeners) {
+					listener.versieOntvangen(afzender);
+				}
+			}
+			return;
+		}
+		if (soort.equals("ping")) {
+			afzender.stuurBericht(BerichtUtil.maakPongBericht(BerichtUtil.leesNonce(bericht)));
+			return;
+		}
+		if (soort.equals("pong")) {
+			afzender.verwerkPong(BerichtUtil.leesNonce(bericht));
+			return;
+		}
+		if (BerichtUtil.isIntern(soort)) {
+			//deze berichten maakt alleen deze node zelf
+			System.out.println("Intern bericht ontvangen van " + afzender.getIP() + "; wordt genegeerd");
+			return;
+		}
+		plaatsBericht(bericht, afzender);
+	}
+	
+	/**
+	 * Verbreek een verbinding van deze node met zichzelf. Bij een uitgaande verbinding wordt het
+	 * adres als mislukt gemeld, zodat er niet opnieuw mee verbonden wordt.
+	 * @param peer	De Peer (deze node zelf).
+	 */
+	private void verbindingMetZelf(Peer peer) {
+		sluitVerbinding(peer);
+		if (peer.isUitgaand()) {
+			synchronized (listeners) {
+				for (NetworkListener listener : listeners) {
+					listener.verbindingMetZelf(peer.getIP(), peer.getPoort());
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Zet een bericht in de queue met ontvangen berichten. Wordt ook gebruikt voor berichten 
+	 * die deze node zelf maakt (bijvoorbeeld een gegenereerd blok). Wacht als de queue vol is.
+	 * @param bericht	Het bericht.
+	 * @param afzender	De Peer die het bericht gestuurd heeft (of null voor een eigen bericht).
+	 */
+	public void plaatsBericht(JSONObject bericht, Peer afzender) {
+		try {
+			ontvangenBerichten.put(new BerichtAfzenderPaar(bericht, afzender));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
 	}
 	
@@ -235,13 +727,21 @@ public class Network {
 	}
 	
 	/**
-	 * Haal het oudste bericht op (en verwijder het uit de lijst met berichten).
-	 * @return	Het oudste bericht in de lijst met ontvangen berichten.
+	 * Haal het oudste bericht op (en verwijder het uit de queue met berichten). Wacht tot er een
+	 * bericht is.
+	 * @return	Het oudste bericht in de queue met ontvangen berichten.
+	 * @throws InterruptedException
+	 */
+	public BerichtAfzenderPaar wachtOpBericht() throws InterruptedException {
+		return ontvangenBerichten.take();
+	}
+	
+	/**
+	 * Haal het oudste bericht op (en verwijder het uit de queue met berichten), zonder te wachten.
+	 * @return	Het oudste bericht in de queue met ontvangen berichten (of null als de queue leeg is).
 	 */
 	public BerichtAfzenderPaar haalBerichtOp() {
-		synchronized (ontvangenBerichten) {
-			return ontvangenBerichten.poll();
-		}
+		return ontvangenBerichten.poll();
 	}
 	
 	/**
@@ -255,16 +755,23 @@ public class Network {
 		}
 	}
 
-	public Peer getPeer(int index) {
-		synchronized (peers) {
-			return peers.get(index);
-		}
+	/**
+	 * @return Een momentopname van de peers waarmee deze node verbonden is.
+	 */
+	public ArrayList<Peer> getPeers() {
+		return new ArrayList<Peer>(peers.values());
+	}
+	
+	/**
+	 * @param peerId	ID van de gezochte Peer.
+	 * @return De Peer (of null als er geen verbinding is met een Peer met deze ID).
+	 */
+	public Peer getPeer(long peerId) {
+		return peers.get(peerId);
 	}
 	
 	public int getAantalPeers() {
-		synchronized (peers) {
-			return peers.size();
-		}
+		return peers.size();
 	}
 
 }
@@ -18,4 +18,26 @@ public interface NetworkListener {
 	 * @param peer	De peer die de verbinding heeft verbroken.
 	 */
 	public void verbindingVerbroken(Peer peer);
+	
+	/**
+	 * Wordt aangeroepen als een Peer zijn versiebericht heeft gestuurd. Vanaf dat moment is
+	 * bekend op welke poort de Peer luistert.
+	 * @param peer	De peer.
+	 */
+	public void versieOntvangen(Peer peer);
+	
+	/**
+	 * Wordt aangeroepen als een uitgaande verbinding (zie Network.verbindMetPeer()) niet 
+	 * gemaakt kon worden.
+	 * @param ip	Het IP-adres waarmee verbonden zou worden.
+	 * @param poort	De poort waarmee verbonden zou worden.
+	 */
+	public void verbindingMislukt(String ip, int poort);
+	
+	/**
+	 * Wordt aangeroepen als een uitgaande verbinding een verbinding met deze node zelf bleek te zijn.
+	 * @param ip	Het IP-adres waarmee verbonden is.
+	 * @param poort	De poort waarmee verbonden is.
+	 */
+	public void verbindingMetZelf(String ip, int poort);
 }
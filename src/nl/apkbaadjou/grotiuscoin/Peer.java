@@ -1,142 +1,596 @@
 package nl.apkbaadjou.grotiuscoin;
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
+import org.json.JSONException;
 import org.json.JSONObject;
 
 /**
  * Een Peer is een node die verbonden is met deze node.
  *
+ * De verbinding met een Peer is non-blocking en wordt afgehandeld door de netwerkthread van
+ * Network (zie Network). Berichten worden als frames verstuurd: een int met de lengte van het
+ * bericht, gevolgd door het bericht zelf (JSON, UTF-8). Elke Peer heeft een eigen leesbuffer
+ * voor (delen van) frames die nog niet helemaal ontvangen zijn, en een eigen (begrensde) queue
+ * met frames die nog verstuurd moeten worden. Blokken en andere berichten met prioriteit worden
+ * voor transacties verstuurd (zie heeftPrioriteit()).
+ *
+ * Na het verbinden sturen beide nodes een versiebericht met de compressiemethoden die ze 
+ * ondersteunen en de poort waarop ze luisteren. Als de Peer deflate ondersteunt, worden grote
+ * berichten naar de Peer gecomprimeerd (zie maakFrame()).
+ *
+ * Een Peer houdt ook bij hoe snel hij op pingberichten antwoordt en hoeveel nieuwe transacties
+ * en blokken hij heeft gestuurd. De VerbindingsBeheerder gebruikt dit om peers te beoordelen.
+ *
  */
 public class Peer {
-	
+
+	/**
+	 * De maximale lengte van een bericht in bytes. Een Peer die een langer bericht stuurt
+	 * wordt verbroken.
+	 */
+	public static final int MAX_BERICHT_GROOTTE = 64 * 1024 * 1024;
+
+	/**
+	 * Berichten die (als JSON) minstens zo lang zijn worden gecomprimeerd als de Peer 
+	 * compressie ondersteunt. Kortere berichten worden nauwelijks kleiner.
+	 */
+	public static final int COMPRESSIE_DREMPEL = 1024;
+
+	/**
+	 * Het hoogste bit van de lengte van een frame geeft aan dat het bericht met deflate 
+	 * gecomprimeerd is. De lengte is dan de lengte van de gecomprimeerde data.
+	 */
+	private static final int GECOMPRIMEERD = 0x80000000;
+
+	/**
+	 * Als er meer dan dit aantal bytes in de queue staat, worden er geen berichten zonder
+	 * prioriteit (transacties en aankondigingen van transacties) meer aan de queue toegevoegd.
+	 * Kan worden ingesteld met de systeemeigenschap "grotiuscoin.hoogwater".
+	 */
+	public static final int HOOGWATER_BYTES = Integer.getInteger("grotiuscoin.hoogwater", 4 * 1024 * 1024);
+
+	/**
+	 * Als er meer dan dit aantal bytes in de queue staat wanneer er een nieuw bericht verstuurd
+	 * wordt, loopt de Peer te ver achter en wordt de verbinding verbroken.
+	 * Kan worden ingesteld met de systeemeigenschap "grotiuscoin.maxuitgaand".
+	 */
+	public static final int MAX_UITGAANDE_BYTES = Integer.getInteger("grotiuscoin.maxuitgaand", 32 * 1024 * 1024);
+
+	/**
+	 * Het aantal hashes per generatie van het filter met bekende hashes (zie RollendBloomFilter).
+	 */
+	public static final int BEKENDE_HASHES_PER_GENERATIE = 5000;
+
+	/**
+	 * Het aantal bits per generatie van het filter met bekende hashes. Met 9 hashfuncties is de
+	 * kans op een onterecht bekende hash ongeveer 0,2%.
+	 */
+	private static final int BEKENDE_HASHES_BITS = 64 * 1024;
+
+	private static final int BEKENDE_HASHES_HASHFUNCTIES = 9;
+
+	/**
+	 * Begingrootte van de leesbuffer. De buffer groeit als er een groter bericht binnenkomt, maar
+	 * alleen zo snel als de data van dat bericht ook echt binnenkomt.
+	 */
+	private static final int LEESBUFFER_GROOTTE = 8 * 1024;
+
+	private static final Random PING_RANDOM = new Random();
+
+	/**
+	 * Unieke ID van deze Peer (wordt door Network toegekend en verandert niet).
+	 */
+	private final long id;
+
 	/**
 	 * Het IP-adres van deze Peer.
 	 */
 	private String ip;
-	
+
 	/**
 	 * Het poortnummer dat deze Peer gebruikt.
 	 */
 	private int poort;
-	
 
 	/**
-	 * De Socket waarmee deze Peer verbonden is.
+	 * De poort waarop deze Peer verbindingen accepteert (of 0 als dat niet bekend is). Bij een
+	 * uitgaande verbinding is dit de poort waarmee verbonden is; bij een inkomende verbinding
+	 * staat de poort in het versiebericht.
 	 */
-	private Socket socket;
-	
+	private volatile int luisterPoort;
+
 	/**
-	 * Deze PrintWriter wordt gebruikt om berichten te sturen naar deze Peer.
-	 * Meerdere threads kunnen toegang krijgen tot deze writer, dus elk stuk code
-	 * dat er gebruik van maakt, dient in een synchronized-blok te staan met 
-	 * 'writer' als de lock.
+	 * Of deze node de verbinding met de Peer heeft gemaakt (true) of de Peer met deze node (false).
 	 */
-	private PrintWriter writer;
-	
+	private final boolean uitgaand;
+
+	/**
+	 * Het tijdstip waarop de verbinding gemaakt is.
+	 */
+	private final long verbondenSinds;
+
+	/**
+	 * De nonce van het laatst verstuurde pingbericht (of 0 als er geen antwoord meer verwacht
+	 * wordt), het tijdstip (System.nanoTime()) waarop het verstuurd is en de laatst gemeten
+	 * latentie in milliseconden (of -1). De lock is de Peer zelf.
+	 */
+	private long pingNonce;
+	private long pingVerstuurd;
+	private long latentie;
+
+	/**
+	 * Het aantal nieuwe (geldige) transacties en blokken dat deze Peer als eerste heeft gestuurd.
+	 * Wordt alleen door de main thread verhoogd.
+	 */
+	private volatile int nut;
+
+	/**
+	 * Het kanaal waarmee deze Peer verbonden is.
+	 */
+	private SocketChannel kanaal;
+
+	/**
+	 * De SelectionKey van het kanaal (wordt gezet door Network bij het registreren).
+	 */
+	private SelectionKey selectionKey;
+
+	/**
+	 * Ontvangen bytes die nog niet tot een volledig bericht behoren. De buffer staat altijd in
+	 * 'schrijfmodus' (er kan direct vanuit het kanaal in gelezen worden).
+	 */
+	private ByteBuffer leesBuffer;
+
+	/**
+	 * Frames zonder prioriteit die nog verstuurd moeten worden. Deze queue wordt door meerdere
+	 * threads gebruikt, dus elk stuk code dat er gebruik van maakt dient in een synchronized-blok
+	 * te staan met 'uitgaandeFrames' als de lock. Dezelfde lock geldt voor prioriteitFrames,
+	 * huidigFrame en uitgaandeBytes.
+	 */
+	private LinkedList<ByteBuffer> uitgaandeFrames;
+
+	/**
+	 * Frames met prioriteit (blokken en alle andere berichten behalve transacties). Deze frames
+	 * worden verstuurd voor de frames in uitgaandeFrames.
+	 */
+	private LinkedList<ByteBuffer> prioriteitFrames;
+
+	/**
+	 * Het frame dat op dit moment verstuurd wordt (of null). Een frame wordt altijd helemaal
+	 * verstuurd voordat een volgend frame begint.
+	 */
+	private ByteBuffer huidigFrame;
+
+	/**
+	 * Het aantal bytes dat nog verstuurd moet worden.
+	 */
+	private long uitgaandeBytes;
+
 	/**
 	 * Reference naar de instantie van Network waarbij deze Peer hoort.
 	 */
 	private Network network;
-	
+
 	/**
-	 * Op deze thread worden berichten ontvangen van deze Peer.
+	 * Geeft aan of deze Peer gecomprimeerde frames kan lezen (zie verwerkVersie()).
 	 */
-	private Thread luisterThread;
-	
-	
+	private volatile boolean compressie;
+
+	/**
+	 * Hashes van transacties en blokken waarvan bekend is dat deze Peer ze al heeft (omdat de
+	 * Peer ze zelf heeft aangekondigd of gestuurd, of omdat ze al naar de Peer zijn gestuurd).
+	 * Deze hashes hoeven niet (opnieuw) aangekondigd te worden.
+	 */
+	private RollendBloomFilter bekendeHashes;
+
 	/**
-	 * Wordt aangeroepen op nieuweVerbindingThread.
-	 * @param socket				De Socket die verbonden is aan deze peer.
-	 * @param ontvangenBerichten	Reference naar de berichtenqueue waar ontvangen berichten in opgeslagen moeten worden.
+	 * @param id		Unieke ID van deze Peer.
+	 * @param kanaal	Het (non-blocking) kanaal dat verbonden is met deze peer.
+	 * @param network	Reference naar de instantie van Network waarbij deze Peer hoort.
+	 * @param uitgaand	Of deze node de verbinding gemaakt heeft.
 	 */
-	public Peer(Socket socket, Network network) {
-		this.socket = socket;
+	public Peer(long id, SocketChannel kanaal, Network network, boolean uitgaand) {
+		this.id = id;
+		this.kanaal = kanaal;
 		this.network = network;
+		this.uitgaand = uitgaand;
+		verbondenSinds = System.currentTimeMillis();
+		latentie = -1;
 
-		ip = socket.getInetAddress().getHostName();
-		poort = socket.getPort();
-		
-		try {
-			writer = new PrintWriter(socket.getOutputStream(), true);
-			
-		} catch (IOException ioe) {
-			ioe.printStackTrace();
+		//gebruik het IP-adres zelf, zodat er geen (blokkerende) DNS-lookup nodig is
+		InetSocketAddress adres = (InetSocketAddress) kanaal.socket().getRemoteSocketAddress();
+		ip = adres.getAddress().getHostAddress();
+		poort = adres.getPort();
+		luisterPoort = uitgaand ? poort : 0;
+
+		leesBuffer = ByteBuffer.allocate(LEESBUFFER_GROOTTE);
+		uitgaandeFrames = new LinkedList<ByteBuffer>();
+		prioriteitFrames = new LinkedList<ByteBuffer>();
+		bekendeHashes = new RollendBloomFilter(BEKENDE_HASHES_PER_GENERATIE, BEKENDE_HASHES_BITS,
+											   BEKENDE_HASHES_HASHFUNCTIES);
+	}
+
+	/**
+	 * Onthoud dat deze Peer de transactie of het blok met de gegeven hash heeft.
+	 * @param hash	Hash van de transactie of het blok.
+	 */
+	public void markeerBekend(String hash) {
+		bekendeHashes.voegToe(hash);
+	}
+
+	/**
+	 * @param hash	Hash van een transactie of blok.
+	 * @return True (deze Peer heeft de transactie of het blok waarschijnlijk al) of false.
+	 */
+	public boolean kentHash(String hash) {
+		return bekendeHashes.bevat(hash);
+	}
+
+	/**
+	 * Stuur een bericht naar deze Peer. Het bericht wordt in de queue gezet en door de
+	 * netwerkthread verstuurd; deze methode wacht dus niet tot het bericht verstuurd is.
+	 * Kan door elke thread worden aangeroepen.
+	 * @param json	JSONObject dat de informatie van dit bericht bevat (gebruik de BerichtUtil-klasse om berichten te maken)
+	 * @return True (het bericht is in de queue gezet) of false (het bericht is overgeslagen, zie stuurFrame()).
+	 */
+	public boolean stuurBericht(JSONObject json) {
+		return stuurFrame(maakFrame(json, compressie), heeftPrioriteit(json));
+	}
+
+	/**
+	 * Verwerk het versiebericht van deze Peer. Als de Peer deflate ondersteunt, worden grote
+	 * berichten vanaf nu gecomprimeerd naar de Peer gestuurd.
+	 * @param bericht	Het versiebericht.
+	 */
+	void verwerkVersie(JSONObject bericht) {
+		compressie = BerichtUtil.leesCompressie(bericht).contains("deflate");
+		if (!uitgaand) {
+			luisterPoort = BerichtUtil.leesLuisterPoort(bericht);
 		}
-		
-		luisterThread = new Thread(new Runnable() {
-			@Override
-			public void run() {
-				
-				try {
-					
-					//ontvang berichten van deze Peer
-					BufferedReader reader = new BufferedReader(new InputStreamReader(
-												Peer.this.socket.getInputStream(), StandardCharsets.UTF_8));
-
-					String regel;
-					while ((regel = reader.readLine()) != null) {
-						Peer.this.network.ontvangBericht(new JSONObject(regel), Peer.this);
-					}
+	}
 
-				} catch (IOException e) {
-					e.printStackTrace();
-				} finally {
-					try {
-						if (Peer.this.socket != null) {
-							Peer.this.socket.close();
-						}
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-				 
-					//laat network weten dat deze peer niet meer verbonden is
-					Peer.this.network.verbindingVerbroken(Peer.this);
-				}
-				
+	/**
+	 * Stuur een pingbericht om de latentie te meten. Als er nog geen antwoord is op het vorige
+	 * pingbericht, wordt er geen nieuw bericht gestuurd.
+	 * Kan door elke thread worden aangeroepen.
+	 */
+	public synchronized void stuurPing() {
+		if (pingNonce != 0) {
+			return;
+		}
+		do {
+			pingNonce = PING_RANDOM.nextLong();
+		} while (pingNonce == 0);
+		pingVerstuurd = System.nanoTime();
+		stuurBericht(BerichtUtil.maakPingBericht(pingNonce));
+	}
+
+	/**
+	 * Verwerk het antwoord op een pingbericht. Wordt aangeroepen door Network.
+	 * @param nonce	De nonce uit het pongbericht.
+	 */
+	synchronized void verwerkPong(long nonce) {
+		if (nonce != 0 && nonce == pingNonce) {
+			latentie = (System.nanoTime() - pingVerstuurd) / 1000000;
+			pingNonce = 0;
+		}
+	}
+
+	/**
+	 * @param timeout	Het aantal milliseconden dat op een antwoord gewacht mag worden.
+	 * @return True (er is al langer dan timeout milliseconden geen antwoord op een pingbericht) of false.
+	 */
+	public synchronized boolean isPingVerlopen(long timeout) {
+		return pingNonce != 0 && (System.nanoTime() - pingVerstuurd) / 1000000 > timeout;
+	}
+
+	/**
+	 * @return De laatst gemeten latentie in milliseconden (of -1 als deze nog niet gemeten is).
+	 */
+	public synchronized long getLatentie() {
+		return latentie;
+	}
+
+	/**
+	 * Leg vast dat deze Peer als eerste een nieuwe, geldige transactie of een nieuw blok gestuurd heeft.
+	 */
+	public void verhoogNut() {
+		nut++;
+	}
+
+	public int getNut() {
+		return nut;
+	}
+
+	public boolean isUitgaand() {
+		return uitgaand;
+	}
+
+	public long getVerbondenSinds() {
+		return verbondenSinds;
+	}
+
+	public int getLuisterPoort() {
+		return luisterPoort;
+	}
+
+	/**
+	 * @return True (deze Peer kan gecomprimeerde frames lezen) of false.
+	 */
+	boolean isCompressie() {
+		return compressie;
+	}
+
+	/**
+	 * Zet een frame (zie maakFrame()) in de queue van deze Peer. Hetzelfde frame kan naar
+	 * meerdere peers gestuurd worden: elke Peer gebruikt een eigen duplicate() van de buffer,
+	 * zodat de data maar één keer in het geheugen staat.
+	 *
+	 * Als de queue te vol is, wordt een frame zonder prioriteit niet verstuurd (zie 
+	 * HOOGWATER_BYTES). Als de Peer zo ver achterloopt dat er al MAX_UITGAANDE_BYTES in de
+	 * queue staan, wordt de verbinding verbroken.
+	 * Kan door elke thread worden aangeroepen.
+	 * @param frame			Het frame. De inhoud van de buffer mag niet meer veranderen.
+	 * @param prioriteit	Of het frame prioriteit heeft (zie heeftPrioriteit()).
+	 * @return True (het frame is in de queue gezet) of false (het frame is overgeslagen).
+	 */
+	boolean stuurFrame(ByteBuffer frame, boolean prioriteit) {
+		synchronized (uitgaandeFrames) {
+			if (uitgaandeBytes >= MAX_UITGAANDE_BYTES) {
+				System.out.println("Peer " + ip + " loopt te ver achter (" + uitgaandeBytes + " bytes in de queue)");
+				verbreek();
+				return false;
+			}
+			if (!prioriteit && uitgaandeBytes >= HOOGWATER_BYTES) {
+				//sla het bericht over; de Peer kan de transactie later nog ontvangen
+				return false;
 			}
-		});
-		luisterThread.setName("luisterThread " + ip);
-		luisterThread.start();
+
+			if (prioriteit) {
+				prioriteitFrames.add(frame.duplicate());
+			} else {
+				uitgaandeFrames.add(frame.duplicate());
+			}
+			uitgaandeBytes += frame.remaining();
+		}
+		network.wilSchrijven(this);
+		return true;
 	}
-	
+
 	/**
-	 * Stuur een bericht naar deze Peer.
-	 * @param json	JSONObject dat de informatie van dit bericht bevat (gebruik de BerichtUtil-klasse om berichten te maken)
+	 * Bepaal of een bericht prioriteit heeft. Transacties en aankondigingen van transacties
+	 * hebben geen prioriteit; blokken en alle andere berichten wel.
+	 * @param json	Het bericht.
+	 * @return True (het bericht heeft prioriteit) of false.
+	 */
+	static boolean heeftPrioriteit(JSONObject json) {
+		String soort = json.optString("soort");
+		return !soort.equals("transactie") && !soort.equals("inv");
+	}
+
+	/**
+	 * Zet een bericht om in een frame: een int met de lengte van het bericht, gevolgd door het
+	 * bericht zelf (JSON, UTF-8). Als het bericht gecomprimeerd mag worden en langer is dan
+	 * COMPRESSIE_DREMPEL, wordt het met deflate gecomprimeerd en het hoogste bit van de lengte
+	 * gezet.
+	 * @param json			Het bericht.
+	 * @param comprimeer	Of het bericht gecomprimeerd mag worden (zie isCompressie()).
+	 * @return Het frame, klaar om te versturen.
 	 */
-	public void stuurBericht(JSONObject json) {
-		synchronized (writer) {
-			writer.println(json.toString());
-			writer.flush();
+	static ByteBuffer maakFrame(JSONObject json, boolean comprimeer) {
+		byte[] data = json.toString().getBytes(StandardCharsets.UTF_8);
+		int lengte = data.length;
+		int kop = lengte;
+
+		if (comprimeer && data.length >= COMPRESSIE_DREMPEL) {
+			Deflater deflater = new Deflater();
+			deflater.setInput(data);
+			deflater.finish();
+			byte[] gecomprimeerd = new byte[data.length];
+			int gecomprimeerdeLengte = deflater.deflate(gecomprimeerd);
+			boolean kleiner = deflater.finished();
+			deflater.end();
+
+			//gebruik de gecomprimeerde data alleen als deze (helemaal) in de kleinere buffer paste
+			if (kleiner) {
+				data = gecomprimeerd;
+				lengte = gecomprimeerdeLengte;
+				kop = lengte | GECOMPRIMEERD;
+			}
 		}
+
+		ByteBuffer frame = ByteBuffer.allocate(4 + lengte);
+		frame.putInt(kop);
+		frame.put(data, 0, lengte);
+		frame.flip();
+		return frame;
+	}
+
+	/**
+	 * Verbreek de verbinding met deze Peer. De netwerkthread merkt dit op en meldt het aan de
+	 * NetworkListeners.
+	 */
+	public void verbreek() {
+		network.verbreek(this);
 	}
 	
 	/**
-	 * Stop de luisterThread
+	 * Sluit het kanaal van deze Peer. Wordt aangeroepen door Network.
 	 */
-	public void stopLuisterThread() {
-		
+	void sluitKanaal() {
 		try {
-			//sluit socket
-			//(Merk op dat we de inputstream niet hoeven te sluiten, dat
-			// gebeurt automatisch als de socket wordt gesloten)
-			if (socket != null) {
-				socket.close();
-			}
-			
+			kanaal.close();
 		} catch (IOException e) {
 			e.printStackTrace();
-		}		
+		}
 	}
-	
+
+	/**
+	 * Lees alle beschikbare bytes uit het kanaal en geef de volledig ontvangen berichten door aan
+	 * Network. Wordt aangeroepen op de netwerkthread.
+	 * @throws IOException Als de verbinding verbroken is of de Peer een ongeldig frame stuurt.
+	 */
+	void lees() throws IOException {
+		while (true) {
+			int aantal = kanaal.read(leesBuffer);
+			if (aantal < 0) {
+				throw new IOException("Verbinding gesloten door peer");
+			}
+
+			boolean vol = !leesBuffer.hasRemaining();
+			verwerkFrames();
+
+			if (aantal == 0 || !vol) {
+				//alle beschikbare bytes zijn gelezen
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Haal de volledige frames uit de leesbuffer.
+	 * @throws IOException Als een frame een ongeldige lengte heeft.
+	 */
+	private void verwerkFrames() throws IOException {
+		leesBuffer.flip();
+
+		while (leesBuffer.remaining() >= 4) {
+			int kop = leesBuffer.getInt(leesBuffer.position());
+			int lengte = kop & ~GECOMPRIMEERD;
+			if (lengte > MAX_BERICHT_GROOTTE) {
+				throw new IOException("Ongeldige berichtlengte: " + lengte);
+			}
+			if (leesBuffer.remaining() < 4 + lengte) {
+				break;
+			}
+
+			leesBuffer.position(leesBuffer.position() + 4);
+			String tekst;
+			if ((kop & GECOMPRIMEERD) != 0) {
+				tekst = decomprimeer(leesBuffer.array(), leesBuffer.arrayOffset() + leesBuffer.position(), lengte);
+			} else {
+				tekst = new String(leesBuffer.array(), leesBuffer.arrayOffset() + leesBuffer.position(),
+								   lengte, StandardCharsets.UTF_8);
+			}
+			leesBuffer.position(leesBuffer.position() + lengte);
+
+			try {
+				network.ontvangBericht(new JSONObject(tekst), this);
+			} catch (JSONException e) {
+				throw new IOException("Ongeldig bericht ontvangen", e);
+			}
+		}
+
+		int nodig = 0;
+		if (leesBuffer.remaining() >= 4) {
+			nodig = 4 + (leesBuffer.getInt(leesBuffer.position()) & ~GECOMPRIMEERD);
+		}
+		leesBuffer.compact();
+
+		//Laat de buffer pas groeien als hij vol is met het volgende (onvolledige) frame, en dan
+		//hooguit tot twee keer de huidige grootte. Een peer die alleen een grote lengte stuurt,
+		//kost dus geen MAX_BERICHT_GROOTTE bytes geheugen.
+		if (!leesBuffer.hasRemaining() && nodig > leesBuffer.capacity()) {
+			ByteBuffer groter = ByteBuffer.allocate((int) Math.min(nodig, 2L * leesBuffer.capacity()));
+			leesBuffer.flip();
+			groter.put(leesBuffer);
+			leesBuffer = groter;
+		} else if (leesBuffer.position() == 0 && leesBuffer.capacity() > LEESBUFFER_GROOTTE) {
+			//de buffer is leeg; geef het geheugen van een groot bericht terug
+			leesBuffer = ByteBuffer.allocate(LEESBUFFER_GROOTTE);
+		}
+	}
+
+	/**
+	 * Decomprimeer een gecomprimeerd bericht.
+	 * @return Het bericht (JSON).
+	 * @throws IOException Als de data ongeldig is of het bericht groter is dan MAX_BERICHT_GROOTTE.
+	 */
+	private static String decomprimeer(byte[] data, int begin, int lengte) throws IOException {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(data, begin, lengte);
+			//begin klein; de buffer groeit met de gedecomprimeerde data (tot MAX_BERICHT_GROOTTE)
+			ByteArrayOutputStream bericht = new ByteArrayOutputStream(Math.min(lengte, LEESBUFFER_GROOTTE) * 4);
+			byte[] buffer = new byte[8 * 1024];
+			while (!inflater.finished()) {
+				int aantal = inflater.inflate(buffer);
+				if (aantal == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new IOException("Gecomprimeerd bericht is onvolledig");
+				}
+				bericht.write(buffer, 0, aantal);
+				if (bericht.size() > MAX_BERICHT_GROOTTE) {
+					throw new IOException("Gecomprimeerd bericht is te groot");
+				}
+			}
+			return new String(bericht.toByteArray(), StandardCharsets.UTF_8);
+		} catch (DataFormatException e) {
+			throw new IOException("Ongeldig gecomprimeerd bericht", e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Schrijf zoveel mogelijk frames uit de queue naar het kanaal. Wordt aangeroepen op de
+	 * netwerkthread.
+	 * @return True (alle frames zijn verstuurd) of false (het kanaal kan op dit moment niets meer
+	 * 		   aannemen).
+	 * @throws IOException
+	 */
+	boolean schrijf() throws IOException {
+		synchronized (uitgaandeFrames) {
+			while (true) {
+				if (huidigFrame == null) {
+					//frames met prioriteit eerst
+					huidigFrame = prioriteitFrames.pollFirst();
+					if (huidigFrame == null) {
+						huidigFrame = uitgaandeFrames.pollFirst();
+					}
+					if (huidigFrame == null) {
+						return true;
+					}
+				}
+
+				uitgaandeBytes -= kanaal.write(huidigFrame);
+				if (huidigFrame.hasRemaining()) {
+					return false;
+				}
+				huidigFrame = null;
+			}
+		}
+	}
+
+	SocketChannel getKanaal() {
+		return kanaal;
+	}
+
+	SelectionKey getSelectionKey() {
+		return selectionKey;
+	}
+
+	void setSelectionKey(SelectionKey selectionKey) {
+		this.selectionKey = selectionKey;
+	}
+
+	public long getId() {
+		return id;
+	}
+
 	public String getIP() {
 		return ip;
 	}
-	
+
 	public int getPoort() {
 		return poort;
 	}
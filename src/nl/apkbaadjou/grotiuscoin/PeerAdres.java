@@ -0,0 +1,176 @@
+package nl.apkbaadjou.grotiuscoin;
+
+
+/**
+ * Een PeerAdres is een adres (IP-adres en poort) van een node waarmee deze node kan verbinden,
+ * samen met wat deze node over die node weet: wanneer er voor het laatst een werkende verbinding
+ * was, hoe vaak het verbinden achter elkaar mislukt is en hoe snel de node antwoordt.
+ * PeerAdressen worden bewaard in het AdresBoek.
+ *
+ */
+public class PeerAdres {
+
+	/**
+	 * Het aantal milliseconden dat gewacht wordt na de eerste mislukte verbinding. Na elke
+	 * volgende mislukte verbinding wordt de wachttijd verdubbeld (tot MAX_WACHTTIJD).
+	 */
+	public static final long BASIS_WACHTTIJD = 10 * 1000;
+
+	/**
+	 * De maximale wachttijd tussen twee pogingen om te verbinden.
+	 */
+	public static final long MAX_WACHTTIJD = 4 * 60 * 60 * 1000;
+
+	private final String ip;
+	private final int poort;
+
+	/**
+	 * Het tijdstip waarop er voor het laatst een werkende verbinding met de node was (of 0 als
+	 * er nog nooit een verbinding is geweest).
+	 */
+	private long laatstGezien;
+
+	/**
+	 * Het aantal keer dat het verbinden achter elkaar mislukt is (of dat de verbinding snel
+	 * weer verbroken werd).
+	 */
+	private int mislukt;
+
+	/**
+	 * Het tijdstip waarop er op zijn vroegst weer met de node verbonden mag worden.
+	 */
+	private long volgendePoging;
+
+	/**
+	 * De laatst gemeten latentie in milliseconden (of -1 als de latentie niet bekend is).
+	 */
+	private long latentie;
+
+	public PeerAdres(String ip, int poort) {
+		this(ip, poort, 0, 0, 0, -1);
+	}
+
+	public PeerAdres(String ip, int poort, long laatstGezien, int mislukt, long volgendePoging, long latentie) {
+		this.ip = ip;
+		this.poort = poort;
+		this.laatstGezien = laatstGezien;
+		this.mislukt = mislukt;
+		this.volgendePoging = volgendePoging;
+		this.latentie = latentie;
+	}
+
+	/**
+	 * Maak een sleutel voor een adres, zodat hetzelfde adres altijd dezelfde sleutel heeft.
+	 * @return De sleutel ("ip:poort").
+	 */
+	public static String maakSleutel(String ip, int poort) {
+		return ip + ":" + poort;
+	}
+
+	public String getSleutel() {
+		return maakSleutel(ip, poort);
+	}
+
+	/**
+	 * Leg vast dat het verbinden mislukt is. Er wordt pas weer verbonden als de wachttijd
+	 * voorbij is; de wachttijd verdubbelt bij elke mislukte poging.
+	 * @param nu	Het huidige tijdstip.
+	 */
+	public void mislukt(long nu) {
+		mislukt++;
+		volgendePoging = nu + getWachttijd();
+	}
+
+	/**
+	 * Leg vast dat de verbinding met de node verbroken is. Als de verbinding kort heeft
+	 * bestaan, telt dit als een mislukte poging; anders wordt er na de basiswachttijd weer
+	 * verbonden.
+	 * @param nu		Het huidige tijdstip.
+	 * @param stabiel	Of de verbinding lang genoeg heeft bestaan.
+	 */
+	public void verbroken(long nu, boolean stabiel) {
+		if (stabiel) {
+			mislukt = 0;
+			volgendePoging = nu + BASIS_WACHTTIJD;
+		} else {
+			mislukt(nu);
+		}
+	}
+
+	/**
+	 * Leg vast dat er een werkende verbinding met de node is.
+	 * @param nu		Het huidige tijdstip.
+	 * @param latentie	De gemeten latentie (of -1 als deze nog niet gemeten is).
+	 */
+	public void gezien(long nu, long latentie) {
+		laatstGezien = nu;
+		if (latentie >= 0) {
+			this.latentie = latentie;
+		}
+	}
+
+	/**
+	 * @return De wachttijd na de laatste mislukte poging.
+	 */
+	private long getWachttijd() {
+		if (mislukt <= 0) {
+			return 0;
+		}
+		//voorkom overflow bij veel mislukte pogingen
+		int verdubbelingen = Math.min(mislukt - 1, 20);
+		return Math.min(BASIS_WACHTTIJD << verdubbelingen, MAX_WACHTTIJD);
+	}
+
+	/**
+	 * @param nu	Het huidige tijdstip.
+	 * @return True (er mag met de node verbonden worden) of false (de wachttijd is nog niet voorbij).
+	 */
+	public boolean magVerbinden(long nu) {
+		return nu >= volgendePoging;
+	}
+
+	/**
+	 * Bepaal hoe aantrekkelijk het is om met deze node te verbinden. Mislukte pogingen en een
+	 * hoge latentie verlagen de score; een recente werkende verbinding verhoogt de score.
+	 * @param nu	Het huidige tijdstip.
+	 * @return De score (hoger is beter).
+	 */
+	public double getScore(long nu) {
+		double score = -10.0 * mislukt;
+		if (latentie >= 0) {
+			//elke 100 ms latentie kost een punt
+			score -= latentie / 100.0;
+		}
+		if (laatstGezien > 0) {
+			//een werkende verbinding is een paar punten waard, maar minder naarmate het langer geleden is
+			double dagen = (nu - laatstGezien) / (24.0 * 60 * 60 * 1000);
+			score += Math.max(0, 5 - dagen);
+		}
+		return score;
+	}
+
+	public String getIP() {
+		return ip;
+	}
+
+	public int getPoort() {
+		return poort;
+	}
+
+	public long getLaatstGezien() {
+		return laatstGezien;
+	}
+
+	public int getMislukt() {
+		return mislukt;
+	}
+
+	public long getVolgendePoging() {
+		return volgendePoging;
+	}
+
+	public long getLatentie() {
+		return latentie;
+	}
+
+}
@@ -0,0 +1,119 @@
+package nl.apkbaadjou.grotiuscoin;
+import java.util.BitSet;
+
+
+/**
+ * Een RollendBloomFilter onthoudt (ongeveer) welke hashes de laatste tijd gezien zijn, met een
+ * vaste hoeveelheid geheugen.
+ *
+ * Het filter bestaat uit twee bloomfilters: het huidige en het vorige. Nieuwe hashes worden aan 
+ * het huidige filter toegevoegd. Zodra het huidige filter aantalPerGeneratie hashes bevat, wordt 
+ * het vorige filter weggegooid en begint een nieuw huidig filter. Een hash wordt dus minstens 
+ * aantalPerGeneratie toevoegingen lang onthouden, en daarna vergeten.
+ *
+ * Net als bij elk bloomfilter kan bevat() soms ten onrechte true teruggeven (de kans hangt af 
+ * van het aantal bits en het aantal hashfuncties), maar nooit ten onrechte false zolang de hash
+ * niet vergeten is.
+ *
+ * Alle methoden zijn synchronized, zodat het filter door meerdere threads gebruikt kan worden.
+ *
+ */
+public class RollendBloomFilter {
+	
+	private final int aantalPerGeneratie;
+	private final int aantalBits;
+	private final int aantalHashfuncties;
+	
+	private BitSet huidig;
+	private BitSet vorig;
+	
+	/**
+	 * Het aantal hashes dat aan het huidige filter is toegevoegd.
+	 */
+	private int aantalInHuidig;
+	
+	/**
+	 * @param aantalPerGeneratie	Het aantal hashes waarna een nieuw filter begint.
+	 * @param aantalBits			Het aantal bits per filter.
+	 * @param aantalHashfuncties	Het aantal bits dat per hash wordt gezet.
+	 */
+	public RollendBloomFilter(int aantalPerGeneratie, int aantalBits, int aantalHashfuncties) {
+		this.aantalPerGeneratie = aantalPerGeneratie;
+		this.aantalBits = aantalBits;
+		this.aantalHashfuncties = aantalHashfuncties;
+		huidig = new BitSet(aantalBits);
+		vorig = new BitSet(aantalBits);
+	}
+	
+	/**
+	 * Voeg een hash toe aan het filter.
+	 * @param hash	De hash.
+	 */
+	public synchronized void voegToe(String hash) {
+		if (bevat(huidig, hash)) {
+			return;
+		}
+		
+		if (aantalInHuidig >= aantalPerGeneratie) {
+			//begin een nieuwe generatie
+			BitSet leeg = vorig;
+			leeg.clear();
+			vorig = huidig;
+			huidig = leeg;
+			aantalInHuidig = 0;
+		}
+		
+		long h1 = hash1(hash);
+		long h2 = hash2(hash);
+		for (int i=0; i<aantalHashfuncties; i++) {
+			huidig.set(getIndex(h1, h2, i));
+		}
+		aantalInHuidig++;
+	}
+	
+	/**
+	 * @param hash	De hash.
+	 * @return True (de hash is waarschijnlijk toegevoegd) of false (de hash is zeker niet
+	 * 		   toegevoegd, of vergeten).
+	 */
+	public synchronized boolean bevat(String hash) {
+		return bevat(huidig, hash) || bevat(vorig, hash);
+	}
+	
+	private boolean bevat(BitSet filter, String hash) {
+		long h1 = hash1(hash);
+		long h2 = hash2(hash);
+		for (int i=0; i<aantalHashfuncties; i++) {
+			if (!filter.get(getIndex(h1, h2, i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * De hashfuncties worden gemaakt door twee hashes te combineren (h1 + i*h2).
+	 */
+	private int getIndex(long h1, long h2, int i) {
+		long index = (h1 + i * h2) % aantalBits;
+		return (int) (index < 0 ? index + aantalBits : index);
+	}
+	
+	private long hash1(String hash) {
+		return hash.hashCode();
+	}
+	
+	/**
+	 * FNV-1a over de tekens van de hash. Oneven gemaakt, zodat h1 + i*h2 niet steeds dezelfde 
+	 * bits raakt.
+	 */
+	private long hash2(String hash) {
+		long h = 0xcbf29ce484222325L;
+		for (int i=0; i<hash.length(); i++) {
+			h ^= hash.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return (h >>> 1) | 1;
+	}
+
+}
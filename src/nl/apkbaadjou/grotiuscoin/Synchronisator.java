@@ -0,0 +1,500 @@
+package nl.apkbaadjou.grotiuscoin;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+
+/**
+ * De Synchronisator haalt de blokken op die deze node mist, als een peer een blockchain met meer werk heeft.
+ *
+ * De synchronisatie gaat 'headers-first':
+ * 		1. Stuur de headerPeer een blok-locator (getheaders). De peer antwoordt met de headers van de
+ * 		   blokken na het laatste gemeenschappelijke blok (headers), maximaal MAX_HEADERS_PER_BERICHT
+ * 		   per bericht. Een vol headersbericht betekent dat er nog meer headers zijn; die worden
+ * 		   direct opgevraagd.
+ * 		2. Controleer van elke header of deze op het vorige blok volgt en genoeg werk bevat.
+ * 		   De hashes van blokken die nog niet ontvangen zijn worden bewaard in teDownloaden.
+ * 		   Het werk van de keten van headers wordt opgeteld. Er worden pas blokken gedownload als
+ * 		   die keten meer werk bevat dan de beste keten van deze node, en de synchronisatie
+ * 		   stopt als alle headers ontvangen zijn zonder dat dit zo is. Een peer kan deze node dus
+ * 		   niet met goedkope headers (met een lage moeilijkheid) laten downloaden.
+ * 		3. Verdeel de blokken in groepen van BLOKKEN_PER_VERZOEK over alle peers die verder zijn dan
+ * 		   deze node (getblokken), met maximaal MAX_VERZOEKEN_PER_PEER verzoeken per peer tegelijk.
+ * 		   Een peer die sneller antwoordt krijgt dus ook sneller een nieuw verzoek. Een verzoek
+ * 		   waarvan VERZOEK_TIMEOUT lang geen blok is ontvangen, wordt opnieuw verstuurd naar een
+ * 		   andere peer.
+ * 		4. Blokken die niet op volgorde binnenkomen worden bewaard tot de voorgaande blokken er
+ * 		   zijn, en daarna op volgorde aan de BlockchainManager gegeven.
+ * Het verkeer en het geheugengebruik hangen dus af van het aantal ontbrekende blokken, niet van
+ * de lengte van de blockchain. Het aantal blokken dat tegelijk opgevraagd of bewaard wordt is
+ * begrensd door DOWNLOAD_VENSTER.
+ *
+ * De methoden van deze klasse worden door de main thread en de timer van Main aangeroepen en
+ * zijn daarom synchronized. De netwerkthread roept de Synchronisator niet aan, omdat het 
+ * toevoegen van blokken (met de lock van de Synchronisator) lang kan duren.
+ *
+ */
+public class Synchronisator {
+
+	/**
+	 * Het maximale aantal headers in een headersbericht.
+	 */
+	public static final int MAX_HEADERS_PER_BERICHT = 500;
+
+	/**
+	 * Het aantal blokken dat in één getblokkenbericht wordt opgevraagd.
+	 */
+	public static final int BLOKKEN_PER_VERZOEK = 16;
+
+	/**
+	 * Het maximale aantal verzoeken dat tegelijk bij één peer uitstaat.
+	 */
+	public static final int MAX_VERZOEKEN_PER_PEER = 2;
+
+	/**
+	 * Het maximale aantal blokken dat tegelijk opgevraagd of (niet op volgorde ontvangen)
+	 * bewaard wordt.
+	 */
+	public static final int DOWNLOAD_VENSTER = 1024;
+
+	/**
+	 * Het aantal milliseconden waarna een verzoek waarop geen antwoord komt naar een andere
+	 * peer wordt gestuurd.
+	 */
+	public static final long VERZOEK_TIMEOUT = 20 * 1000;
+
+	/**
+	 * Het aantal milliseconden tussen twee aanroepen van controleerVerzoeken().
+	 */
+	public static final long CONTROLE_INTERVAL = 1000;
+
+	private BlockchainManager blockchainManager;
+
+	/**
+	 * De peer waarbij de headers worden opgevraagd (of null als er niet gesynchroniseerd wordt).
+	 */
+	private Peer headerPeer;
+
+	/**
+	 * Tijdstip waarop de laatste headers zijn opgevraagd of ontvangen.
+	 */
+	private long laatsteHeaderActiviteit;
+
+	/**
+	 * Hash van de laatst ontvangen (geldige) header.
+	 */
+	private String laatsteHeaderHash;
+
+	/**
+	 * De totale hoeveelheid werk van de keten tot en met de laatst ontvangen header.
+	 */
+	private BigInteger headerWerk;
+
+	/**
+	 * Geeft aan of alle headers van de headerPeer ontvangen zijn.
+	 */
+	private boolean headersCompleet;
+
+	/**
+	 * Hashes van de blokken die nog aan de blockchain toegevoegd moeten worden, op volgorde van
+	 * blokhoogte.
+	 */
+	private LinkedHashSet<String> teVerbinden;
+
+	/**
+	 * Hashes van de blokken die nog opgevraagd moeten worden, op volgorde van blokhoogte.
+	 */
+	private LinkedHashSet<String> teDownloaden;
+
+	/**
+	 * De verzoeken die nog niet helemaal beantwoord zijn.
+	 */
+	private ArrayList<BlokVerzoek> verzoeken;
+
+	/**
+	 * Het verzoek van elk blok dat opgevraagd is maar nog niet ontvangen, met de hash van het
+	 * blok als sleutel.
+	 */
+	private HashMap<String, BlokVerzoek> onderweg;
+
+	/**
+	 * Ontvangen blokken die nog niet toegevoegd kunnen worden omdat een eerder blok ontbreekt,
+	 * met de hash van het blok als sleutel.
+	 */
+	private HashMap<String, Blok> gebufferd;
+
+	/**
+	 * De laatst bekende blokhoogte van elke verbonden peer.
+	 */
+	private HashMap<Peer, Integer> peerBlokhoogtes;
+
+	public Synchronisator(BlockchainManager blockchainManager) {
+		this.blockchainManager = blockchainManager;
+		teVerbinden = new LinkedHashSet<String>();
+		teDownloaden = new LinkedHashSet<String>();
+		verzoeken = new ArrayList<BlokVerzoek>();
+		onderweg = new HashMap<String, BlokVerzoek>();
+		gebufferd = new HashMap<String, Blok>();
+		peerBlokhoogtes = new HashMap<Peer, Integer>();
+	}
+
+	/**
+	 * Verwerk de blokhoogte van een peer. Als de peer meer blokken heeft dan deze node, wordt
+	 * de synchronisatie gestart. De blokhoogte is alleen een aanwijzing: er worden pas blokken
+	 * gedownload als de keten van headers meer werk bevat (zie isHeaderWerkGenoeg()), net zoals 
+	 * de BlockchainManager de keten met het meeste werk als hoofdketen kiest.
+	 * @param peer			De peer.
+	 * @param blokhoogte	De blokhoogte van de peer.
+	 */
+	public synchronized void setBlokhoogte(Peer peer, int blokhoogte) {
+		peerBlokhoogtes.put(peer, blokhoogte);
+		if (blokhoogte > blockchainManager.getBlokhoogte()) {
+			start(peer);
+		}
+	}
+
+	/**
+	 * Begin met synchroniseren met de gegeven peer, tenzij er al gesynchroniseerd wordt.
+	 * @param peer	Peer die (waarschijnlijk) een blockchain met meer werk heeft.
+	 */
+	public synchronized void start(Peer peer) {
+		if (headerPeer != null) {
+			return;
+		}
+
+		System.out.println("synchroniseer met " + peer.getIP());
+		headerPeer = peer;
+		laatsteHeaderHash = null;
+		headerWerk = BigInteger.ZERO;
+		headersCompleet = false;
+		vraagHeadersAan();
+	}
+
+	/**
+	 * Verwerk de headers uit een headersbericht.
+	 * @param headers	De ontvangen headers.
+	 * @param afzender	De peer die de headers gestuurd heeft.
+	 */
+	public synchronized void verwerkHeaders(List<BlokHeader> headers, Peer afzender) {
+		if (afzender != headerPeer || headersCompleet) {
+			//niet gevraagd
+			return;
+		}
+		laatsteHeaderActiviteit = System.currentTimeMillis();
+
+		for (BlokHeader header : headers) {
+
+			//controleer of de header op de vorige header of op een bekend blok volgt
+			String vorigeBlokHash = header.getVorigeBlokHash();
+			if (!vorigeBlokHash.equals(laatsteHeaderHash)) {
+				if (!blockchainManager.bevatBlok(vorigeBlokHash)) {
+					System.out.println("header volgt niet op een bekend blok");
+					stop();
+					return;
+				}
+				//de keten van headers begint (opnieuw) bij een bekend blok
+				headerWerk = blockchainManager.getTotaalWerk(vorigeBlokHash);
+				if (headerWerk == null) {
+					//weesblok; het werk van de keten is onbekend
+					headerWerk = BigInteger.ZERO;
+				}
+			}
+
+			//controleer of de header genoeg werk bevat
+			if (!header.isWerkGeldig()) {
+				System.out.println("header hash is onjuist");
+				afzender.verbreek();
+				stop();
+				return;
+			}
+
+			//controleer timestamp (verder dan één uur in de toekomst is ongeldig)
+			if (header.getTimestamp() > System.currentTimeMillis() + 60 * 60 * 1000) {
+				System.out.println("header timestamp is onjuist");
+				stop();
+				return;
+			}
+
+			headerWerk = headerWerk.add(BlokIndex.bepaalWerk(header.getTarget()));
+			laatsteHeaderHash = header.getHash();
+			if (!blockchainManager.bevatBlok(laatsteHeaderHash) && teVerbinden.add(laatsteHeaderHash)) {
+				teDownloaden.add(laatsteHeaderHash);
+			}
+		}
+
+		if (headers.size() >= MAX_HEADERS_PER_BERICHT) {
+			//vraag de volgende headers op, na de laatst ontvangen header
+			vraagHeadersAan();
+		} else {
+			headersCompleet = true;
+			if (!teVerbinden.isEmpty() && !isHeaderWerkGenoeg()) {
+				System.out.println("keten van " + afzender.getIP() + " bevat niet meer werk");
+				stop();
+				return;
+			}
+		}
+
+		verdeelVerzoeken();
+		controleerKlaar();
+	}
+
+	/**
+	 * Verwerk een ontvangen blok als het door de Synchronisator is opgevraagd. Het blok wordt
+	 * bewaard tot alle voorgaande blokken er zijn, en daarna aan de blockchain toegevoegd.
+	 * @param blok		Het ontvangen blok.
+	 * @param afzender	De peer die het blok gestuurd heeft.
+	 * @return True (het blok is opgevraagd en wordt door de Synchronisator verwerkt) of false (het
+	 * 		   blok is niet opgevraagd en moet op de gewone manier verwerkt worden).
+	 */
+	public synchronized boolean verwerkBlok(Blok blok, Peer afzender) {
+		String hash = blok.getHash();
+		BlokVerzoek verzoek = onderweg.remove(hash);
+		if (verzoek == null) {
+			return false;
+		}
+
+		//het blok mag ook van een andere peer komen (bijvoorbeeld na een timeout)
+		verzoek.hashes.remove(hash);
+		verzoek.laatsteActiviteit = System.currentTimeMillis();
+		if (verzoek.hashes.isEmpty()) {
+			verzoeken.remove(verzoek);
+		}
+
+		gebufferd.put(hash, blok);
+		verbindBlokken();
+		verdeelVerzoeken();
+		controleerKlaar();
+		return true;
+	}
+
+	/**
+	 * Controleer of er verzoeken zijn waarop te lang geen antwoord is gekomen, en stuur die
+	 * naar een andere peer. Wordt elke CONTROLE_INTERVAL milliseconden aangeroepen.
+	 */
+	public synchronized void controleerVerzoeken() {
+		if (headerPeer == null) {
+			return;
+		}
+		long nu = System.currentTimeMillis();
+
+		if (!headersCompleet && nu - laatsteHeaderActiviteit > VERZOEK_TIMEOUT) {
+			Peer andere = kiesPeer(headerPeer);
+			System.out.println("geen headers ontvangen van " + headerPeer.getIP());
+			if (andere == null) {
+				stop();
+				return;
+			}
+			headerPeer = andere;
+			vraagHeadersAan();
+		}
+
+		for (BlokVerzoek verzoek : verzoeken) {
+			if (nu - verzoek.laatsteActiviteit > VERZOEK_TIMEOUT) {
+				herverdeel(verzoek, kiesPeer(verzoek.peer));
+			}
+		}
+	}
+
+	/**
+	 * Wordt aangeroepen als de verbinding met een peer verbroken is.
+	 * @param peer	De peer waarmee de verbinding verbroken is.
+	 */
+	public synchronized void peerVerbroken(Peer peer) {
+		peerBlokhoogtes.remove(peer);
+		if (headerPeer == null) {
+			return;
+		}
+
+		if (peer == headerPeer) {
+			headerPeer = kiesPeer(peer);
+			if (headerPeer == null) {
+				stop();
+				return;
+			}
+			if (!headersCompleet) {
+				vraagHeadersAan();
+			}
+		}
+
+		for (BlokVerzoek verzoek : verzoeken) {
+			if (verzoek.peer == peer) {
+				herverdeel(verzoek, kiesPeer(peer));
+			}
+		}
+	}
+
+	/**
+	 * Vraag de headers na de laatst ontvangen header (of na het beste blok) op bij de headerPeer.
+	 */
+	private void vraagHeadersAan() {
+		ArrayList<String> locator = new ArrayList<String>();
+		if (laatsteHeaderHash != null) {
+			locator.add(laatsteHeaderHash);
+		}
+		locator.addAll(blockchainManager.maakBlokLocator());
+
+		laatsteHeaderActiviteit = System.currentTimeMillis();
+		headerPeer.stuurBericht(BerichtUtil.maakGetHeadersBericht(locator));
+	}
+
+	/**
+	 * Verdeel de blokken die nog opgevraagd moeten worden over de peers die verder zijn dan
+	 * deze node. Elke ronde krijgt elke peer met ruimte één verzoek, zodat de blokken over
+	 * alle peers verspreid worden.
+	 */
+	private void verdeelVerzoeken() {
+		if (!isHeaderWerkGenoeg()) {
+			//download pas als de keten van headers meer werk bevat dan de beste keten
+			return;
+		}
+		boolean verdeeld = true;
+		while (verdeeld) {
+			verdeeld = false;
+			for (Peer peer : getDownloadPeers()) {
+				if (teDownloaden.isEmpty() || onderweg.size() + gebufferd.size() >= DOWNLOAD_VENSTER) {
+					return;
+				}
+				if (getAantalVerzoeken(peer) >= MAX_VERZOEKEN_PER_PEER) {
+					continue;
+				}
+
+				LinkedHashSet<String> hashes = new LinkedHashSet<String>();
+				Iterator<String> iterator = teDownloaden.iterator();
+				while (iterator.hasNext() && hashes.size() < BLOKKEN_PER_VERZOEK) {
+					hashes.add(iterator.next());
+					iterator.remove();
+				}
+
+				BlokVerzoek verzoek = new BlokVerzoek(peer, hashes);
+				verzoeken.add(verzoek);
+				for (String hash : hashes) {
+					onderweg.put(hash, verzoek);
+				}
+				peer.stuurBericht(BerichtUtil.maakGetBlokkenBericht(hashes));
+				verdeeld = true;
+			}
+		}
+	}
+
+	/**
+	 * @return True als de keten van de ontvangen headers meer werk bevat dan de beste keten
+	 * 		   van deze node.
+	 */
+	private boolean isHeaderWerkGenoeg() {
+		return headerWerk != null && headerWerk.compareTo(blockchainManager.getTotaalWerk()) > 0;
+	}
+
+	/**
+	 * Stuur een verzoek opnieuw, naar de gegeven peer (of naar dezelfde peer als er geen
+	 * andere peer is).
+	 */
+	private void herverdeel(BlokVerzoek verzoek, Peer peer) {
+		if (peer != null) {
+			verzoek.peer = peer;
+		}
+		verzoek.laatsteActiviteit = System.currentTimeMillis();
+		verzoek.peer.stuurBericht(BerichtUtil.maakGetBlokkenBericht(verzoek.hashes));
+	}
+
+	/**
+	 * Voeg de ontvangen blokken op volgorde toe aan de blockchain, tot het eerste blok dat
+	 * nog niet ontvangen is.
+	 */
+	private void verbindBlokken() {
+		Iterator<String> iterator = teVerbinden.iterator();
+		while (iterator.hasNext()) {
+			String hash = iterator.next();
+
+			Blok blok = gebufferd.remove(hash);
+			if (blok == null) {
+				if (onderweg.containsKey(hash) || teDownloaden.contains(hash) || !blockchainManager.bevatBlok(hash)) {
+					//dit blok ontbreekt nog
+					return;
+				}
+				//het blok is op een andere manier ontvangen
+				iterator.remove();
+				continue;
+			}
+			iterator.remove();
+
+			if (!blockchainManager.bevatBlok(hash) && !blockchainManager.voegBlokToe(blok)) {
+				//de keten van de headers bevat een ongeldig blok
+				System.out.println("ongeldig blok ontvangen tijdens synchronisatie");
+				stop();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Stop de synchronisatie als alle headers en blokken ontvangen zijn.
+	 */
+	private void controleerKlaar() {
+		if (headerPeer != null && headersCompleet && teVerbinden.isEmpty()) {
+			System.out.println("synchronisatie klaar");
+			stop();
+		}
+	}
+
+	/**
+	 * @return De peers die meer blokken hebben dan deze node (en de headerPeer).
+	 */
+	private ArrayList<Peer> getDownloadPeers() {
+		ArrayList<Peer> downloadPeers = new ArrayList<Peer>();
+		int blokhoogte = blockchainManager.getBlokhoogte();
+		for (Peer peer : peerBlokhoogtes.keySet()) {
+			if (peer == headerPeer || peerBlokhoogtes.get(peer) > blokhoogte) {
+				downloadPeers.add(peer);
+			}
+		}
+		if (headerPeer != null && !downloadPeers.contains(headerPeer)) {
+			downloadPeers.add(headerPeer);
+		}
+		return downloadPeers;
+	}
+
+	/**
+	 * Kies een peer om een verzoek naartoe te sturen: de peer met de minste verzoeken, maar
+	 * niet de gegeven peer.
+	 * @param vorigePeer	De peer die niet gekozen mag worden.
+	 * @return De gekozen peer (of null als er geen andere peer is).
+	 */
+	private Peer kiesPeer(Peer vorigePeer) {
+		Peer gekozen = null;
+		for (Peer peer : getDownloadPeers()) {
+			if (peer != vorigePeer && (gekozen == null || getAantalVerzoeken(peer) < getAantalVerzoeken(gekozen))) {
+				gekozen = peer;
+			}
+		}
+		return gekozen;
+	}
+
+	private int getAantalVerzoeken(Peer peer) {
+		int aantal = 0;
+		for (BlokVerzoek verzoek : verzoeken) {
+			if (verzoek.peer == peer) {
+				aantal++;
+			}
+		}
+		return aantal;
+	}
+
+	/**
+	 * Stop met synchroniseren.
+	 */
+	private void stop() {
+		headerPeer = null;
+		laatsteHeaderHash = null;
+		headerWerk = null;
+		headersCompleet = false;
+		teVerbinden.clear();
+		teDownloaden.clear();
+		verzoeken.clear();
+		onderweg.clear();
+		gebufferd.clear();
+	}
+
+}
@@ -13,6 +13,24 @@ public class Transactie {
 	private ArrayList<Invoer> invoeren;
 	private ArrayList<Uitvoer> uitvoeren;
 	
+	/**
+	 * De laatst berekende hashwaarde van deze transactie (of null als de hash nog niet 
+	 * berekend is). Wordt gebruikt zodat de hash niet bij elke aanroep van getHash() 
+	 * opnieuw berekend hoeft te worden.
+	 */
+	private String hash;
+	
+	/**
+	 * De velden van de invoeren en uitvoeren waarmee de bewaarde hash berekend is.
+	 * De velden van Invoer en Uitvoer zijn public en kunnen dus op elk moment worden
+	 * aangepast. Daarom controleert getHash() of deze waarden nog overeenkomen met de
+	 * huidige inhoud van de transactie voordat de bewaarde hash wordt teruggegeven.
+	 * Op index i staan eerst de invoeren (hashVorigeTransactie, uitvoerIndex) en daarna
+	 * de uitvoeren (publiekeSleutel, bedrag).
+	 */
+	private String[] gehashteTeksten;
+	private int[] gehashteGetallen;
+	
 	public Transactie() {
 		invoeren = new ArrayList<Invoer>();
 		uitvoeren = new ArrayList<Uitvoer>();
@@ -38,10 +56,12 @@ public class Transactie {
 	
 	public void voegInvoerToe(Invoer invoer) {
 		invoeren.add(invoer);
+		hash = null;
 	}
 	
 	public void voegUitvoerToe(Uitvoer uitvoer) {
 		uitvoeren.add(uitvoer);
+		hash = null;
 	}
 	
 	public Invoer getInvoer(int index) {
@@ -64,18 +84,67 @@ public class Transactie {
 	 * @return De hashwaarde van deze transactie.
 	 */
 	public String getHash() {
+		
+		if (isHashActueel()) {
+			return hash;
+		}
 
+		int aantal = invoeren.size() + uitvoeren.size();
+		String[] teksten = new String[aantal];
+		int[] getallen = new int[aantal];
+		int i = 0;
+		
 		StringBuilder hashString = new StringBuilder();
 		for (Invoer invoer : invoeren) {
 			hashString.append(invoer.hashVorigeTransactie);
 			hashString.append(invoer.uitvoerIndex);
 			//laat de handtekening weg
+			teksten[i] = invoer.hashVorigeTransactie;
+			getallen[i] = invoer.uitvoerIndex;
+			i++;
 		}
 		for (Uitvoer uitvoer : uitvoeren) {
 			hashString.append(uitvoer.bedrag);
 			hashString.append(uitvoer.publiekeSleutel);
+			teksten[i] = uitvoer.publiekeSleutel;
+			getallen[i] = uitvoer.bedrag;
+			i++;
 		}
-		return Util.getSha256Hash(hashString.toString());
+		
+		hash = Util.getSha256Hash(hashString.toString());
+		gehashteTeksten = teksten;
+		gehashteGetallen = getallen;
+		return hash;
+	}
+	
+	/**
+	 * Controleer of de bewaarde hash nog hoort bij de huidige inhoud van deze transactie.
+	 * Strings worden op referentie vergeleken: een veld dat een nieuwe waarde heeft 
+	 * gekregen, zorgt er altijd voor dat de hash opnieuw berekend wordt.
+	 * @return True (de bewaarde hash kan gebruikt worden) of false (de hash moet opnieuw berekend worden).
+	 */
+	private boolean isHashActueel() {
+		if (hash == null || gehashteTeksten.length != invoeren.size() + uitvoeren.size()) {
+			return false;
+		}
+		
+		int i = 0;
+		for (Invoer invoer : invoeren) {
+			if (invoer.hashVorigeTransactie != gehashteTeksten[i] ||
+				invoer.uitvoerIndex != gehashteGetallen[i]) {
+				return false;
+			}
+			i++;
+		}
+		for (Uitvoer uitvoer : uitvoeren) {
+			if (uitvoer.publiekeSleutel != gehashteTeksten[i] ||
+				uitvoer.bedrag != gehashteGetallen[i]) {
+				return false;
+			}
+			i++;
+		}
+		
+		return true;
 	}
 	
 	/**
@@ -110,4 +179,9 @@ public class Transactie {
 		
 		return (this.getHash().equals(t.getHash()));
 	}
+	
+	@Override
+	public int hashCode() {
+		return getHash().hashCode();
+	}
 }
@@ -0,0 +1,221 @@
+package nl.apkbaadjou.grotiuscoin;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+
+/**
+ * De TransactiePool bevat de geldige transacties die nog niet in een blok zitten.
+ *
+ * De transacties zijn geïndexeerd op hash en op de uitvoeren die ze uitgeven, zodat het
+ * toevoegen, het zoeken naar conflicten en het verwijderen na een nieuw blok alleen afhangt
+ * van het aantal invoeren van een transactie, niet van het aantal transacties in de pool.
+ *
+ * Een transactie in de pool mag een uitvoer uitgeven van een andere transactie in de pool (een
+ * onbevestigde 'ouder'). Voor elke transactie wordt bijgehouden welke ouders en kinderen ze in
+ * de pool heeft. Als een ouder in een blok komt, blijven de kinderen in de pool; als een ouder
+ * ongeldig wordt, worden ook al zijn nakomelingen verwijderd.
+ *
+ * De TransactiePool is niet thread-safe; de BlockchainManager gebruikt de pool alleen in
+ * synchronized-methoden.
+ *
+ */
+public class TransactiePool {
+
+	/**
+	 * De transacties, met de hash als sleutel, in de volgorde waarin ze zijn toegevoegd.
+	 */
+	private LinkedHashMap<String, Transactie> transacties;
+
+	/**
+	 * Voor elke uitvoer die door een transactie in de pool wordt uitgegeven: die transactie.
+	 */
+	private HashMap<Uitvoerpunt, Transactie> uitgegevenDoor;
+
+	/**
+	 * Voor elke transactie met onbevestigde ouders: de hashes van die ouders.
+	 */
+	private HashMap<String, HashSet<String>> ouders;
+
+	/**
+	 * Voor elke transactie met kinderen in de pool: de hashes van die kinderen.
+	 */
+	private HashMap<String, HashSet<String>> kinderen;
+
+	public TransactiePool() {
+		transacties = new LinkedHashMap<String, Transactie>();
+		uitgegevenDoor = new HashMap<Uitvoerpunt, Transactie>();
+		ouders = new HashMap<String, HashSet<String>>();
+		kinderen = new HashMap<String, HashSet<String>>();
+	}
+
+	/**
+	 * Voeg een (gecontroleerde) transactie toe. De transactie mag geen uitvoer uitgeven die al
+	 * door een andere transactie in de pool wordt uitgegeven (zie getUitgegevenDoor()).
+	 * @param transactie	De transactie.
+	 */
+	public void voegToe(Transactie transactie) {
+		String hash = transactie.getHash();
+		transacties.put(hash, transactie);
+
+		for (int i=0; i<transactie.getAantalInvoeren(); i++) {
+			Uitvoerpunt uitvoerpunt = new Uitvoerpunt(transactie.getInvoer(i));
+			uitgegevenDoor.put(uitvoerpunt, transactie);
+
+			String ouderHash = uitvoerpunt.getTxHash();
+			if (transacties.containsKey(ouderHash) && !ouderHash.equals(hash)) {
+				voegLinkToe(ouders, hash, ouderHash);
+				voegLinkToe(kinderen, ouderHash, hash);
+			}
+		}
+	}
+
+	private static void voegLinkToe(HashMap<String, HashSet<String>> links, String van, String naar) {
+		HashSet<String> set = links.get(van);
+		if (set == null) {
+			set = new HashSet<String>();
+			links.put(van, set);
+		}
+		set.add(naar);
+	}
+
+	private static void verwijderLink(HashMap<String, HashSet<String>> links, String van, String naar) {
+		HashSet<String> set = links.get(van);
+		if (set != null) {
+			set.remove(naar);
+			if (set.isEmpty()) {
+				links.remove(van);
+			}
+		}
+	}
+
+	/**
+	 * Verwijder een transactie die in een blok is gekomen. De kinderen van de transactie blijven
+	 * in de pool; hun ouder is nu bevestigd.
+	 * @param hash	De hash van de transactie.
+	 * @return True (de transactie zat in de pool) of false.
+	 */
+	public boolean verwijderBevestigd(String hash) {
+		Transactie transactie = transacties.remove(hash);
+		if (transactie == null) {
+			return false;
+		}
+
+		for (int i=0; i<transactie.getAantalInvoeren(); i++) {
+			Uitvoerpunt uitvoerpunt = new Uitvoerpunt(transactie.getInvoer(i));
+			if (uitgegevenDoor.get(uitvoerpunt) == transactie) {
+				uitgegevenDoor.remove(uitvoerpunt);
+			}
+		}
+
+		HashSet<String> eigenOuders = ouders.remove(hash);
+		if (eigenOuders != null) {
+			for (String ouderHash : eigenOuders) {
+				verwijderLink(kinderen, ouderHash, hash);
+			}
+		}
+		HashSet<String> eigenKinderen = kinderen.remove(hash);
+		if (eigenKinderen != null) {
+			for (String kindHash : eigenKinderen) {
+				verwijderLink(ouders, kindHash, hash);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Verwijder een transactie die ongeldig is geworden, samen met al haar nakomelingen (die
+	 * geven uitvoeren uit die niet meer bestaan).
+	 * @param hash	De hash van de transactie.
+	 * @return De verwijderde transacties.
+	 */
+	public ArrayList<Transactie> verwijderMetNakomelingen(String hash) {
+		ArrayList<Transactie> verwijderd = new ArrayList<Transactie>();
+
+		//gebruik een lijst in plaats van recursie, zodat lange ketens geen StackOverflowError geven
+		ArrayList<String> teVerwijderen = new ArrayList<String>();
+		teVerwijderen.add(hash);
+		while (!teVerwijderen.isEmpty()) {
+			String volgende = teVerwijderen.remove(teVerwijderen.size() - 1);
+			HashSet<String> eigenKinderen = kinderen.get(volgende);
+			if (eigenKinderen != null) {
+				teVerwijderen.addAll(eigenKinderen);
+			}
+
+			Transactie transactie = transacties.get(volgende);
+			if (transactie != null && verwijderBevestigd(volgende)) {
+				verwijderd.add(transactie);
+			}
+		}
+		return verwijderd;
+	}
+
+	/**
+	 * @param hash	De hash van een transactie.
+	 * @return De transactie (of null als de transactie niet in de pool zit).
+	 */
+	public Transactie get(String hash) {
+		return transacties.get(hash);
+	}
+
+	public boolean bevat(String hash) {
+		return transacties.containsKey(hash);
+	}
+
+	/**
+	 * @param uitvoerpunt	Een uitvoer.
+	 * @return De transactie in de pool die de uitvoer uitgeeft (of null).
+	 */
+	public Transactie getUitgegevenDoor(Uitvoerpunt uitvoerpunt) {
+		return uitgegevenDoor.get(uitvoerpunt);
+	}
+
+	/**
+	 * Zoek een uitvoer van een transactie in de pool (een onbevestigde uitvoer).
+	 * @param uitvoerpunt	De uitvoer.
+	 * @return De uitvoer (of null als de transactie niet in de pool zit of de uitvoer niet bestaat).
+	 */
+	public Uitvoer getUitvoer(Uitvoerpunt uitvoerpunt) {
+		Transactie transactie = transacties.get(uitvoerpunt.getTxHash());
+		if (transactie == null || uitvoerpunt.getUitvoerIndex() < 0 ||
+			uitvoerpunt.getUitvoerIndex() >= transactie.getAantalUitvoeren()) {
+			return null;
+		}
+		return transactie.getUitvoer(uitvoerpunt.getUitvoerIndex());
+	}
+
+	/**
+	 * @param hash	De hash van een transactie in de pool.
+	 * @return De hashes van de onbevestigde ouders van de transactie (leeg als alle ouders
+	 * 		   bevestigd zijn).
+	 */
+	public Set<String> getOuders(String hash) {
+		HashSet<String> set = ouders.get(hash);
+		return (set != null) ? Collections.unmodifiableSet(set) : Collections.<String>emptySet();
+	}
+
+	/**
+	 * @param hash	De hash van een transactie in de pool.
+	 * @return De hashes van de kinderen van de transactie in de pool.
+	 */
+	public Set<String> getKinderen(String hash) {
+		HashSet<String> set = kinderen.get(hash);
+		return (set != null) ? Collections.unmodifiableSet(set) : Collections.<String>emptySet();
+	}
+
+	/**
+	 * @return Een kopie van de transacties, in de volgorde waarin ze zijn toegevoegd (een ouder
+	 * 		   staat dus altijd voor zijn kinderen).
+	 */
+	public ArrayList<Transactie> getTransacties() {
+		return new ArrayList<Transactie>(transacties.values());
+	}
+
+	public int getAantal() {
+		return transacties.size();
+	}
+
+}
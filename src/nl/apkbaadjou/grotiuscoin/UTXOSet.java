@@ -0,0 +1,194 @@
+package nl.apkbaadjou.grotiuscoin;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+
+
+/**
+ * De UTXOSet bevat alle transactie-uitvoeren in de hoofdketen die nog niet zijn uitgegeven 
+ * (Unspent Transaction Outputs). Hiermee kan zonder door de blockchain te lopen worden 
+ * bepaald of een invoer naar een bestaande, nog niet uitgegeven uitvoer verwijst.
+ * 
+ * De UTXOSet wordt bijgewerkt zodra een blok aan de hoofdketen wordt toegevoegd. Als een blok
+ * bij een reorganisatie uit de hoofdketen wordt gehaald, worden de wijzigingen van dat blok
+ * ongedaan gemaakt met de BlokUndo die bij het toevoegen is gemaakt.
+ *
+ */
+public class UTXOSet {
+	
+	/**
+	 * Alle niet-uitgegeven uitvoeren, met het bijbehorende Uitvoerpunt als sleutel.
+	 */
+	private HashMap<Uitvoerpunt, Uitvoer> uitvoeren;
+	
+	/**
+	 * De Uitvoerpunten van de niet-uitgegeven uitvoeren, gegroepeerd per publieke sleutel.
+	 * Wordt gebruikt om snel het saldo van een gebruiker te bepalen.
+	 */
+	private HashMap<String, HashSet<Uitvoerpunt>> uitvoerpuntenPerSleutel;
+	
+	public UTXOSet() {
+		uitvoeren = new HashMap<Uitvoerpunt, Uitvoer>();
+		uitvoerpuntenPerSleutel = new HashMap<String, HashSet<Uitvoerpunt>>();
+	}
+	
+	/**
+	 * Verwerk de transacties van een blok dat aan de hoofdketen is toegevoegd: de uitvoeren
+	 * waar de invoeren naar verwijzen worden verwijderd, en de nieuwe uitvoeren worden 
+	 * toegevoegd.
+	 * @param blok	Het blok dat aan de hoofdketen is toegevoegd.
+	 * @return Een BlokUndo waarmee de wijzigingen weer ongedaan gemaakt kunnen worden.
+	 */
+	public BlokUndo verbindBlok(Blok blok) {
+		BlokUndo undo = new BlokUndo();
+		
+		for (Transactie tx : blok.getTransacties()) {
+			
+			for (int i=0; i<tx.getAantalInvoeren(); i++) {
+				Uitvoerpunt uitvoerpunt = new Uitvoerpunt(tx.getInvoer(i));
+				Uitvoer uitvoer = verwijder(uitvoerpunt);
+				if (uitvoer != null) {
+					undo.voegUitgegevenUitvoerToe(uitvoerpunt, uitvoer);
+				}
+			}
+			
+			String txHash = tx.getHash();
+			for (int i=0; i<tx.getAantalUitvoeren(); i++) {
+				Uitvoerpunt uitvoerpunt = new Uitvoerpunt(txHash, i);
+				voegToe(uitvoerpunt, tx.getUitvoer(i));
+				undo.voegGemaakteUitvoerToe(uitvoerpunt);
+			}
+		}
+		
+		return undo;
+	}
+	
+	/**
+	 * Maak de wijzigingen van een blok dat uit de hoofdketen wordt gehaald ongedaan: de uitvoeren
+	 * die het blok heeft gemaakt worden verwijderd, en de uitvoeren die het blok heeft uitgegeven
+	 * worden teruggezet.
+	 * Blokken moeten in omgekeerde volgorde worden ontkoppeld (het laatste blok eerst).
+	 * @param undo	De BlokUndo die verbindBlok() voor het blok heeft teruggegeven.
+	 */
+	public void ontkoppelBlok(BlokUndo undo) {
+		for (Uitvoerpunt uitvoerpunt : undo.getGemaakteUitvoerpunten()) {
+			verwijder(uitvoerpunt);
+		}
+		
+		for (Uitvoerpunt uitvoerpunt : undo.getUitgegevenUitvoeren().keySet()) {
+			//een uitvoer die in hetzelfde blok gemaakt en uitgegeven is, bestond niet vóór het blok
+			if (!undo.getGemaakteUitvoerpunten().contains(uitvoerpunt)) {
+				voegToe(uitvoerpunt, undo.getUitgegevenUitvoeren().get(uitvoerpunt));
+			}
+		}
+	}
+	
+	/**
+	 * Zoek een niet-uitgegeven uitvoer op.
+	 * @param uitvoerpunt	Verwijzing naar de gezochte uitvoer.
+	 * @return De gezochte uitvoer (of null als de uitvoer niet bestaat of al is uitgegeven).
+	 */
+	public Uitvoer getUitvoer(Uitvoerpunt uitvoerpunt) {
+		return uitvoeren.get(uitvoerpunt);
+	}
+	
+	/**
+	 * Zoek alle niet-uitgegeven uitvoeren die geld sturen naar de gegeven publieke sleutel.
+	 * @param publiekeSleutel	De publieke sleutel van de ontvanger.
+	 * @return De gevonden uitvoeren, met het bijbehorende Uitvoerpunt als sleutel. Dit is 
+	 * 		   een kopie, die door de aanroeper mag worden aangepast.
+	 */
+	public HashMap<Uitvoerpunt, Uitvoer> zoekUitvoeren(String publiekeSleutel) {
+		HashMap<Uitvoerpunt, Uitvoer> gevonden = new HashMap<Uitvoerpunt, Uitvoer>();
+		HashSet<Uitvoerpunt> punten = uitvoerpuntenPerSleutel.get(publiekeSleutel);
+		if (punten != null) {
+			for (Uitvoerpunt punt : punten) {
+				gevonden.put(punt, uitvoeren.get(punt));
+			}
+		}
+		return gevonden;
+	}
+	
+	/**
+	 * Verwijder alle uitvoeren.
+	 */
+	public void leeg() {
+		uitvoeren.clear();
+		uitvoerpuntenPerSleutel.clear();
+	}
+	
+	/**
+	 * @return Het aantal niet-uitgegeven uitvoeren.
+	 */
+	public int getAantal() {
+		return uitvoeren.size();
+	}
+	
+	/**
+	 * Schrijf alle niet-uitgegeven uitvoeren naar een stream.
+	 * @param out	De stream waarnaar geschreven wordt.
+	 * @throws IOException
+	 */
+	public void schrijf(DataOutputStream out) throws IOException {
+		out.writeInt(uitvoeren.size());
+		for (Uitvoerpunt uitvoerpunt : uitvoeren.keySet()) {
+			Uitvoer uitvoer = uitvoeren.get(uitvoerpunt);
+			out.writeUTF(uitvoerpunt.getTxHash());
+			out.writeInt(uitvoerpunt.getUitvoerIndex());
+			out.writeInt(uitvoer.bedrag);
+			out.writeUTF(uitvoer.publiekeSleutel);
+		}
+	}
+	
+	/**
+	 * Vervang de inhoud van de UTXOSet door de uitvoeren die met schrijf() zijn geschreven.
+	 * @param in	De stream waaruit gelezen wordt.
+	 * @throws IOException
+	 */
+	public void lees(DataInputStream in) throws IOException {
+		leeg();
+		int aantal = in.readInt();
+		for (int i=0; i<aantal; i++) {
+			Uitvoerpunt uitvoerpunt = new Uitvoerpunt(in.readUTF(), in.readInt());
+			voegToe(uitvoerpunt, new Uitvoer(in.readInt(), in.readUTF()));
+		}
+	}
+	
+	/**
+	 * Voeg een niet-uitgegeven uitvoer toe.
+	 * @param uitvoerpunt	Verwijzing naar de uitvoer.
+	 * @param uitvoer		De uitvoer zelf.
+	 */
+	private void voegToe(Uitvoerpunt uitvoerpunt, Uitvoer uitvoer) {
+		uitvoeren.put(uitvoerpunt, uitvoer);
+		
+		HashSet<Uitvoerpunt> punten = uitvoerpuntenPerSleutel.get(uitvoer.publiekeSleutel);
+		if (punten == null) {
+			punten = new HashSet<Uitvoerpunt>();
+			uitvoerpuntenPerSleutel.put(uitvoer.publiekeSleutel, punten);
+		}
+		punten.add(uitvoerpunt);
+	}
+	
+	/**
+	 * Verwijder een uitvoer (omdat deze is uitgegeven).
+	 * @param uitvoerpunt	Verwijzing naar de uitvoer.
+	 * @return De verwijderde uitvoer (of null als de uitvoer niet in de UTXOSet zat).
+	 */
+	private Uitvoer verwijder(Uitvoerpunt uitvoerpunt) {
+		Uitvoer uitvoer = uitvoeren.remove(uitvoerpunt);
+		
+		if (uitvoer != null) {
+			HashSet<Uitvoerpunt> punten = uitvoerpuntenPerSleutel.get(uitvoer.publiekeSleutel);
+			punten.remove(uitvoerpunt);
+			if (punten.isEmpty()) {
+				uitvoerpuntenPerSleutel.remove(uitvoer.publiekeSleutel);
+			}
+		}
+		
+		return uitvoer;
+	}
+
+}
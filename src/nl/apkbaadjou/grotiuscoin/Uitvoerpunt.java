@@ -0,0 +1,63 @@
+package nl.apkbaadjou.grotiuscoin;
+
+
+/**
+ * Een Uitvoerpunt verwijst naar één uitvoer van een transactie. Het bestaat uit de hash van
+ * de transactie en de index van de uitvoer binnen die transactie. Een Invoer verwijst dus
+ * naar precies één Uitvoerpunt.
+ * 
+ * Uitvoerpunten kunnen niet worden aangepast, zodat ze als sleutel in een HashMap of
+ * HashSet gebruikt kunnen worden.
+ *
+ */
+public class Uitvoerpunt {
+	
+	/**
+	 * De hash van de transactie die de uitvoer bevat.
+	 */
+	private final String txHash;
+	
+	/**
+	 * De index van de uitvoer in de transactie.
+	 */
+	private final int uitvoerIndex;
+	
+	public Uitvoerpunt(String txHash, int uitvoerIndex) {
+		this.txHash = txHash;
+		this.uitvoerIndex = uitvoerIndex;
+	}
+	
+	/**
+	 * @param invoer	De invoer waarvan het Uitvoerpunt gemaakt wordt (het Uitvoerpunt 
+	 * 					verwijst naar de uitvoer die deze invoer uitgeeft).
+	 */
+	public Uitvoerpunt(Invoer invoer) {
+		this(invoer.hashVorigeTransactie, invoer.uitvoerIndex);
+	}
+	
+	public String getTxHash() {
+		return txHash;
+	}
+	
+	public int getUitvoerIndex() {
+		return uitvoerIndex;
+	}
+	
+	@Override
+	public boolean equals(Object o) {
+		
+		if (!(o instanceof Uitvoerpunt)) {
+			return false;
+		}
+		
+		Uitvoerpunt u = (Uitvoerpunt) o;
+		
+		return (uitvoerIndex == u.uitvoerIndex && txHash.equals(u.txHash));
+	}
+	
+	@Override
+	public int hashCode() {
+		return 31 * txHash.hashCode() + uitvoerIndex;
+	}
+
+}
@@ -1,7 +1,4 @@
 package nl.apkbaadjou.grotiuscoin;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-
 import javax.xml.bind.DatatypeConverter;
 
 /**
@@ -10,15 +7,7 @@ import javax.xml.bind.DatatypeConverter;
 public class Util {
 	
 	public static String getSha256Hash(String value) {
-		try {
-			MessageDigest sha256digest = MessageDigest.getInstance("SHA-256");
-			byte[] hash = sha256digest.digest(value.getBytes());
-
-			return DatatypeConverter.printHexBinary(hash);
-		} catch (NoSuchAlgorithmException e) {
-			e.printStackTrace();
-			return "";
-		}
+		return DatatypeConverter.printHexBinary(Crypto.sha256(value.getBytes()));
 	}
 
 }
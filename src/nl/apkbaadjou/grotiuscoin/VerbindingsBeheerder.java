@@ -0,0 +1,401 @@
+package nl.apkbaadjou.grotiuscoin;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.json.JSONObject;
+
+
+/**
+ * De VerbindingsBeheerder zorgt ervoor dat deze node verbonden blijft met het netwerk, zonder
+ * dat de gebruiker met peers hoeft te verbinden:
+ * 		-er wordt steeds met DOEL_UITGAAND peers uit het AdresBoek verbonden
+ * 		-peers wisselen adressen uit (getadressen- en adressenberichten)
+ * 		-na een mislukte verbinding wordt er steeds langer gewacht voordat er opnieuw met
+ * 		 hetzelfde adres verbonden wordt (zie PeerAdres)
+ * 		-peers worden beoordeeld op latentie (gemeten met pingberichten) en nut (het aantal
+ * 		 nieuwe transacties en blokken dat ze sturen); trage en nutteloze peers maken plaats
+ * 		 voor andere peers
+ *
+ * Main geeft de gebeurtenissen van Network en de adresberichten door aan de VerbindingsBeheerder.
+ * De VerbindingsBeheerder wordt door meerdere threads gebruikt (de netwerkthread, de main
+ * thread en de verbindingsTimer), dus alle methoden die de toestand veranderen zijn synchronized.
+ *
+ */
+public class VerbindingsBeheerder {
+
+	/**
+	 * Het aantal uitgaande verbindingen dat de VerbindingsBeheerder probeert te hebben.
+	 * Kan worden ingesteld met de systeemeigenschap "grotiuscoin.uitgaand".
+	 */
+	public static final int DOEL_UITGAAND = Integer.getInteger("grotiuscoin.uitgaand", 8);
+
+	/**
+	 * Het maximale aantal inkomende verbindingen. Als er meer zijn, wordt de verbinding met
+	 * de slechtste inkomende peer verbroken.
+	 * Kan worden ingesteld met de systeemeigenschap "grotiuscoin.maxinkomend".
+	 */
+	public static final int MAX_INKOMEND = Integer.getInteger("grotiuscoin.maxinkomend", 64);
+
+	/**
+	 * Het aantal milliseconden tussen twee controles van de verbindingen.
+	 */
+	public static final int CONTROLE_INTERVAL = 5000;
+
+	/**
+	 * Het aantal milliseconden tussen twee pingberichten naar dezelfde peer.
+	 */
+	public static final long PING_INTERVAL = 60 * 1000;
+
+	/**
+	 * Een peer die niet binnen dit aantal milliseconden op een pingbericht antwoordt, wordt verbroken.
+	 */
+	public static final long PING_TIMEOUT = 2 * 60 * 1000;
+
+	/**
+	 * Een verbinding die minstens zo lang bestaat, is stabiel: als de verbinding daarna
+	 * verbroken wordt, telt dat niet als mislukte poging, en de peer kan niet meer als
+	 * slechtste peer verbroken worden voordat hij beoordeeld is.
+	 */
+	public static final long STABIEL = 60 * 1000;
+
+	/**
+	 * Het aantal milliseconden tussen twee keer dat de slechtste uitgaande peer vervangen wordt.
+	 */
+	public static final long ROTATIE_INTERVAL = 10 * 60 * 1000;
+
+	/**
+	 * Het aantal milliseconden tussen twee keer dat het AdresBoek bewaard wordt.
+	 */
+	public static final long BEWAAR_INTERVAL = 10 * 60 * 1000;
+
+	/**
+	 * Het maximale aantal adressen in een adressenbericht. Een bericht met meer adressen wordt genegeerd.
+	 */
+	public static final int MAX_ADRESSEN_PER_BERICHT = 250;
+
+	/**
+	 * Zolang het AdresBoek minder adressen bevat, wordt elke uitgaande peer om adressen gevraagd.
+	 */
+	private static final int GENOEG_ADRESSEN = 1000;
+
+	private Network network;
+	private AdresBoek adresBoek;
+
+	/**
+	 * Sleutels van de adressen waarmee op dit moment verbonden wordt.
+	 */
+	private HashSet<String> pogingen;
+
+	/**
+	 * ID's van de peers die al adressen hebben gekregen. Elke peer krijgt maar één keer per
+	 * verbinding adressen, zodat een peer het AdresBoek niet kan uitlezen.
+	 */
+	private HashSet<Long> adressenGestuurd;
+
+	private long laatstePing;
+	private long laatsteRotatie;
+	private long laatstBewaard;
+
+	private Timer timer;
+
+	public VerbindingsBeheerder(Network network) {
+		this.network = network;
+		adresBoek = new AdresBoek();
+		pogingen = new HashSet<String>();
+		adressenGestuurd = new HashSet<Long>();
+		timer = new Timer("verbindingsTimer", true);
+	}
+
+	/**
+	 * Laad het AdresBoek en begin met het controleren van de verbindingen. Adressen uit de
+	 * systeemeigenschap "grotiuscoin.seeds" ("ip:poort", gescheiden door komma's) worden aan
+	 * het AdresBoek toegevoegd, zodat een nieuwe node een eerste peer kan vinden.
+	 */
+	public void start() {
+		adresBoek.laad();
+		for (String seed : System.getProperty("grotiuscoin.seeds", "").split(",")) {
+			PeerAdres adres = AdresBoek.leesAdres(seed.trim());
+			if (adres != null) {
+				adresBoek.voegToe(adres.getIP(), adres.getPoort());
+			}
+		}
+
+		long nu = System.currentTimeMillis();
+		laatsteRotatie = nu;
+		laatstBewaard = nu;
+		timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				controleer();
+			}
+		}, 0, CONTROLE_INTERVAL);
+	}
+
+	/**
+	 * Stop met het controleren van de verbindingen en bewaar het AdresBoek.
+	 */
+	public synchronized void stop() {
+		timer.cancel();
+		long nu = System.currentTimeMillis();
+		for (Peer peer : network.getPeers()) {
+			String sleutel = getSleutel(peer);
+			if (sleutel != null) {
+				adresBoek.gezien(sleutel, nu, peer.getLatentie());
+			}
+		}
+		adresBoek.bewaar();
+	}
+
+	/**
+	 * Verbind met een node die de gebruiker heeft opgegeven. Het adres wordt aan het AdresBoek
+	 * toegevoegd. De hostnaam wordt op de verbindingsTimer opgezocht, zodat de aanroepende
+	 * thread (de Event Dispatch Thread) niet hoeft te wachten.
+	 * @param ip	IP-adres of hostnaam van de node.
+	 * @param poort	De poort waarop de node luistert.
+	 */
+	public void verbindHandmatig(final String ip, final int poort) {
+		timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				String adres;
+				try {
+					adres = InetAddress.getByName(ip).getHostAddress();
+				} catch (UnknownHostException e) {
+					System.out.println("Onbekend adres: " + ip);
+					return;
+				}
+				synchronized (VerbindingsBeheerder.this) {
+					adresBoek.voegToe(adres, poort);
+					verbind(adres, poort);
+				}
+			}
+		}, 0);
+	}
+
+	/**
+	 * Controleer de verbindingen: stuur pingberichten, verbreek peers die niet antwoorden of
+	 * het minst nuttig zijn, en verbind met nieuwe peers als er te weinig uitgaande verbindingen
+	 * zijn. Wordt regelmatig aangeroepen door de verbindingsTimer.
+	 */
+	synchronized void controleer() {
+		long nu = System.currentTimeMillis();
+		ArrayList<Peer> peers = network.getPeers();
+		boolean ping = nu - laatstePing >= PING_INTERVAL;
+		if (ping) {
+			laatstePing = nu;
+		}
+
+		ArrayList<Peer> uitgaand = new ArrayList<Peer>();
+		ArrayList<Peer> inkomend = new ArrayList<Peer>();
+		HashSet<String> verbonden = new HashSet<String>(pogingen);
+		for (Peer peer : peers) {
+			if (peer.isPingVerlopen(PING_TIMEOUT)) {
+				System.out.println("Peer " + peer.getIP() + " antwoordt niet op ping");
+				peer.verbreek();
+				continue;
+			}
+			if (ping) {
+				peer.stuurPing();
+			}
+
+			String sleutel = getSleutel(peer);
+			if (sleutel != null) {
+				verbonden.add(sleutel);
+				adresBoek.gezien(sleutel, nu, peer.getLatentie());
+			}
+			if (peer.isUitgaand()) {
+				uitgaand.add(peer);
+			} else {
+				inkomend.add(peer);
+			}
+		}
+
+		//maak plaats als er te veel inkomende verbindingen zijn
+		if (inkomend.size() > MAX_INKOMEND) {
+			Peer slechtste = kiesSlechtste(inkomend, nu, STABIEL);
+			if (slechtste != null) {
+				System.out.println("Te veel inkomende verbindingen; verbreek " + slechtste.getIP());
+				slechtste.verbreek();
+			}
+		}
+
+		//vervang af en toe de slechtste uitgaande peer, zodat de node naar betere peers zoekt
+		if (uitgaand.size() >= DOEL_UITGAAND && nu - laatsteRotatie >= ROTATIE_INTERVAL) {
+			laatsteRotatie = nu;
+			Peer slechtste = kiesSlechtste(uitgaand, nu, ROTATIE_INTERVAL);
+			if (slechtste != null && bepaalScore(slechtste) < 0) {
+				System.out.println("Vervang trage peer " + slechtste.getIP());
+				slechtste.verbreek();
+			}
+		}
+
+		//verbind met nieuwe peers als er te weinig uitgaande verbindingen zijn
+		int tekort = DOEL_UITGAAND - uitgaand.size() - pogingen.size();
+		if (tekort > 0) {
+			for (PeerAdres adres : adresBoek.kiesKandidaten(tekort, verbonden, nu)) {
+				verbind(adres.getIP(), adres.getPoort());
+			}
+		}
+
+		if (nu - laatstBewaard >= BEWAAR_INTERVAL) {
+			laatstBewaard = nu;
+			adresBoek.bewaar();
+		}
+	}
+
+	/**
+	 * Kies de peer met de laagste score (zie bepaalScore()).
+	 * @param peers			De peers waaruit gekozen wordt.
+	 * @param nu			Het huidige tijdstip.
+	 * @param minimaleDuur	Alleen peers die al minstens zo lang verbonden zijn, kunnen gekozen worden.
+	 * @return De slechtste peer (of null als geen enkele peer lang genoeg verbonden is).
+	 */
+	private Peer kiesSlechtste(ArrayList<Peer> peers, long nu, long minimaleDuur) {
+		Peer slechtste = null;
+		for (Peer peer : peers) {
+			if (nu - peer.getVerbondenSinds() < minimaleDuur) {
+				continue;
+			}
+			if (slechtste == null || bepaalScore(peer) < bepaalScore(slechtste)) {
+				slechtste = peer;
+			}
+		}
+		return slechtste;
+	}
+
+	/**
+	 * Bepaal hoe goed een peer is. Elke nieuwe transactie of elk nieuw blok dat de peer als
+	 * eerste stuurde is een punt waard; elke 100 ms latentie kost een punt. Een peer waarvan de
+	 * latentie nog niet gemeten is, krijgt een latentie van 1 seconde.
+	 * @param peer	De peer.
+	 * @return De score (hoger is beter).
+	 */
+	public static double bepaalScore(Peer peer) {
+		long latentie = peer.getLatentie();
+		if (latentie < 0) {
+			latentie = 1000;
+		}
+		return peer.getNut() - latentie / 100.0;
+	}
+
+	/**
+	 * @param peer	Een peer.
+	 * @return De sleutel van het adres waarop de peer luistert (of null als de peer geen
+	 * 		   verbindingen accepteert of de poort nog niet bekend is).
+	 */
+	private static String getSleutel(Peer peer) {
+		if (peer.getLuisterPoort() == 0) {
+			return null;
+		}
+		return PeerAdres.maakSleutel(peer.getIP(), peer.getLuisterPoort());
+	}
+
+	private void verbind(String ip, int poort) {
+		String sleutel = PeerAdres.maakSleutel(ip, poort);
+		if (pogingen.add(sleutel)) {
+			network.verbindMetPeer(poort, ip);
+		}
+	}
+
+	/**
+	 * Wordt aangeroepen als er een nieuwe peer verbonden is.
+	 * @param peer	De nieuwe peer.
+	 */
+	public synchronized void nieuwePeer(Peer peer) {
+		if (peer.isUitgaand()) {
+			pogingen.remove(getSleutel(peer));
+		}
+	}
+
+	/**
+	 * Wordt aangeroepen als een peer zijn versiebericht heeft gestuurd. Het adres van de peer
+	 * wordt in het AdresBoek gezet, en uitgaande peers worden om adressen gevraagd.
+	 * @param peer	De peer.
+	 */
+	public synchronized void versieOntvangen(Peer peer) {
+		String sleutel = getSleutel(peer);
+		if (sleutel == null) {
+			return;
+		}
+		adresBoek.voegToe(peer.getIP(), peer.getLuisterPoort());
+		adresBoek.gezien(sleutel, System.currentTimeMillis(), peer.getLatentie());
+
+		if (peer.isUitgaand() && adresBoek.getAantal() < GENOEG_ADRESSEN) {
+			peer.stuurBericht(BerichtUtil.maakGetAdressenBericht());
+		}
+	}
+
+	/**
+	 * Wordt aangeroepen als de verbinding met een peer verbroken is. Als de verbinding kort
+	 * bestond, wordt er langer gewacht voordat er opnieuw met de peer verbonden wordt.
+	 * @param peer	De peer.
+	 */
+	public synchronized void verbindingVerbroken(Peer peer) {
+		adressenGestuurd.remove(peer.getId());
+
+		String sleutel = getSleutel(peer);
+		if (sleutel == null) {
+			return;
+		}
+		long nu = System.currentTimeMillis();
+		adresBoek.gezien(sleutel, nu, peer.getLatentie());
+		if (peer.isUitgaand()) {
+			adresBoek.verbroken(sleutel, nu, nu - peer.getVerbondenSinds() >= STABIEL);
+		}
+	}
+
+	/**
+	 * Wordt aangeroepen als een uitgaande verbinding niet gemaakt kon worden.
+	 */
+	public synchronized void verbindingMislukt(String ip, int poort) {
+		String sleutel = PeerAdres.maakSleutel(ip, poort);
+		pogingen.remove(sleutel);
+		adresBoek.mislukt(sleutel, System.currentTimeMillis());
+	}
+
+	/**
+	 * Wordt aangeroepen als een uitgaande verbinding een verbinding met deze node zelf was.
+	 * Het adres wordt vergeten.
+	 */
+	public synchronized void verbindingMetZelf(String ip, int poort) {
+		adresBoek.verwijder(PeerAdres.maakSleutel(ip, poort));
+	}
+
+	/**
+	 * Verwerk een getadressenbericht: stuur de peer (één keer per verbinding) adressen uit het AdresBoek.
+	 * @param afzender	De peer die om adressen vraagt.
+	 */
+	public synchronized void verwerkGetAdressen(Peer afzender) {
+		if (adressenGestuurd.add(afzender.getId())) {
+			afzender.stuurBericht(BerichtUtil.maakAdressenBericht(adresBoek.kiesOmTeDelen(MAX_ADRESSEN_PER_BERICHT)));
+		}
+	}
+
+	/**
+	 * Verwerk een adressenbericht: voeg de (geldige) adressen toe aan het AdresBoek.
+	 * @param bericht	Het adressenbericht.
+	 * @param afzender	De peer die de adressen gestuurd heeft.
+	 */
+	public synchronized void verwerkAdressen(JSONObject bericht, Peer afzender) {
+		ArrayList<String> adressen = BerichtUtil.leesAdressen(bericht);
+		if (adressen.size() > MAX_ADRESSEN_PER_BERICHT) {
+			System.out.println("Te veel adressen ontvangen van " + afzender.getIP());
+			return;
+		}
+
+		int nieuw = 0;
+		for (String tekst : adressen) {
+			PeerAdres adres = AdresBoek.leesAdres(tekst);
+			if (adres != null && adresBoek.get(adres.getSleutel()) == null &&
+				adresBoek.voegToe(adres.getIP(), adres.getPoort()) != null) {
+				nieuw++;
+			}
+		}
+		System.out.println(nieuw + " nieuwe adressen ontvangen van " + afzender.getIP());
+	}
+
+}
@@ -0,0 +1,493 @@
+package nl.apkbaadjou.grotiuscoin;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONObject;
+
+
+/**
+ * De Verspreider stuurt nieuwe transacties en blokken door naar de peers.
+ *
+ * Transacties worden niet direct in hun geheel verstuurd, maar eerst aangekondigd met
+ * alleen hun hash (inv). Een peer die de transactie of het blok nog niet heeft, vraagt deze op
+ * (getdata), en pas dan wordt de inhoud verstuurd. Zo ontvangt een node elke transactie en elk blok
+ * in principe maar één keer, ook als hij met veel peers verbonden is.
+ *
+ * Nieuwe blokken worden direct als CompactBlok verstuurd: de transacties staan er alleen met een
+ * korte ID in, en de ontvanger bouwt het blok op met de transacties uit zijn eigen transactiePool.
+ * Alleen de transacties die de ontvanger niet heeft worden nog opgevraagd (getbloktx). Lukt het
+ * opbouwen niet, dan wordt het volledige blok opgevraagd (getdata), bij voorkeur bij een andere
+ * peer die het blok heeft aangekondigd.
+ * De hash in een CompactBlok is pas te controleren als het blok is opgebouwd. Onvolledige
+ * CompactBlokken worden daarom per peer bewaard: een peer die een verkeerde hash stuurt, kan het
+ * CompactBlok van een andere peer niet vervangen of laten negeren.
+ *
+ * Om te voorkomen dat hashes heen en weer worden aangekondigd, onthoudt elke Peer welke hashes
+ * hij al kent (zie Peer.kentHash()). Daarnaast onthoudt de Verspreider:
+ * 		-welke hashes al zijn opgevraagd, zodat dezelfde transactie niet tegelijk bij meerdere
+ * 		 peers wordt opgevraagd (tenzij er na AANVRAAG_TIMEOUT nog geen antwoord is);
+ * 		-welke transacties ongeldig waren, zodat deze niet steeds opnieuw worden opgevraagd en
+ * 		 gecontroleerd.
+ *
+ * De methoden van deze klasse worden door meerdere threads aangeroepen en zijn daarom synchronized.
+ *
+ */
+public class Verspreider {
+
+	/**
+	 * Het maximale aantal hashes in een inv- of getdatabericht. Overige hashes worden genegeerd.
+	 */
+	public static final int MAX_HASHES_PER_BERICHT = 1000;
+
+	/**
+	 * Het aantal milliseconden waarna een opgevraagde transactie of blok bij een andere peer
+	 * opgevraagd mag worden.
+	 */
+	public static final long AANVRAAG_TIMEOUT = 10 * 1000;
+
+	/**
+	 * Het maximale aantal CompactBlokken dat bewaard wordt terwijl de ontbrekende transacties
+	 * worden opgevraagd.
+	 */
+	public static final int MAX_ONVOLLEDIGE_BLOKKEN = 16;
+
+	/**
+	 * Het maximale aantal onvolledige CompactBlokken per peer. Als een peer meer CompactBlokken
+	 * stuurt, wordt eerst zijn eigen oudste CompactBlok vergeten.
+	 */
+	public static final int MAX_ONVOLLEDIGE_BLOKKEN_PER_PEER = 2;
+
+	/**
+	 * Het maximale aantal blokken waarvan onthouden wordt welke peers ze hebben aangekondigd,
+	 * en het maximale aantal peers per blok.
+	 */
+	private static final int MAX_AANGEKONDIGDE_BLOKKEN = 64;
+	private static final int MAX_AANKONDIGERS = 8;
+
+	private Network network;
+	private BlockchainManager blockchainManager;
+
+	/**
+	 * Opgevraagde hashes die nog niet ontvangen zijn, met het tijdstip van de aanvraag. De
+	 * hashes staan op volgorde van aanvraag, zodat verlopen aanvragen vooraan staan.
+	 */
+	private LinkedHashMap<String, Long> aangevraagd;
+
+	/**
+	 * Hashes van transacties die ongeldig waren.
+	 */
+	private RollendBloomFilter afgewezen;
+
+	/**
+	 * CompactBlokken waarvan nog transacties ontbreken, met de ID van de afzender en de hash van
+	 * het blok als sleutel (zie maakSleutel()). Bevat maximaal MAX_ONVOLLEDIGE_BLOKKEN blokken; 
+	 * het oudste blok wordt als eerste vergeten.
+	 */
+	private LinkedHashMap<String, CompactBlok> onvolledigeBlokken;
+
+	/**
+	 * Voor recent aangekondigde blokken: de peers die het blok hebben aangekondigd (met een inv-
+	 * of compactblokbericht). Bij deze peers kan het volledige blok worden opgevraagd.
+	 */
+	private LinkedHashMap<String, ArrayList<Peer>> aankondigers;
+
+	public Verspreider(Network network, BlockchainManager blockchainManager) {
+		this.network = network;
+		this.blockchainManager = blockchainManager;
+		aangevraagd = new LinkedHashMap<String, Long>();
+		afgewezen = new RollendBloomFilter(Peer.BEKENDE_HASHES_PER_GENERATIE, 64 * 1024, 9);
+		onvolledigeBlokken = new LinkedHashMap<String, CompactBlok>() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CompactBlok> oudste) {
+				return size() > MAX_ONVOLLEDIGE_BLOKKEN;
+			}
+		};
+		aankondigers = new LinkedHashMap<String, ArrayList<Peer>>() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, ArrayList<Peer>> oudste) {
+				return size() > MAX_AANGEKONDIGDE_BLOKKEN;
+			}
+		};
+	}
+
+	/**
+	 * Kondig een (geldige) transactie aan bij alle peers die de transactie nog niet hebben.
+	 * @param hash		Hash van de transactie.
+	 * @param afzender	De peer van wie de transactie ontvangen is (of null).
+	 */
+	public synchronized void kondigTransactieAan(String hash, Peer afzender) {
+		ArrayList<Peer> ontvangers = getOntvangers(hash, afzender);
+		if (!ontvangers.isEmpty()) {
+			markeerBekend(network.stuurNaarPeers(BerichtUtil.maakInvBericht(Collections.singletonList(hash), 
+																			Collections.<String>emptyList()), ontvangers), hash);
+		}
+	}
+
+	/**
+	 * Kondig een groep (geldige) transacties aan. Elke peer krijgt één inv-bericht met de 
+	 * transacties die hij nog niet heeft (en niet zelf gestuurd heeft), in plaats van een 
+	 * bericht per transactie. De hashes worden pas als bekend gemarkeerd als het bericht in de
+	 * queue van de peer is gezet; een overgeslagen aankondiging wordt later dus opnieuw gedaan.
+	 * @param hashes		Hashes van de transacties.
+	 * @param afzenders		Per transactie de peer van wie de transactie ontvangen is (of null).
+	 */
+	public synchronized void kondigTransactiesAan(List<String> hashes, List<Peer> afzenders) {
+		for (Peer peer : network.getPeers()) {
+			ArrayList<String> onbekend = new ArrayList<String>();
+			for (int i=0; i<hashes.size(); i++) {
+				String hash = hashes.get(i);
+				if (afzenders.get(i) != peer && !peer.kentHash(hash)) {
+					onbekend.add(hash);
+				}
+			}
+			
+			for (int i=0; i<onbekend.size(); i+=MAX_HASHES_PER_BERICHT) {
+				List<String> deel = onbekend.subList(i, Math.min(i + MAX_HASHES_PER_BERICHT, onbekend.size()));
+				if (peer.stuurBericht(BerichtUtil.maakInvBericht(deel, Collections.<String>emptyList()))) {
+					for (String hash : deel) {
+						peer.markeerBekend(hash);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stuur een (geldig) blok als CompactBlok naar alle peers die het blok nog niet hebben.
+	 * Een CompactBlok is klein genoeg om direct te sturen in plaats van eerst aan te kondigen,
+	 * zodat een nieuw blok zo snel mogelijk door het netwerk gaat.
+	 * @param blok		Het blok.
+	 * @param afzender	De peer van wie het blok ontvangen is (of null).
+	 */
+	public synchronized void kondigBlokAan(Blok blok, Peer afzender) {
+		ArrayList<Peer> ontvangers = getOntvangers(blok.getHash(), afzender);
+		if (!ontvangers.isEmpty()) {
+			//het CompactBlok wordt maar één keer gemaakt en omgezet naar een frame
+			markeerBekend(network.stuurNaarPeers(BerichtUtil.maakCompactBlokBericht(new CompactBlok(blok)), ontvangers),
+						  blok.getHash());
+		}
+	}
+	
+	/**
+	 * Verwerk een compactblokbericht: bouw het blok op met de transacties uit de transactiePool
+	 * en vraag de ontbrekende transacties op bij de afzender. Een CompactBlok met dezelfde hash
+	 * van een andere peer wordt apart opgebouwd.
+	 * @param bericht	Het compactblokbericht.
+	 * @param afzender	De peer die het bericht gestuurd heeft.
+	 * @return Het opgebouwde blok (of null als er nog transacties ontbreken of het blok al bekend
+	 * 		   of ongeldig is).
+	 */
+	public synchronized Blok verwerkCompactBlok(JSONObject bericht, Peer afzender) {
+		CompactBlok compactBlok;
+		try {
+			compactBlok = BerichtUtil.leesCompactBlok(bericht);
+		} catch (IllegalArgumentException e) {
+			System.out.println("ongeldig compact blok ontvangen: " + e.getMessage());
+			return null;
+		}
+		
+		String hash = compactBlok.getHash();
+		System.out.println("compact blok ontvangen: " + hash);
+		ontvangen(hash, afzender);
+		voegAankondigerToe(hash, afzender);
+		String sleutel = maakSleutel(afzender, hash);
+		if (blockchainManager.bevatBlok(hash) || onvolledigeBlokken.containsKey(sleutel)) {
+			return null;
+		}
+		
+		compactBlok.vulAan(blockchainManager.getTransactiePoolKopie());
+		ArrayList<Integer> ontbrekend = compactBlok.getOntbrekendeIndexen();
+		if (ontbrekend.isEmpty()) {
+			return maakBlok(compactBlok, afzender);
+		}
+		
+		System.out.println(ontbrekend.size() + " transacties ontbreken");
+		beperkOnvolledigeBlokken(afzender);
+		onvolledigeBlokken.put(sleutel, compactBlok);
+		afzender.stuurBericht(BerichtUtil.maakGetBlokTxBericht(hash, ontbrekend));
+		return null;
+	}
+	
+	/**
+	 * Verwerk een getbloktxbericht: stuur de gevraagde transacties van een blok.
+	 * @param bericht	Het getbloktxbericht.
+	 * @param afzender	De peer die het bericht gestuurd heeft.
+	 */
+	public void verwerkGetBlokTx(JSONObject bericht, Peer afzender) {
+		String hash = bericht.getString("blok");
+		Blok blok = blockchainManager.getBlok(hash);
+		if (blok == null) {
+			return;
+		}
+		
+		ArrayList<Integer> indexen = new ArrayList<Integer>();
+		ArrayList<Transactie> transacties = new ArrayList<Transactie>();
+		for (int index : BerichtUtil.leesIndexen(bericht)) {
+			if (index >= 0 && index < blok.getTransacties().size()) {
+				indexen.add(index);
+				transacties.add(blok.getTransacties().get(index));
+			}
+		}
+		afzender.stuurBericht(BerichtUtil.maakBlokTxBericht(hash, indexen, transacties));
+	}
+	
+	/**
+	 * Verwerk een bloktxbericht: vul het CompactBlok aan met de ontvangen transacties.
+	 * @param bericht	Het bloktxbericht.
+	 * @param afzender	De peer die het bericht gestuurd heeft.
+	 * @return Het opgebouwde blok (of null als het blok niet opgebouwd kon worden).
+	 */
+	public synchronized Blok verwerkBlokTx(JSONObject bericht, Peer afzender) {
+		String hash = bericht.getString("blok");
+		CompactBlok compactBlok = onvolledigeBlokken.remove(maakSleutel(afzender, hash));
+		if (compactBlok == null) {
+			return null;
+		}
+		
+		boolean aangevuld;
+		try {
+			aangevuld = compactBlok.vulAan(BerichtUtil.leesIndexen(bericht), BerichtUtil.leesBlokTransacties(bericht));
+		} catch (IllegalArgumentException e) {
+			aangevuld = false;
+		}
+		
+		if (!aangevuld || !compactBlok.getOntbrekendeIndexen().isEmpty()) {
+			vraagVolledigBlokAan(hash, afzender);
+			return null;
+		}
+		return maakBlok(compactBlok, afzender);
+	}
+
+	/**
+	 * Verwerk een invbericht: vraag de aangekondigde transacties en blokken op die deze node nog
+	 * niet heeft en die nog niet bij een andere peer zijn opgevraagd.
+	 * @param bericht	Het invbericht.
+	 * @param afzender	De peer die het bericht gestuurd heeft.
+	 */
+	public synchronized void verwerkInv(JSONObject bericht, Peer afzender) {
+		verwijderVerlopenAanvragen();
+
+		ArrayList<String> transacties = new ArrayList<String>();
+		for (String hash : beperk(BerichtUtil.leesTransactieHashes(bericht))) {
+			afzender.markeerBekend(hash);
+			if (!afgewezen.bevat(hash) && blockchainManager.getPoolTransactie(hash) == null &&
+				vraagAan(hash)) {
+				transacties.add(hash);
+			}
+		}
+
+		ArrayList<String> blokken = new ArrayList<String>();
+		for (String hash : beperk(BerichtUtil.leesBlokHashes(bericht))) {
+			afzender.markeerBekend(hash);
+			voegAankondigerToe(hash, afzender);
+			if (!blockchainManager.bevatBlok(hash) && vraagAan(hash)) {
+				blokken.add(hash);
+			}
+		}
+
+		if (!transacties.isEmpty() || !blokken.isEmpty()) {
+			afzender.stuurBericht(BerichtUtil.maakGetDataBericht(transacties, blokken));
+		}
+	}
+
+	/**
+	 * Verwerk een getdatabericht: stuur de gevraagde transacties en blokken die deze node heeft.
+	 * @param bericht	Het getdatabericht.
+	 * @param afzender	De peer die het bericht gestuurd heeft.
+	 */
+	public void verwerkGetData(JSONObject bericht, Peer afzender) {
+		for (String hash : beperk(BerichtUtil.leesTransactieHashes(bericht))) {
+			Transactie transactie = blockchainManager.getPoolTransactie(hash);
+			if (transactie != null) {
+				afzender.markeerBekend(hash);
+				afzender.stuurBericht(BerichtUtil.maakTransactieBericht(transactie));
+			}
+		}
+
+		for (String hash : beperk(BerichtUtil.leesBlokHashes(bericht))) {
+			Blok blok = blockchainManager.getBlok(hash);
+			if (blok != null) {
+				afzender.markeerBekend(hash);
+				afzender.stuurBericht(BerichtUtil.maakBlokBericht(blok));
+			}
+		}
+	}
+
+	/**
+	 * Wordt aangeroepen als een transactie of blok van een peer ontvangen is.
+	 * @param hash		Hash van de transactie of het blok.
+	 * @param afzender	De peer die de transactie of het blok gestuurd heeft.
+	 */
+	public synchronized void ontvangen(String hash, Peer afzender) {
+		afzender.markeerBekend(hash);
+		aangevraagd.remove(hash);
+	}
+
+	/**
+	 * Onthoud dat een transactie ongeldig is, zodat deze niet opnieuw wordt opgevraagd.
+	 * @param hash	Hash van de transactie.
+	 */
+	public synchronized void wijsAf(String hash) {
+		afgewezen.voegToe(hash);
+	}
+
+	/**
+	 * @param hash	Hash van een transactie.
+	 * @return True (de transactie is eerder ongeldig gebleken) of false.
+	 */
+	public synchronized boolean isAfgewezen(String hash) {
+		return afgewezen.bevat(hash);
+	}
+
+	/**
+	 * Bouw het blok op uit een volledig CompactBlok. Als het blok niet de verwachte hash heeft
+	 * (doordat twee transacties dezelfde korte ID hebben), wordt het volledige blok opgevraagd.
+	 */
+	private Blok maakBlok(CompactBlok compactBlok, Peer afzender) {
+		Blok blok = compactBlok.maakBlok();
+		if (blok == null) {
+			System.out.println("opgebouwd blok heeft een andere hash");
+			vraagVolledigBlokAan(compactBlok.getHash(), afzender);
+			return null;
+		}
+		
+		//de CompactBlokken van andere peers met dezelfde hash zijn niet meer nodig
+		Iterator<String> iterator = onvolledigeBlokken.keySet().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().endsWith(":" + blok.getHash())) {
+				iterator.remove();
+			}
+		}
+		return blok;
+	}
+	
+	/**
+	 * Vraag het volledige blok op, omdat het niet uit een CompactBlok van afzender kon worden
+	 * opgebouwd. Het blok wordt opgevraagd bij een andere (nog verbonden) peer die het heeft 
+	 * aangekondigd; alleen als die er niet is, bij afzender.
+	 */
+	private void vraagVolledigBlokAan(String hash, Peer afzender) {
+		aangevraagd.put(hash, System.currentTimeMillis());
+		JSONObject getData = BerichtUtil.maakGetDataBericht(Collections.<String>emptyList(), 
+															 Collections.singletonList(hash));
+		ArrayList<Peer> peers = aankondigers.get(hash);
+		if (peers != null) {
+			for (Peer peer : peers) {
+				if (peer != afzender && network.stuurBericht(getData, peer.getId())) {
+					return;
+				}
+			}
+		}
+		afzender.stuurBericht(getData);
+	}
+	
+	/**
+	 * Onthoud dat een peer een blok heeft aangekondigd (zie vraagVolledigBlokAan()).
+	 */
+	private void voegAankondigerToe(String hash, Peer peer) {
+		ArrayList<Peer> peers = aankondigers.get(hash);
+		if (peers == null) {
+			peers = new ArrayList<Peer>();
+			aankondigers.put(hash, peers);
+		}
+		if (peers.size() < MAX_AANKONDIGERS && !peers.contains(peer)) {
+			peers.add(peer);
+		}
+	}
+	
+	/**
+	 * Zorg ervoor dat er plaats is voor een nieuw onvolledig CompactBlok van een peer: als de
+	 * peer al MAX_ONVOLLEDIGE_BLOKKEN_PER_PEER onvolledige CompactBlokken heeft, wordt zijn 
+	 * oudste CompactBlok vergeten.
+	 */
+	private void beperkOnvolledigeBlokken(Peer peer) {
+		String prefix = peer.getId() + ":";
+		String oudste = null;
+		int aantal = 0;
+		for (String sleutel : onvolledigeBlokken.keySet()) {
+			if (sleutel.startsWith(prefix)) {
+				if (oudste == null) {
+					oudste = sleutel;
+				}
+				aantal++;
+			}
+		}
+		if (aantal >= MAX_ONVOLLEDIGE_BLOKKEN_PER_PEER) {
+			onvolledigeBlokken.remove(oudste);
+		}
+	}
+	
+	/**
+	 * @return De sleutel van een onvolledig CompactBlok in onvolledigeBlokken ("peerId:hash").
+	 */
+	private static String maakSleutel(Peer peer, String hash) {
+		return peer.getId() + ":" + hash;
+	}
+	
+	/**
+	 * Zoek de peers (behalve de afzender) die de transactie of het blok met de gegeven hash nog
+	 * niet kennen.
+	 * @return De peers die de hash nog niet kennen.
+	 */
+	private ArrayList<Peer> getOntvangers(String hash, Peer afzender) {
+		ArrayList<Peer> ontvangers = new ArrayList<Peer>();
+		for (Peer peer : network.getPeers()) {
+			if (peer != afzender && !peer.kentHash(hash)) {
+				ontvangers.add(peer);
+			}
+		}
+		return ontvangers;
+	}
+	
+	/**
+	 * Markeer een hash als bekend bij de peers naar wie de aankondiging echt verstuurd wordt.
+	 * Peers bij wie het bericht is overgeslagen (omdat hun queue te vol is), krijgen de hash
+	 * bij een volgende aankondiging opnieuw.
+	 * @param verstuurd	De peers bij wie het bericht in de queue is gezet.
+	 * @param hash		Hash van de transactie of het blok.
+	 */
+	private void markeerBekend(ArrayList<Peer> verstuurd, String hash) {
+		for (Peer peer : verstuurd) {
+			peer.markeerBekend(hash);
+		}
+	}
+
+	/**
+	 * Registreer een aanvraag, tenzij de hash al (recent) is opgevraagd.
+	 * @return True (de hash moet opgevraagd worden) of false (de hash is al opgevraagd).
+	 */
+	private boolean vraagAan(String hash) {
+		if (aangevraagd.containsKey(hash)) {
+			return false;
+		}
+		aangevraagd.put(hash, System.currentTimeMillis());
+		return true;
+	}
+
+	/**
+	 * Verwijder de aanvragen die langer dan AANVRAAG_TIMEOUT geleden zijn gedaan.
+	 */
+	private void verwijderVerlopenAanvragen() {
+		long grens = System.currentTimeMillis() - AANVRAAG_TIMEOUT;
+		Iterator<Map.Entry<String, Long>> iterator = aangevraagd.entrySet().iterator();
+		while (iterator.hasNext() && iterator.next().getValue() < grens) {
+			iterator.remove();
+		}
+	}
+
+	private List<String> beperk(List<String> hashes) {
+		if (hashes.size() > MAX_HASHES_PER_BERICHT) {
+			return hashes.subList(0, MAX_HASHES_PER_BERICHT);
+		}
+		return hashes;
+	}
+
+}
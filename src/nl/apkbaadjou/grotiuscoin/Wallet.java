@@ -11,10 +11,8 @@ import java.security.KeyPairGenerator;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.SecureRandom;
-import java.security.Signature;
 import java.security.spec.EncodedKeySpec;
 import java.security.spec.PKCS8EncodedKeySpec;
-import java.security.spec.X509EncodedKeySpec;
 
 /**
  * De Wallet-klasse is verantwoordelijk voor het beheren van de privésleutel en de 
@@ -27,6 +25,12 @@ public class Wallet {
 	 * Pad naar het bestand waarin de sleutels worden opgeslagen.
 	 */
 	public static final String KEY_PATH = Main.DIRECTORY + File.separator + "sleutels";
+	
+	/**
+	 * Handtekeningen die al gecontroleerd zijn en klopten (zie controleerHandtekening()).
+	 * Wordt gedeeld door de controle van de transactiePool en de controle van blokken.
+	 */
+	private static final HandtekeningCache handtekeningCache = new HandtekeningCache(HandtekeningCache.MAX_HANDTEKENINGEN);
 
 	private String privesleutel;
 	private String publiekeSleutel;
@@ -107,10 +111,8 @@ public class Wallet {
 		try {
 		
 			//bereken de handtekening van de hash van de transactie
-			Signature sig = Signature.getInstance("SHA256withECDSA");
-			sig.initSign(privateKey);
-			sig.update(transactie.getHash().getBytes("UTF-8"));
-			String handtekening = new BigInteger(sig.sign()).toString(16);
+			byte[] handtekeningBytes = Crypto.onderteken(privateKey, transactie.getHash().getBytes("UTF-8"));
+			String handtekening = new BigInteger(handtekeningBytes).toString(16);
 			
 			//voeg de handtekening toe aan alle invoeren van de transactie
 			for (int i=0; i<transactie.getAantalInvoeren(); i++) {
@@ -125,31 +127,38 @@ public class Wallet {
 	}
 	
 	/**
-	 * Controleer of de handtekening van een invoer klopt
+	 * Controleer of de handtekening van een invoer klopt. Kloppende handtekeningen worden in de
+	 * HandtekeningCache onthouden, zodat een transactie uit de transactiePool niet opnieuw 
+	 * gecontroleerd hoeft te worden als ze in een blok binnenkomt.
+	 * Kan door meerdere threads tegelijk worden aangeroepen.
 	 * @param invoer	Invoer waarvan de handtekening gecontroleerd moet worden.
 	 * @param huidigeTransactie		De transactie die de gegeven invoer bevat.
-	 * @param voorgaandeTransactie	De transactie die de uitvoer bevat waar de gegeven invoer naar verwijst.
+	 * @param vorigeUitvoer			De uitvoer waar de gegeven invoer naar verwijst.
 	 * @return True (de handtekening klopt) of false (de handtekening klopt niet).
 	 */
-	public static boolean controleerHandtekening(Invoer invoer, Transactie huidigeTransactie, Transactie voorgaandeTransactie) {
+	public static boolean controleerHandtekening(Invoer invoer, Transactie huidigeTransactie, Uitvoer vorigeUitvoer) {
+		
+		String cacheSleutel = null;
+		if (invoer.handtekening != null) {
+			cacheSleutel = HandtekeningCache.maakSleutel(huidigeTransactie.getHash(), vorigeUitvoer.publiekeSleutel, 
+														 invoer.handtekening);
+			if (handtekeningCache.bevat(cacheSleutel)) {
+				return true;
+			}
+		}
 		
 		try {
-			//pak de publieke sleutel van de voorgaande transactie 
-			String pubSleutel = voorgaandeTransactie.getUitvoer(invoer.uitvoerIndex).publiekeSleutel;
-			byte[] pubBytes = new BigInteger(pubSleutel, 16).toByteArray();
-			
-			//zet publieke sleutel om naar een PublicKey-object
-			X509EncodedKeySpec pubKeySpec = new X509EncodedKeySpec(pubBytes);
-			KeyFactory keyFactory = KeyFactory.getInstance("EC");
-			PublicKey pubKey = keyFactory.generatePublic(pubKeySpec);
+			//pak de (gedecodeerde) publieke sleutel van de uitvoer waar de invoer naar verwijst
+			PublicKey pubKey = Crypto.getPubliekeSleutel(vorigeUitvoer.publiekeSleutel);
 
 			//controleer de handtekening
-			Signature sig = Signature.getInstance("SHA256withECDSA");
-			sig.initVerify(pubKey);
-			sig.update(huidigeTransactie.getHash().getBytes("UTF-8"));
 			byte[] handtekeningBytes = new BigInteger(invoer.handtekening, 16).toByteArray();
 			
-			return sig.verify(handtekeningBytes);
+			boolean klopt = Crypto.controleer(pubKey, huidigeTransactie.getHash().getBytes("UTF-8"), handtekeningBytes);
+			if (klopt) {
+				handtekeningCache.voegToe(cacheSleutel);
+			}
+			return klopt;
 		
 		} catch (Exception e) {
 			e.printStackTrace();